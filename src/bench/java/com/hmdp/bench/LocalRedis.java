@@ -0,0 +1,54 @@
+package com.hmdp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压测用的本地redis进程，不持久化，结束时销毁
+ * 需要5.0以上的redis-server（秒杀链路用到stream），通过 -Dbench.redis.binary 指定
+ */
+public class LocalRedis implements AutoCloseable {
+
+    private static final long STARTUP_TIMEOUT_MILLIS = 10000L;
+
+    private final Process process;
+
+    private LocalRedis(Process process) {
+        this.process = process;
+    }
+
+    public static LocalRedis start(String binary, int port, File logFile) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(binary,
+                "--port", String.valueOf(port),
+                "--save", "",
+                "--appendonly", "no")
+                .redirectErrorStream(true)
+                .redirectOutput(logFile)
+                .start();
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("redis-server启动失败，查看日志: " + logFile.getAbsolutePath());
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                return new LocalRedis(process);
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        process.destroyForcibly();
+        throw new IllegalStateException("redis-server启动超时, port=" + port);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.hmdp.bench;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.LatencyHistogram;
+import com.hmdp.utils.OrderJournal;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 订单日志压测：多线程追加的吞吐和延迟分位数、合并刷盘次数，以及重启时读取日志的耗时，结果以JSON输出
+ *
+ * mvn -Pbench test-compile exec:java -Dbench.main=com.hmdp.bench.OrderJournalBenchmark -Dbench.journal.orders=1000000
+ *
+ * 参数（系统属性）：
+ * bench.journal.orders       追加的订单数
+ * bench.journal.threads      追加线程数
+ * bench.journal.sync         每次追加是否等待刷盘
+ * bench.journal.segment-mb   段文件大小
+ * bench.journal.flush-interval-ms  刷盘间隔
+ * bench.journal.buffer-size  环形缓冲区槽位数
+ * bench.journal.ack-ratio    重启前确认的订单比例，其余的在重启时读出
+ * bench.out                  结果目录，日志文件也写在这里
+ */
+public class OrderJournalBenchmark {
+
+    private final int orders = Integer.getInteger("bench.journal.orders", 1000000);
+    private final int threads = Integer.getInteger("bench.journal.threads", 8);
+    private final boolean sync = Boolean.getBoolean("bench.journal.sync");
+    private final int segmentMb = Integer.getInteger("bench.journal.segment-mb", 64);
+    private final long flushIntervalMillis = Long.getLong("bench.journal.flush-interval-ms", 10L);
+    private final int bufferSize = Integer.getInteger("bench.journal.buffer-size", 65536);
+    private final double ackRatio = Double.parseDouble(System.getProperty("bench.journal.ack-ratio", "0.9"));
+    private final File outDir = new File(System.getProperty("bench.out", "target/bench"));
+
+    public static void main(String[] args) throws Exception {
+        OrderJournalBenchmark benchmark = new OrderJournalBenchmark();
+        benchmark.outDir.mkdirs();
+        File dir = new File(benchmark.outDir, "journal-" + System.currentTimeMillis());
+        Map<String, Object> result;
+        try {
+            result = benchmark.run(dir);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+        String json = JSONUtil.toJsonPrettyStr(result);
+        File file = new File(benchmark.outDir, "journal-" + System.currentTimeMillis() + ".json");
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        System.out.println(json);
+        System.out.println("结果已写入 " + file.getAbsolutePath());
+        System.exit(0);
+    }
+
+    private Map<String, Object> run(File dir) throws Exception {
+        int segmentSize = segmentMb * 1024 * 1024;
+        // 1.多线程追加，每个线程负责一段连续的订单id
+        OrderJournal journal = new OrderJournal(dir, segmentSize, flushIntervalMillis, bufferSize);
+        journal.open();
+        long[] latencies = new long[orders];
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>(threads);
+        long now = System.currentTimeMillis();
+        LongAdder fullRetries = new LongAdder();
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int from = (int) ((long) orders * t / threads);
+            int to = (int) ((long) orders * (t + 1) / threads);
+            futures.add(workers.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    long start = System.nanoTime();
+                    long sequence;
+                    while ((sequence = journal.reserve()) < 0) {
+                        // 缓冲区满时等待刷盘线程腾出位置，计入该次的延迟
+                        fullRetries.increment();
+                        Thread.yield();
+                    }
+                    // 订单id从1开始，0表示已取消的槽位
+                    journal.append(sequence, i + 1L, i + 1L, 1L, now);
+                    if (sync) {
+                        journal.awaitForced(sequence, 1000L);
+                    }
+                    latencies[i] = System.nanoTime() - start;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        workers.shutdown();
+
+        // 2.等待缓冲区写完，确认一部分订单后关闭，模拟重启
+        while (journal.bufferedSize() > 0) {
+            Thread.sleep(1L);
+        }
+        int acked = (int) (orders * ackRatio);
+        for (int i = 1; i <= acked; i++) {
+            journal.ack((long) i);
+        }
+        int segmentsBeforeRestart = journal.segmentCount();
+        LatencyHistogram fsync = journal.getFsyncLatency();
+        journal.close();
+
+        // 3.重新打开，读取未删除段中的订单
+        OrderJournal reopened = new OrderJournal(dir, segmentSize, flushIntervalMillis, bufferSize);
+        long replayBegin = System.nanoTime();
+        int recovered = reopened.open().size();
+        long replayElapsed = System.nanoTime() - replayBegin;
+        reopened.close();
+
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("orders", orders);
+        config.put("threads", threads);
+        config.put("sync", sync);
+        config.put("segmentMb", segmentMb);
+        config.put("flushIntervalMillis", flushIntervalMillis);
+        config.put("bufferSize", bufferSize);
+        config.put("ackRatio", ackRatio);
+
+        Map<String, Object> append = new LinkedHashMap<>();
+        append.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsed));
+        append.put("throughput", orders * 1_000_000_000L / Math.max(1L, elapsed));
+        append.put("bytesPerSecond", (long) orders * OrderJournal.RECORD_SIZE * 1_000_000_000L / Math.max(1L, elapsed));
+        append.put("bufferFullRetries", fullRetries.sum());
+        append.put("fsyncs", fsync.getCount());
+        append.put("ordersPerFsync", fsync.getCount() == 0 ? 0D : orders / (double) fsync.getCount());
+        append.put("meanFsyncMillis", fsync.getCount() == 0 ? 0D : fsync.getSumSeconds() * 1000D / fsync.getCount());
+
+        Arrays.sort(latencies);
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("p50", percentileMicros(latencies, 0.50));
+        latency.put("p99", percentileMicros(latencies, 0.99));
+        latency.put("p999", percentileMicros(latencies, 0.999));
+        latency.put("max", percentileMicros(latencies, 1.0));
+
+        Map<String, Object> replay = new LinkedHashMap<>();
+        replay.put("acked", acked);
+        replay.put("segments", segmentsBeforeRestart);
+        replay.put("recovered", recovered);
+        replay.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(replayElapsed));
+        replay.put("recordsPerSecond", recovered * 1_000_000_000L / Math.max(1L, replayElapsed));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("time", LocalDateTime.now().toString());
+        result.put("config", config);
+        result.put("append", append);
+        result.put("latencyMicros", latency);
+        result.put("replay", replay);
+        return result;
+    }
+
+    private static double percentileMicros(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0D;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000D;
+    }
+}
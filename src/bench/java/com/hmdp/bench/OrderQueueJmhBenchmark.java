@@ -0,0 +1,111 @@
+package com.hmdp.bench;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderRingBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单交接方式的对比：8个请求线程写入、1个后台线程批量读取
+ * queue：原来的 ArrayBlockingQueue(1024*1024)，每单创建一个VoucherOrder，所有线程共用一把锁
+ * ring：预分配槽位的环形缓冲区，CAS占用槽位，写入基本类型字段
+ * 两者满时都立即返回失败，写入失败计入吞吐，关注写入线程的吞吐和gc
+ *
+ * mvn -Pbench test-compile exec:java -Dbench.main=org.openjdk.jmh.Main -Dexec.args="OrderQueueJmhBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class OrderQueueJmhBenchmark {
+
+    private static final int CAPACITY = 1024 * 1024;
+    private static final int DRAIN_BATCH_SIZE = 1024;
+
+    private ArrayBlockingQueue<VoucherOrder> queue;
+    private OrderRingBuffer ring;
+    private final AtomicLong orderIds = new AtomicLong();
+
+    // 读取线程中复用
+    private final List<VoucherOrder> drained = new ArrayList<>(DRAIN_BATCH_SIZE);
+    private final RingConsumer ringConsumer = new RingConsumer();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        queue = new ArrayBlockingQueue<>(CAPACITY);
+        ring = new OrderRingBuffer(CAPACITY);
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(8)
+    public boolean queueOffer() {
+        long orderId = orderIds.incrementAndGet();
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(orderId);
+        voucherOrder.setVoucherId(1L);
+        return queue.offer(voucherOrder);
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public void queueDrain(Blackhole blackhole) {
+        queue.drainTo(drained, DRAIN_BATCH_SIZE);
+        for (VoucherOrder voucherOrder : drained) {
+            blackhole.consume(voucherOrder.getId());
+        }
+        drained.clear();
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(8)
+    public boolean ringPublish() {
+        long sequence = ring.tryClaim();
+        if (sequence < 0) {
+            return false;
+        }
+        long orderId = orderIds.incrementAndGet();
+        ring.publish(sequence, orderId, orderId, 1L, 0L);
+        return true;
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public void ringDrain(Blackhole blackhole) {
+        ring.drain(ringConsumer, DRAIN_BATCH_SIZE);
+        blackhole.consume(ringConsumer.sum);
+    }
+
+    private static class RingConsumer implements OrderRingBuffer.SlotHandler {
+        private long sum;
+
+        @Override
+        public void onOrder(long sequence, long orderId, long userId, long voucherId, long createMillis) {
+            sum += orderId;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.hmdp.bench;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.HmDianPingApplication;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.UserHolder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀链路压测：启动本地redis和H2(MySQL模式)，直接调用 seckillVoucher，
+ * 统计吞吐、延迟分位数、超卖和一人多单检查、消费延迟，结果以JSON输出，便于多次运行之间对比
+ *
+ * mvn -Pbench test-compile exec:java -Dbench.users=10000 -Dbench.stock=1000 -Dbench.concurrency=200
+ *
+ * 参数（系统属性）：
+ * bench.users        参与抢购的用户数
+ * bench.attempts     每个用户的请求次数，大于1时验证一人一单
+ * bench.stock        库存
+ * bench.concurrency  并发线程数
+ * bench.segments     库存分段数
+ * bench.shards       订单消费分片数
+ * bench.drain-timeout-ms  等待订单全部落库的最长时间
+ * bench.redis.binary redis-server路径，需要5.0以上
+ * bench.redis.port   本地redis端口
+ * bench.out          结果目录
+ */
+public class SeckillBenchmark {
+
+    private final int users = Integer.getInteger("bench.users", 10000);
+    private final int attempts = Integer.getInteger("bench.attempts", 2);
+    private final int stock = Integer.getInteger("bench.stock", 1000);
+    private final int concurrency = Integer.getInteger("bench.concurrency", 200);
+    private final int segments = Integer.getInteger("bench.segments", 1);
+    private final int shards = Integer.getInteger("bench.shards", 4);
+    private final long drainTimeoutMillis = Long.getLong("bench.drain-timeout-ms", 60000L);
+    private final String redisBinary = System.getProperty("bench.redis.binary", "redis-server");
+    private final int redisPort = Integer.getInteger("bench.redis.port", 16379);
+    private final File outDir = new File(System.getProperty("bench.out", "target/bench"));
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder soldOut = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        SeckillBenchmark benchmark = new SeckillBenchmark();
+        benchmark.outDir.mkdirs();
+        File redisLog = new File(benchmark.outDir, "redis.log");
+        Map<String, Object> result;
+        try (LocalRedis ignored = LocalRedis.start(benchmark.redisBinary, benchmark.redisPort, redisLog)) {
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(HmDianPingApplication.class)
+                    .profiles("bench")
+                    .web(WebApplicationType.NONE)
+                    .properties("spring.redis.port=" + benchmark.redisPort,
+                            "hmdp.seckill.stock-segments=" + benchmark.segments,
+                            "hmdp.order.shards=" + benchmark.shards)
+                    .run(args);
+            try {
+                result = benchmark.run(context);
+            } finally {
+                context.close();
+            }
+        }
+        String json = JSONUtil.toJsonPrettyStr(result);
+        File file = new File(benchmark.outDir, "seckill-" + System.currentTimeMillis() + ".json");
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        System.out.println(json);
+        System.out.println("结果已写入 " + file.getAbsolutePath());
+        System.exit(Boolean.TRUE.equals(((Map<?, ?>) result.get("checks")).get("passed")) ? 0 : 1);
+    }
+
+    private Map<String, Object> run(ConfigurableApplicationContext context) throws Exception {
+        IVoucherService voucherService = context.getBean(IVoucherService.class);
+        IVoucherOrderService voucherOrderService = context.getBean(IVoucherOrderService.class);
+        StringRedisTemplate stringRedisTemplate = context.getBean(StringRedisTemplate.class);
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        SeckillStock seckillStock = context.getBean(SeckillStock.class);
+
+        Long voucherId = createVoucher(voucherService);
+
+        // 1.压测：每个请求的耗时写入latencies，按用户分配请求
+        int total = users * attempts;
+        long[] latencies = new long[total];
+        AtomicInteger nextRequest = new AtomicInteger();
+        AtomicLong maxBacklog = new AtomicLong();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> maxBacklog.accumulateAndGet(backlog(stringRedisTemplate), Math::max),
+                0, 100, TimeUnit.MILLISECONDS);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        long begin = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            workers.submit(() -> {
+                try {
+                    int request;
+                    while ((request = nextRequest.getAndIncrement()) < total) {
+                        UserDTO user = new UserDTO();
+                        user.setId((long) (request % users) + 1);
+                        UserHolder.saveUser(user);
+                        long start = System.nanoTime();
+                        try {
+                            count(voucherOrderService.seckillVoucher(voucherId));
+                        } catch (Exception e) {
+                            errors.increment();
+                        } finally {
+                            latencies[request] = System.nanoTime() - start;
+                            UserHolder.removeUser();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        workers.shutdown();
+
+        // 2.等待消费者把订单全部写入数据库
+        long drainBegin = System.nanoTime();
+        long persisted = countOrders(jdbcTemplate, voucherId);
+        long drainDeadline = System.currentTimeMillis() + drainTimeoutMillis;
+        while (persisted < succeeded.sum() && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(20);
+            persisted = countOrders(jdbcTemplate, voucherId);
+        }
+        long drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainBegin);
+        sampler.shutdownNow();
+
+        // 3.结果
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("users", users);
+        config.put("attempts", attempts);
+        config.put("stock", stock);
+        config.put("concurrency", concurrency);
+        config.put("segments", segments);
+        config.put("shards", shards);
+
+        Map<String, Object> requests = new LinkedHashMap<>();
+        requests.put("total", total);
+        requests.put("succeeded", succeeded.sum());
+        requests.put("soldOut", soldOut.sum());
+        requests.put("duplicated", duplicated.sum());
+        requests.put("errors", errors.sum());
+        requests.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsed));
+        requests.put("throughput", total * 1_000_000_000L / Math.max(1L, elapsed));
+
+        Arrays.sort(latencies);
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("p50", percentileMillis(latencies, 0.50));
+        latency.put("p99", percentileMillis(latencies, 0.99));
+        latency.put("p999", percentileMillis(latencies, 0.999));
+        latency.put("max", percentileMillis(latencies, 1.0));
+
+        Map<String, Object> consumer = new LinkedHashMap<>();
+        consumer.put("persisted", persisted);
+        consumer.put("drainMillis", drainMillis);
+        consumer.put("maxBacklog", maxBacklog.get());
+
+        Map<String, Object> checks = checks(jdbcTemplate, stringRedisTemplate, seckillStock, voucherId, persisted);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("time", LocalDateTime.now().toString());
+        result.put("config", config);
+        result.put("requests", requests);
+        result.put("latencyMillis", latency);
+        result.put("consumer", consumer);
+        result.put("checks", checks);
+        return result;
+    }
+
+    private Long createVoucher(IVoucherService voucherService) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("bench");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(200L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private void count(Result result) {
+        if (Boolean.TRUE.equals(result.getSuccess())) {
+            succeeded.increment();
+        } else if ("库存不足".equals(result.getErrorMsg())) {
+            soldOut.increment();
+        } else if ("不能重复下单".equals(result.getErrorMsg())) {
+            duplicated.increment();
+        } else {
+            errors.increment();
+        }
+    }
+
+    /**
+     * 超卖和一人多单检查
+     */
+    private Map<String, Object> checks(JdbcTemplate jdbcTemplate, StringRedisTemplate stringRedisTemplate,
+                                       SeckillStock seckillStock, Long voucherId, long persisted) {
+        long redisStock = 0L;
+        int count = seckillStock.segments(voucherId);
+        for (int i = 0; i < count; i++) {
+            String value = stringRedisTemplate.opsForValue().get(seckillStock.stockKey(voucherId, i, count));
+            redisStock += value == null ? 0L : Long.parseLong(value);
+        }
+        Integer dbStock = jdbcTemplate.queryForObject(
+                "select stock from tb_seckill_voucher where voucher_id = ?", Integer.class, voucherId);
+        Long duplicateUsers = jdbcTemplate.queryForObject(
+                "select count(*) from (select user_id from tb_voucher_order where voucher_id = ? " +
+                        "group by user_id having count(*) > 1) t", Long.class, voucherId);
+        boolean oversold = persisted > stock || redisStock < 0 || dbStock == null || dbStock < 0;
+        boolean lost = persisted != succeeded.sum();
+        boolean consistent = dbStock != null && dbStock + persisted == stock && redisStock + succeeded.sum() == stock;
+
+        Map<String, Object> checks = new LinkedHashMap<>();
+        checks.put("redisStock", redisStock);
+        checks.put("dbStock", dbStock);
+        checks.put("oversold", oversold);
+        checks.put("duplicateUsers", duplicateUsers);
+        checks.put("lostOrders", succeeded.sum() - persisted);
+        checks.put("stockConsistent", consistent);
+        checks.put("passed", !oversold && !lost && consistent && duplicateUsers != null && duplicateUsers == 0L);
+        return checks;
+    }
+
+    private long countOrders(JdbcTemplate jdbcTemplate, Long voucherId) {
+        Long count = jdbcTemplate.queryForObject(
+                "select count(*) from tb_voucher_order where voucher_id = ?", Long.class, voucherId);
+        return count == null ? 0L : count;
+    }
+
+    /**
+     * 所有分片stream中尚未ACK的订单数
+     */
+    private long backlog(StringRedisTemplate stringRedisTemplate) {
+        long backlog = 0L;
+        for (int i = 0; i < shards; i++) {
+            Long size = stringRedisTemplate.opsForStream().size(RedisConstants.STREAM_ORDERS_KEY + ":" + i);
+            backlog += size == null ? 0L : size;
+        }
+        return backlog;
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0D;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000D;
+    }
+}
@@ -1,13 +1,16 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.OpsInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 
 @Configuration
@@ -16,6 +19,10 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    // 可以调用缓存预热、库存对账和重建等运维接口的用户id
+    @Value("${hmdp.ops.admin-user-ids:}")
+    private Set<Long> adminUserIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 注册 登录拦截器new LoginInterceptor()
@@ -28,8 +35,13 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
-                        "/user/login"
+                        "/user/login",
+                        "/metrics"
                 ).order(1);
+        // 注册 运维接口拦截器，只允许配置的用户调用
+        registry.addInterceptor(new OpsInterceptor(adminUserIds))
+                .addPathPatterns("/cache/**")
+                .order(2);
         // 注册刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
     }
@@ -0,0 +1,96 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.StockReconciler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存管理控制器，只允许 hmdp.ops.admin-user-ids 中的用户调用(见MvcConfig)
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private StockReconciler stockReconciler;
+
+    /**
+     * 查询各key前缀的一级缓存统计：命中率、淘汰数
+     */
+    @GetMapping("/stats")
+    public Result stats() {
+        return Result.ok(cacheClient.localCacheStats());
+    }
+
+    /**
+     * 查询布隆过滤器统计：放行数、拦截数
+     */
+    @GetMapping("/bloom")
+    public Result bloomStats() {
+        return Result.ok(bloomFilterManager.stats());
+    }
+
+    /**
+     * 手动触发缓存预热，例如redis故障切换之后
+     */
+    @PostMapping("/warmup")
+    public Result warmUp() {
+        if (!cacheWarmer.start()) {
+            return Result.fail("预热任务正在执行");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询预热进度和吞吐量
+     */
+    @GetMapping("/warmup")
+    public Result warmUpProgress() {
+        return Result.ok(cacheWarmer.progress());
+    }
+
+    /**
+     * 手动触发一次秒杀库存对账，返回对账报告
+     */
+    @PostMapping("/seckill/reconcile")
+    public Result reconcileSeckillStock() {
+        Map<String, Object> report = stockReconciler.reconcile();
+        if (report == null) {
+            return Result.fail("对账或重建任务正在执行");
+        }
+        return Result.ok(report);
+    }
+
+    /**
+     * 用数据库重建redis中的秒杀库存和已下单用户，用于redis数据丢失之后
+     */
+    @PostMapping("/seckill/rebuild")
+    public Result rebuildSeckillStock() {
+        long rebuilt = stockReconciler.rebuildRedis();
+        if (rebuilt < 0) {
+            return Result.fail("对账或重建任务正在执行");
+        }
+        return Result.ok(rebuilt);
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.utils.MetricsSource;
+import com.hmdp.utils.MetricsWriter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * <p>
+ * 监控指标，prometheus文本格式
+ * </p>
+ */
+@RestController
+public class MetricsController {
+
+    @Resource
+    private List<MetricsSource> metricsSources;
+
+    @GetMapping(value = "/metrics", produces = "text/plain; version=0.0.4; charset=utf-8")
+    public String metrics() {
+        MetricsWriter writer = new MetricsWriter();
+        metricsSources.forEach(source -> source.writeMetrics(writer));
+        return writer.toString();
+    }
+}
@@ -10,6 +10,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.RateLimit;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -17,6 +18,7 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.util.concurrent.TimeUnit;
 
 import static com.baomidou.mybatisplus.core.toolkit.Wrappers.query;
 
@@ -43,6 +45,9 @@ public class UserController {
      * 发送手机验证码
      * http://localhost:8080/api/user/code?phone=xxxxx
      */
+    @RateLimit(name = "sendCode", dimension = RateLimit.Dimension.IP, algorithm = RateLimit.Algorithm.SLIDING_WINDOW,
+            permits = 5, period = 1, unit = TimeUnit.MINUTES)
+    @RateLimit(name = "sendCode", dimension = RateLimit.Dimension.GLOBAL, permits = 200)
     @PostMapping("code")
     public Result sendCode(@RequestParam("phone") String phone, HttpSession session) {
         // 发送短信验证码并保存验证码
@@ -3,12 +3,17 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RateLimit;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -22,10 +27,38 @@ import javax.annotation.Resource;
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
 
+    // future在长轮询最长等待时间内完成，这里的超时只是兜底，防止落到容器默认的异步超时
+    private static final long STATUS_TIMEOUT_MARGIN_MILLIS = 1000L;
+
     @Resource
     private IVoucherOrderService iVoucherOrderService;
+    @RateLimit(name = "seckill", permits = 5, burst = 10)
+    @RateLimit(name = "seckill", dimension = RateLimit.Dimension.IP, algorithm = RateLimit.Algorithm.SLIDING_WINDOW, permits = 20)
+    @RateLimit(name = "seckill", dimension = RateLimit.Dimension.GLOBAL, permits = 20000, burst = 40000)
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return iVoucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理结果
+     * @param wait 长轮询等待时间(毫秒)，结果仍为PENDING时挂起请求，直到结果变化或超时
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "0") Long wait) {
+        DeferredResult<Result> result = new DeferredResult<>(Math.max(wait, 0L) + STATUS_TIMEOUT_MARGIN_MILLIS,
+                () -> Result.fail("查询超时，请重试"));
+        CompletableFuture<Result> future = iVoucherOrderService.queryOrderStatus(orderId, wait);
+        future.whenComplete((r, e) -> {
+            if (e != null) {
+                result.setErrorResult(e);
+            } else {
+                result.setResult(r);
+            }
+        });
+        // 客户端断开或超时时取消，不再占用等待队列
+        result.onCompletion(() -> future.cancel(false));
+        return result;
+    }
 }
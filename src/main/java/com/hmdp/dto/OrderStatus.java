@@ -0,0 +1,28 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀订单的处理结果
+ */
+@Data
+public class OrderStatus {
+    // 已进入队列，等待写入数据库
+    public static final String PENDING = "PENDING";
+    // 已写入数据库
+    public static final String CREATED = "CREATED";
+    // 无法创建，reason为原因
+    public static final String FAILED = "FAILED";
+    // 超时未支付，已取消
+    public static final String CANCELLED = "CANCELLED";
+
+    private Long orderId;
+    private Long userId;
+    private Long voucherId;
+    private String status;
+    private String reason;
+
+    public boolean isFinished() {
+        return !PENDING.equals(status);
+    }
+}
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,20 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 扣减库存，库存不足时不更新
+     * @return 更新的行数
+     */
+    int decreaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    /**
+     * 归还库存，取消订单时调用
+     * @return 更新的行数
+     */
+    int increaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    /**
+     * 一条CASE语句批量设置库存
+     */
+    int updateStockBatch(@Param("vouchers") List<SeckillVoucher> vouchers);
 }
@@ -4,6 +4,7 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hmdp.entity.Voucher;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -16,5 +17,5 @@ import java.util.List;
  */
 public interface VoucherMapper extends BaseMapper<Voucher> {
 
-    List<Voucher> queryVoucherOfShop(@Param("shopId") Long shopId);
+    List<Voucher> queryVoucherByIds(@Param("ids") Collection<Long> ids);
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -23,4 +26,9 @@ public interface IBlogService extends IService<Blog> {
     Result saveBlog(Blog blog);
 
     Result queryBlogOfFollow(long max, Integer offset);
+
+    /**
+     * 批量查询笔记（走缓存），返回 笔记id -> 笔记，保持ids的顺序
+     */
+    Map<Long, Blog> queryBlogByIds(Collection<Long> ids);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,10 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 查询秒杀订单的处理结果，结果仍为PENDING时在结果变化或等待waitMillis后完成
+     */
+    CompletableFuture<Result> queryOrderStatus(Long orderId, long waitMillis);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
 }
@@ -2,7 +2,6 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
@@ -13,6 +12,8 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.UserHolder;
 import org.redisson.api.RObject;
@@ -23,12 +24,18 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -51,8 +58,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryBlogById(Long id) {
+        // 0. 布隆过滤器判定不存在，不查数据库
+        if(!bloomFilterManager.mightContain(BloomFilterManager.BLOG, id)){
+            return Result.fail("笔记不存在");
+        }
         // 1. 查询Blog
         Blog blog = getById(id);
         if(blog == null){
@@ -99,14 +116,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
         // 解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        //根据用户id查询用户
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr +")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //根据用户id批量查询用户，结果保持点赞顺序
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserByIds(ids).values());
         return Result.ok(userDTOS);
     }
 
@@ -119,6 +130,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess){
             return Result.fail("新增笔记失败");
         }
+        bloomFilterManager.put(BloomFilterManager.BLOG, blog.getId());
 
         List<Follow> follows = followService.query().eq("follow_user_id",user.getId()).list();
 
@@ -165,13 +177,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
 //        os = minTime == max ? os : os + offset;
-        // 5.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        // 5.根据id批量查询blog，结果保持收件箱顺序
+        List<Blog> blogs = new ArrayList<>(queryBlogByIds(ids).values());
 
+        // 5.1.批量查询blog有关的用户
+        Map<Long, UserDTO> users = userService.queryUserByIds(
+                blogs.stream().map(Blog::getUserId).collect(Collectors.toList()));
         for (Blog blog : blogs) {
-            // 5.1.查询blog有关的用户
-            queryBlogUser(blog);
+            UserDTO user = users.get(blog.getUserId());
+            if(user != null){
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
             // 5.2.查询blog是否被点赞
             isBlogLiked(blog);
         }
@@ -185,6 +202,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
+    @Override
+    public Map<Long, Blog> queryBlogByIds(Collection<Long> ids) {
+        // 一次MGET + 一次IN查询，过期的笔记先返回旧值再异步重建
+        return cacheClient.queryBatchWithLogicExpire(CACHE_BLOG_KEY, ids, Blog.class,
+                misses -> listByIds(misses).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+    }
+
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
         User user = userService.getById(userId);
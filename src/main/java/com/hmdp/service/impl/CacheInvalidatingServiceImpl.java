@@ -0,0 +1,137 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.baomidou.mybatisplus.core.metadata.TableInfo;
+import com.baomidou.mybatisplus.core.metadata.TableInfoHelper;
+import com.baomidou.mybatisplus.core.toolkit.ReflectionKit;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheInvalidator;
+
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * 按id缓存的实体的服务基类：通过本服务的写方法修改后，经发件箱可靠地删除 keyPrefix + id 的缓存
+ * 需要在 @Transactional 方法中调用，事务提交后才删除缓存
+ * 1. 覆盖 save、updateById、updateBatchById、saveOrUpdate(经save/updateById)、saveOrUpdateBatch、
+ *    update(wrapper)、removeById、removeByIds、removeByMap、remove(wrapper)
+ * 2. 按条件修改或删除时先用同样的条件查出id，再执行修改
+ * 3. 链式的 update()/lambdaUpdate() 以及直接调用mapper不经过这里，不会删除缓存，这类写入需要自己调用 invalidate
+ * </p>
+ */
+public abstract class CacheInvalidatingServiceImpl<M extends BaseMapper<T>, T> extends ServiceImpl<M, T> {
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    /**
+     * 缓存key前缀，例如 RedisConstants.CACHE_SHOP_KEY
+     */
+    protected abstract String cacheKeyPrefix();
+
+    @Override
+    public boolean save(T entity) {
+        boolean saved = super.save(entity);
+        if (saved) {
+            // 删除可能缓存的空值
+            invalidate(idOf(entity));
+        }
+        return saved;
+    }
+
+    @Override
+    public boolean updateById(T entity) {
+        boolean updated = super.updateById(entity);
+        if (updated) {
+            invalidate(idOf(entity));
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean updateBatchById(Collection<T> entityList, int batchSize) {
+        boolean updated = super.updateBatchById(entityList, batchSize);
+        if (updated) {
+            entityList.forEach(entity -> invalidate(idOf(entity)));
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean saveOrUpdateBatch(Collection<T> entityList, int batchSize) {
+        boolean saved = super.saveOrUpdateBatch(entityList, batchSize);
+        if (saved) {
+            entityList.forEach(entity -> invalidate(idOf(entity)));
+        }
+        return saved;
+    }
+
+    @Override
+    public boolean update(T entity, Wrapper<T> updateWrapper) {
+        List<Object> ids = idsOf(updateWrapper);
+        boolean updated = super.update(entity, updateWrapper);
+        if (updated) {
+            ids.forEach(this::invalidate);
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean removed = super.removeById(id);
+        if (removed) {
+            invalidate(id);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeByIds(Collection<? extends Serializable> idList) {
+        boolean removed = super.removeByIds(idList);
+        if (removed) {
+            idList.forEach(this::invalidate);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeByMap(Map<String, Object> columnMap) {
+        List<T> entities = listByMap(columnMap);
+        boolean removed = super.removeByMap(columnMap);
+        if (removed) {
+            entities.forEach(entity -> invalidate(idOf(entity)));
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean remove(Wrapper<T> queryWrapper) {
+        List<Object> ids = idsOf(queryWrapper);
+        boolean removed = super.remove(queryWrapper);
+        if (removed) {
+            ids.forEach(this::invalidate);
+        }
+        return removed;
+    }
+
+    protected void invalidate(Object id) {
+        cacheInvalidator.invalidate(cacheKeyPrefix() + id);
+    }
+
+    /**
+     * 按条件查出受影响的id，selectObjs 只返回第一列，未指定select时第一列是主键
+     */
+    private List<Object> idsOf(Wrapper<T> wrapper) {
+        return getBaseMapper().selectObjs(wrapper);
+    }
+
+    private Object idOf(T entity) {
+        TableInfo tableInfo = TableInfoHelper.getTableInfo(getEntityClass());
+        return ReflectionKit.getFieldValue(entity, tableInfo.getKeyProperty());
+    }
+}
@@ -9,23 +9,24 @@ import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IShopService;
-import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheStrategy;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.connection.ReactiveNumberCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_LOGICAL_TTL;
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
 
 /**
@@ -37,17 +38,39 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
  * @since 2021-12-22
  */
 @Service
-public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
+public class ShopServiceImpl extends CacheInvalidatingServiceImpl<ShopMapper, Shop> implements IShopService {
 
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
-    //线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     @Resource
     private CacheClient cacheClient;
 
+    @Value("${hmdp.cache.shop.strategy:LOGIC_EXPIRE}")
+    private CacheStrategy cacheStrategy;
+
+    @Value("${hmdp.cache.local.shop.enabled:true}")
+    private boolean localCacheEnabled;
+
+    @Value("${hmdp.cache.local.shop.maximum-size:1000}")
+    private int localCacheMaximumSize;
+
+    @Value("${hmdp.cache.local.shop.ttl-seconds:10}")
+    private long localCacheTtlSeconds;
+
+    @PostConstruct
+    private void init() {
+        // 热点店铺开启进程内一级缓存
+        if (localCacheEnabled) {
+            cacheClient.enableLocalCache(CACHE_SHOP_KEY, localCacheMaximumSize, localCacheTtlSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    protected String cacheKeyPrefix() {
+        return CACHE_SHOP_KEY;
+    }
+
     @Override
     public Result queryById(Long id) {
         //缓存穿透
@@ -63,7 +86,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //        Shop shop = queryWithLogicExpire(id);
 
         Shop shop = cacheClient
-                .queryWithLogicExpire(CACHE_SHOP_KEY,id, Shop.class,this::getById,20L, TimeUnit.SECONDS);
+                .query(cacheStrategy, CACHE_SHOP_KEY,id, Shop.class,this::getById,CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
         if(shop == null){
             return Result.fail("店铺不存在");
         }
@@ -72,63 +95,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
 
     public Shop queryWithMutex(Long id){
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-
-        // 2. 判断是否存在  "abc" isNotBlank是否有实际的字符串
-        if(StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson,Shop.class);
-            return shop;
-        }
-
-        //命中的是否是空值 ”“
-        if(shopJson != null){
-            return null;
-        }
-        //  3. 存在，直接返回
-
-        //开始缓存重建
-            // 获取互斥锁
-            // 判断是否获取成功
-            //  失败，则休眠并重试
-            //  成功，则根据id查询数据集
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            if (isLock) {
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            shop = getById(id);
-
-            if (shop == null) {
-                //防止缓存穿透，将null值写入redis
-                stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //  5. 不存在，返回错误
-
-            // 6. 存在，写入redis
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop));
-            stringRedisTemplate.expire(CACHE_SHOP_KEY + id, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        }catch (InterruptedException e){
-            throw new RuntimeException(e);
-        }finally {
-            unlock(lockKey);
-        }
-
-        return shop;
-    }
-
-    private boolean tryLock(String key){
-       Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10,TimeUnit.SECONDS);
-       return BooleanUtil.isTrue(flag);
-    }
-
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+        // 互斥锁重建，同一节点内同一个店铺的并发请求合并为一次加锁和查库
+        return cacheClient
+                .queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     @Override
@@ -142,10 +111,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         // 更新策略
 //        1. 先更新数据库，2，删除缓存
+        // 事务提交后删除redis缓存并广播清理各节点的一级缓存，延迟再删一次，失败由发件箱重试
         updateById(shop);
 
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
-
         return Result.ok();
     }
 
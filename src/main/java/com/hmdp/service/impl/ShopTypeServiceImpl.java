@@ -1,15 +1,12 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -26,8 +23,8 @@ import java.util.List;
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
-    @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
 
     @Resource
     private IShopTypeService typeService;
@@ -35,10 +32,9 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Override
     public Result queryTypeList() {
 
-        String shopList = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_TYPE);
+        List<ShopType> shopTypes = cacheClient.getList(RedisConstants.CACHE_SHOP_TYPE, ShopType.class);
 
-        if(StrUtil.isNotBlank(shopList)){
-            List<ShopType> shopTypes = JSONUtil.toList(shopList, ShopType.class);
+        if(shopTypes != null){
             return Result.ok(shopTypes);
         }
 
@@ -48,7 +44,7 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             return Result.fail("无商店类型");
         }
 
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_TYPE, JSONUtil.toJsonStr(typeList));
+        cacheClient.setList(RedisConstants.CACHE_SHOP_TYPE, typeList, ShopType.class);
         return Result.ok(typeList);
     }
 }
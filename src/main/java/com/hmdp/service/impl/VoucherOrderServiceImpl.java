@@ -1,29 +1,79 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.NumberUtil;
+import com.hmdp.dto.OrderStatus;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.LatencyHistogram;
+import com.hmdp.utils.MetricsSource;
+import com.hmdp.utils.MetricsWriter;
+import com.hmdp.utils.OrderJournalManager;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.OrderTimeoutQueue;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SeckillQuota;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.NestedExceptionUtils;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
 
 /**
  * <p>
@@ -34,7 +84,7 @@ import java.util.concurrent.*;
  * @since 2021-12-22
  */
 @Service
-public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
+public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService, MetricsSource {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
@@ -46,115 +96,867 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SeckillMeta seckillMeta;
+
+    @Resource
+    private SeckillQuota seckillQuota;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private OrderJournalManager orderJournalManager;
+
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+
+    // 批量写入在异步线程中执行，用编程式事务
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    // 每批最多写入的订单数
+    @Value("${hmdp.order.batch-size:200}")
+    private int batchSize;
+
+    // 凑批的最长等待时间，即XREADGROUP的BLOCK时间
+    @Value("${hmdp.order.flush-interval-ms:50}")
+    private long flushIntervalMillis;
+
+    // pending消息空闲超过该时间后被认领重试
+    @Value("${hmdp.order.claim-idle-ms:30000}")
+    private long claimIdleMillis;
+
+    @Value("${hmdp.order.claim-interval-ms:5000}")
+    private long claimIntervalMillis;
+
+    // 投递次数达到该值后转入死信队列
+    @Value("${hmdp.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    // 库存分段时每次下单最多尝试的段数，首选段售罄时依次尝试后面的段
+    @Value("${hmdp.seckill.segment-attempts:2}")
+    private int segmentAttempts;
+
+    private final LongAdder persistedOrders = new LongAdder();
+    private final LongAdder persistedBatches = new LongAdder();
+    private final LongAdder duplicateOrders = new LongAdder();
+    private final LongAdder failedOrders = new LongAdder();
+    private final LongAdder claimedOrders = new LongAdder();
+    private final LongAdder deadLetterOrders = new LongAdder();
+    private final LongAdder cancelledOrders = new LongAdder();
+    // 每批写入数据库的耗时
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    // 下单到写入数据库的延迟
+    private final LatencyHistogram orderLag = new LatencyHistogram();
+    private volatile int lastBatchSize;
+    private volatile long lastLagMillis;
+
+    // tb_voucher_order.status：1未支付 4已取消
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_CANCELLED = 4;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    // 库存分段时扣减其中一段
+    private static final DefaultRedisScript<Long> SECKILL_SEGMENT_SCRIPT;
+    // 取消订单时归还一段的库存
+    private static final DefaultRedisScript<Long> SECKILL_RETURN_SCRIPT;
+    // 秒杀脚本返回值对应的失败原因
+    private static final String[] SECKILL_FAILURES = {null, "库存不足", "不能重复下单", "秒杀尚未开始", "秒杀已经结束"};
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SECKILL_SEGMENT_SCRIPT.setResultType(Long.class);
+        SECKILL_RETURN_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_return.lua"));
+        SECKILL_RETURN_SCRIPT.setResultType(Long.class);
     }
 
 
-    private BlockingQueue<VoucherOrder> orderTasks =new ArrayBlockingQueue<>(1024 * 1024);
+    // 订单按userId哈希分片，每个分片一个stream和一个消费线程，同一用户的订单总在同一分片中按顺序处理
+    // 修改分片数前需要等待所有分片的stream处理完
+    @Value("${hmdp.order.shards:4}")
+    private int shards;
+
+    //异步处理线程池，每个分片一个线程
+    private ExecutorService seckillOrderExecutor;
 
+    private VoucherOrderHandler[] handlers;
 
+    // 本节点在消费者组中的名字
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName();
 
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private volatile boolean running = true;
 
     //在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 重放redis丢失的已接受订单，消费线程启动前注册
+        orderJournalManager.start(this::replayOrders);
+        AtomicInteger threadIndex = new AtomicInteger();
+        seckillOrderExecutor = Executors.newFixedThreadPool(shards,
+                r -> new Thread(r, "seckill-order-" + threadIndex.getAndIncrement()));
+        handlers = new VoucherOrderHandler[shards];
+        for (int i = 0; i < shards; i++) {
+            handlers[i] = new VoucherOrderHandler(i);
+            createConsumerGroup(handlers[i].streamKey);
+            seckillOrderExecutor.submit(handlers[i]);
+        }
+        // 取消超时未支付的订单
+        orderTimeoutQueue.start(this::cancelUnpaidOrders);
     }
 
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdown();
+    }
+
+    /**
+     * 用户所在分片的stream
+     */
+    private String streamKey(Long userId) {
+        return STREAM_ORDERS_KEY + ":" + Math.floorMod(userId.hashCode(), shards);
+    }
+
+    private void createConsumerGroup(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(StandardCharsets.UTF_8),
+                    streamKey.getBytes(StandardCharsets.UTF_8),
+                    STREAM_ORDERS_GROUP.getBytes(StandardCharsets.UTF_8),
+                    "0".getBytes(StandardCharsets.UTF_8),
+                    "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            // 消费者组已存在
+            if (!String.valueOf(NestedExceptionUtils.getMostSpecificCause(e).getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 从一个分片 stream.orders:{shard} 的消费者组中批量读取订单，写入数据库提交后再ACK
+     * 多个节点使用同一个消费者组，各自读取不同的消息，增加节点即可提高吞吐
+     */
     private class VoucherOrderHandler implements Runnable{
 
+        private final int shard;
+
+        private final String streamKey;
+
+        // 本分片写入数据库的订单数
+        private final LongAdder persisted = new LongAdder();
+
+        private long lastClaimTime;
+
+        private VoucherOrderHandler(int shard) {
+            this.shard = shard;
+            this.streamKey = STREAM_ORDERS_KEY + ":" + shard;
+        }
+
         @Override
         public void run() {
-            while (true){
+            // 上次运行留下的订单在第一个分片的线程上重放，不阻塞启动
+            if (shard == 0) {
                 try {
-                    // 1.获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2.创建订单
-                    handleVoucherOrder(voucherOrder);
+                    orderJournalManager.replayRecovered();
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    log.error("重放上次运行留下的订单失败", e);
+                }
+            }
+            while (running){
+                try {
+                    // 1.定期认领超时未ACK的消息：本节点或其他节点宕机前读取但未处理完的订单
+                    if (System.currentTimeMillis() - lastClaimTime >= claimIntervalMillis) {
+                        lastClaimTime = System.currentTimeMillis();
+                        claimPending();
+                    }
+                    // 2.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK t STREAMS stream.orders:{shard} >
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(STREAM_ORDERS_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(flushIntervalMillis)),
+                            StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+                    if (records == null || records.isEmpty()) {
+                        continue;
+                    }
+                    // 3.批量创建订单，成功的ACK
+                    handleRecords(records);
+                } catch (Exception e) {
+                    // 未ACK的消息留在pending list中，超时后重新认领
+                    log.error("处理订单异常, shard=" + shard, e);
+                    sleepQuietly();
                 }
             }
         }
 
-        private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        /**
+         * 认领空闲超过claimIdleMillis的pending消息，投递次数过多的转入死信队列
+         */
+        private void claimPending() {
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(streamKey, STREAM_ORDERS_GROUP, Range.unbounded(), batchSize);
+            List<RecordId> retryIds = new ArrayList<>();
+            List<RecordId> deadIds = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() < claimIdleMillis) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                    deadIds.add(message.getId());
+                } else {
+                    retryIds.add(message.getId());
+                }
+            }
+            if (!deadIds.isEmpty()) {
+                for (MapRecord<String, Object, Object> record : claim(deadIds)) {
+                    deadLetter(record, "超过最大投递次数");
+                }
+            }
+            if (!retryIds.isEmpty()) {
+                List<MapRecord<String, Object, Object>> records = claim(retryIds);
+                claimedOrders.add(records.size());
+                if (!records.isEmpty()) {
+                    handleRecords(records);
+                }
+            }
+        }
+
+        private List<MapRecord<String, Object, Object>> claim(List<RecordId> ids) {
+            List<StringRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(streamKey, STREAM_ORDERS_GROUP, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdleMs(claimIdleMillis)
+                                    .ids(ids.toArray(new RecordId[0]))));
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+            if (claimed != null) {
+                for (StringRecord record : claimed) {
+                    records.add(StreamRecords.newRecord()
+                            .in(streamKey)
+                            .withId(record.getId())
+                            .ofMap(new LinkedHashMap<Object, Object>(record.getValue())));
+                }
+            }
+            return records;
+        }
 
-            //1.获取用户
-            Long userId = voucherOrder.getUserId();
-            // 2.创建锁对象
-            RLock lock = redissonClient.getLock("lock:order:" + userId);
-            // 3.尝试获取锁
-            boolean isLock = lock.tryLock();
-            // 4.判断是否获得锁成功
-            if (!isLock) {
-                // 获取锁失败，直接返回失败或者重试
-                log.error("不允许重复下单！");
+        private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+            Map<Long, RecordId> recordIds = new LinkedHashMap<>();
+            List<VoucherOrder> batch = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                VoucherOrder voucherOrder;
+                try {
+                    voucherOrder = toVoucherOrder(record);
+                } catch (Exception e) {
+                    // 无法解析的消息重试也不会成功
+                    deadLetter(record, "消息格式错误: " + e.getMessage());
+                    continue;
+                }
+                recordIds.put(voucherOrder.getId(), record.getId());
+                batch.add(voucherOrder);
+            }
+            if (batch.isEmpty()) {
                 return;
             }
+            Set<Long> failed = handleVoucherOrders(batch);
+            // 写入成功或重复的订单ACK，失败的留在pending list中等待重试
+            List<RecordId> acks = new ArrayList<>(recordIds.size());
+            recordIds.forEach((orderId, recordId) -> {
+                if (!failed.contains(orderId)) {
+                    acks.add(recordId);
+                }
+            });
+            acknowledge(acks);
+        }
+
+        private VoucherOrder toVoucherOrder(MapRecord<String, Object, Object> record) {
+            Map<Object, Object> value = record.getValue();
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(Long.valueOf(value.get("id").toString()));
+            voucherOrder.setUserId(Long.valueOf(value.get("userId").toString()));
+            voucherOrder.setVoucherId(Long.valueOf(value.get("voucherId").toString()));
+            // 消息id的前半部分是写入stream的毫秒时间戳，即下单时间
+            voucherOrder.setCreateTime(LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(record.getId().getTimestamp()), ZoneId.systemDefault()));
+            return voucherOrder;
+        }
+
+        private void deadLetter(MapRecord<String, Object, Object> record, String reason) {
+            Map<Object, Object> value = new LinkedHashMap<>(record.getValue());
+            value.put("sourceId", record.getId().getValue());
+            value.put("reason", reason);
+            stringRedisTemplate.opsForStream().add(STREAM_ORDERS_DLQ_KEY, value);
+            acknowledge(Collections.singletonList(record.getId()));
+            deadLetterOrders.increment();
             try {
-                //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-                proxy.createVoucherOrder(voucherOrder);
-            } finally {
-                // 释放锁
-                lock.unlock();
+                orderStatusTracker.markFailed(Collections.singletonList(toVoucherOrder(record)), reason);
+            } catch (Exception e) {
+                // 消息格式错误时无法解析出订单id
             }
+            log.error("订单消息转入死信队列, recordId=" + record.getId() + ", reason=" + reason);
         }
 
+        /**
+         * ACK后删除消息，stream中只保留未处理完的订单
+         */
+        private void acknowledge(List<RecordId> ids) {
+            if (ids.isEmpty()) {
+                return;
+            }
+            RecordId[] array = ids.toArray(new RecordId[0]);
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, STREAM_ORDERS_GROUP, array);
+            stringRedisTemplate.opsForStream().delete(streamKey, array);
+        }
 
-    }
+        /**
+         * 批量创建订单
+         * @return 写入失败的订单id
+         */
+        private Set<Long> handleVoucherOrders(List<VoucherOrder> batch) {
+            long begin = System.nanoTime();
+            // 已经创建过的订单（重复投递）和因一人一单被拒绝的订单
+            List<VoucherOrder> created = new ArrayList<>();
+            List<VoucherOrder> rejected = new ArrayList<>();
+            // 1.同一批内同一个用户对同一张券只保留一单
+            Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+            for (VoucherOrder voucherOrder : batch) {
+                VoucherOrder kept = unique.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+                if (kept != null && !kept.getId().equals(voucherOrder.getId())) {
+                    rejected.add(voucherOrder);
+                }
+            }
+            // 2.去掉数据库中已经存在的，代替逐单加锁判断一人一单；重复投递的消息也在这里过滤
+            List<VoucherOrder> orders = removeExisting(unique, created, rejected);
+            duplicateOrders.add(batch.size() - orders.size());
+            // 重复投递的订单也重新加入超时队列，上次可能在加入前失败
+            orderTimeoutQueue.schedule(created);
+            orderStatusTracker.markCreated(created);
+            orderStatusTracker.markFailed(rejected, "不能重复下单");
+            Set<Long> failed = new HashSet<>();
+            if (orders.isEmpty()) {
+                return failed;
+            }
+            // 3.一个事务中写入整批订单并扣减库存
+            try {
+                transactionTemplate.executeWithoutResult(status -> saveVoucherOrders(orders));
+                recordPersisted(orders);
+            } catch (Exception e) {
+                // 整批失败时逐单重试，只留下有问题的订单
+                log.error("批量创建订单失败，改为逐单写入, size=" + orders.size(), e);
+                for (VoucherOrder voucherOrder : orders) {
+                    try {
+                        transactionTemplate.executeWithoutResult(status ->
+                                saveVoucherOrders(Collections.singletonList(voucherOrder)));
+                        recordPersisted(Collections.singletonList(voucherOrder));
+                    } catch (Exception ex) {
+                        failed.add(voucherOrder.getId());
+                        failedOrders.increment();
+                        log.error("创建订单失败, orderId=" + voucherOrder.getId(), ex);
+                    }
+                }
+            }
+            flushLatency.recordSince(begin);
+            persistedBatches.increment();
+            lastBatchSize = orders.size();
+            // 失败的订单保持PENDING，等待重试或转入死信队列
+            List<VoucherOrder> persisted = new ArrayList<>(orders.size());
+            for (VoucherOrder voucherOrder : orders) {
+                if (!failed.contains(voucherOrder.getId())) {
+                    persisted.add(voucherOrder);
+                }
+            }
+            // 加入失败时抛出异常，整批不ACK，重新投递时作为重复订单再次加入
+            orderTimeoutQueue.schedule(persisted);
+            orderStatusTracker.markCreated(persisted);
+            return failed;
+        }
 
-    private IVoucherOrderService proxy;
+        private List<VoucherOrder> removeExisting(Map<String, VoucherOrder> unique,
+                                                  List<VoucherOrder> created, List<VoucherOrder> rejected) {
+            Set<Long> userIds = new HashSet<>();
+            Set<Long> voucherIds = new HashSet<>();
+            for (VoucherOrder voucherOrder : unique.values()) {
+                userIds.add(voucherOrder.getUserId());
+                voucherIds.add(voucherOrder.getVoucherId());
+            }
+            List<VoucherOrder> existing = query()
+                    .select("id", "user_id", "voucher_id", "status")
+                    .in("voucher_id", voucherIds)
+                    .in("user_id", userIds)
+                    .list();
+            for (VoucherOrder voucherOrder : existing) {
+                String key = voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId();
+                VoucherOrder pending = unique.get(key);
+                if (pending == null) {
+                    continue;
+                }
+                // 同一个订单说明是重复投递，已经创建成功；已取消的其他订单不影响再次下单
+                if (pending.getId().equals(voucherOrder.getId())) {
+                    created.add(unique.remove(key));
+                } else if (voucherOrder.getStatus() == null || voucherOrder.getStatus() != STATUS_CANCELLED) {
+                    rejected.add(unique.remove(key));
+                }
+            }
+            return new ArrayList<>(unique.values());
+        }
+
+        private void sleepQuietly() {
+            try {
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+
+        private void recordPersisted(List<VoucherOrder> orders) {
+            persisted.add(orders.size());
+            persistedOrders.add(orders.size());
+            LocalDateTime now = LocalDateTime.now();
+            for (VoucherOrder voucherOrder : orders) {
+                long lag = Duration.between(voucherOrder.getCreateTime(), now).toNanos();
+                orderLag.record(lag);
+                lastLagMillis = TimeUnit.NANOSECONDS.toMillis(lag);
+            }
+        }
+    }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 已售罄的券直接在本地拒绝
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 不在秒杀时间内的请求直接在本地拒绝，临界时间由脚本判断；配额模式不执行脚本，按本地时钟严格判断
+        String rejected = seckillQuota.isEnabled() ? seckillMeta.checkStrict(voucherId) : seckillMeta.check(voucherId);
+        if (rejected != null) {
+            return Result.fail(rejected);
+        }
 
         // 获取用户
         Long userId = UserHolder.getUser().getId();
 
-        //1. 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),userId.toString()
-        );
+        // 订单id
+        long orderId = redisIdWorker.nextId("order");
 
-        // 2. 判断结果是否为0
-        int r = result.intValue();
-        if(r != 0){
-            return  Result.fail(r == 1 ? "库存不足":"不能重复下单");
+        // 预占本地日志的位置，日志缓冲区已满时直接拒绝，不执行脚本
+        long journalSequence = orderJournalManager.reserve();
+        if (journalSequence == OrderJournalManager.FULL) {
+            return Result.fail("下单人数过多，请稍后再试");
         }
 
-            // 2.2 为0
-        VoucherOrder voucherOrder = new VoucherOrder();
-        // 2.3.订单id
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        // 2.4.用户id
-        voucherOrder.setUserId(userId);
-        // 2.5.代金券id
-        voucherOrder.setVoucherId(voucherId);
-        // 2.6.放入阻塞队列
-        orderTasks.add(voucherOrder);
+        //1. 执行lua脚本，判断购买资格并把订单写入用户所在分片的stream
+        int r = -1;
+        try {
+            r = seckillQuota.isEnabled()
+                    ? executeQuotaSeckill(voucherId, userId, orderId)
+                    : executeSeckill(voucherId, userId, orderId);
+        } finally {
+            // 脚本没有接受订单或抛出任何异常(包括Error)时放弃预占的位置，否则刷盘线程会一直停在这个位置
+            if (r != 0) {
+                orderJournalManager.cancel(journalSequence);
+            }
+        }
 
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        // 2. 判断结果是否为0，售罄标记在executeSeckill中记录
+        if(r != 0){
+            return  Result.fail(SECKILL_FAILURES[r]);
+        }
 
+        // 3.为0，订单已进入消息队列，由后台线程写入数据库；返回前写入本地日志，redis丢失订单时从日志找回
+        orderJournalManager.append(journalSequence, orderId, userId, voucherId);
         return Result.ok(orderId);
     }
 
+    /**
+     * 重新写入redis中丢失的订单：恢复一人一单标记(用户首选段)、处理结果和订单消息，不扣减库存
+     * redis库存随订单一起丢失，订单写入数据库后由库存对账按数据库修正
+     */
+    private void replayOrders(List<VoucherOrder> orders) {
+        List<Integer> counts = new ArrayList<>(orders.size());
+        for (VoucherOrder voucherOrder : orders) {
+            counts.add(seckillStock.segments(voucherOrder.getVoucherId()));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < orders.size(); i++) {
+                VoucherOrder voucherOrder = orders.get(i);
+                Long voucherId = voucherOrder.getVoucherId();
+                Long userId = voucherOrder.getUserId();
+                int count = counts.get(i);
+                int home = seckillStock.homeSegment(voucherId, userId);
+                conn.sAdd(seckillStock.orderKey(voucherId, home, count), userId.toString());
+                if (count > 1 || seckillQuota.isEnabled()) {
+                    conn.set(seckillStock.buyerKey(voucherId, userId), String.valueOf(home));
+                }
+                String statusKey = ORDER_STATUS_KEY + voucherOrder.getId();
+                Map<String, String> status = new LinkedHashMap<>();
+                status.put("userId", userId.toString());
+                status.put("voucherId", voucherId.toString());
+                status.put("status", OrderStatus.PENDING);
+                conn.hMSet(statusKey, status);
+                conn.expire(statusKey, orderStatusTracker.getTtlSeconds());
+                // 字段和秒杀脚本写入的一致
+                Map<String, String> value = new LinkedHashMap<>();
+                value.put("userId", userId.toString());
+                value.put("voucherId", voucherId.toString());
+                value.put("id", voucherOrder.getId().toString());
+                conn.xAdd(StreamRecords.string(value).withStreamKey(streamKey(userId)));
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * 不分段时一次脚本调用完成下单；分段时(用于Redis Cluster，每次调用只访问同一个hash slot)：
+     * 1. SET NX 占用 seckill:buyer:{voucherId:userId}，已存在说明重复下单，返回2
+     * 2. 从用户的首选段开始，跳过本节点记录的售罄段，最多尝试segmentAttempts段，每段一次只访问本段key的脚本
+     * 3. 扣减成功后一次pipeline写入下单的段、订单消息和处理结果；没有扣减成功时删除占用的标记
+     * 返回1表示库存不足，尝试的段都售罄但还有未尝试的段时也返回1，用户重试时跳过已售罄的段；3/4表示不在秒杀时间内
+     */
+    private int executeSeckill(Long voucherId, Long userId, long orderId) {
+        int count = seckillStock.segments(voucherId);
+        String streamKey = streamKey(userId);
+        if (count == 1) {
+            int r = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Arrays.asList(streamKey, seckillStock.stockKey(voucherId, 0, count),
+                            seckillStock.orderKey(voucherId, 0, count), ORDER_STATUS_KEY + orderId,
+                            seckillMeta.key(voucherId)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    String.valueOf(orderStatusTracker.getTtlSeconds())
+            ).intValue();
+            if (r == 1) {
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            return r;
+        }
+        // 1.占用一人一单标记，值在下单成功后改为下单的段
+        String buyerKey = seckillStock.buyerKey(voucherId, userId);
+        if (!BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(buyerKey, String.valueOf(orderId)))) {
+            return 2;
+        }
+        // 2.依次尝试各段
+        int segment = -1;
+        int r = 1;
+        try {
+            int home = seckillStock.homeSegment(voucherId, userId);
+            int attempts = 0;
+            for (int i = 0; i < count && attempts < segmentAttempts; i++) {
+                int s = (home + i) % count;
+                if (soldOutRegistry.isSoldOut(voucherId, s)) {
+                    continue;
+                }
+                attempts++;
+                r = stringRedisTemplate.execute(
+                        SECKILL_SEGMENT_SCRIPT,
+                        Arrays.asList(seckillStock.stockKey(voucherId, s, count),
+                                seckillStock.orderKey(voucherId, s, count), seckillStock.metaKey(voucherId, s, count)),
+                        userId.toString()
+                ).intValue();
+                if (r == 1) {
+                    soldOutRegistry.markSoldOut(voucherId, s, count);
+                    continue;
+                }
+                if (r == 0) {
+                    segment = s;
+                }
+                break;
+            }
+        } finally {
+            if (segment < 0) {
+                stringRedisTemplate.delete(buyerKey);
+            }
+        }
+        if (segment < 0) {
+            return r;
+        }
+        // 3.写入下单的段、订单消息和处理结果，字段和 seckill.lua 写入的一致
+        String value = String.valueOf(segment);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.set(buyerKey, value);
+                Map<String, String> message = new LinkedHashMap<>();
+                message.put("userId", userId.toString());
+                message.put("voucherId", voucherId.toString());
+                message.put("id", String.valueOf(orderId));
+                conn.xAdd(StreamRecords.string(message).withStreamKey(streamKey));
+                String statusKey = ORDER_STATUS_KEY + orderId;
+                Map<String, String> status = new LinkedHashMap<>();
+                status.put("userId", userId.toString());
+                status.put("voucherId", voucherId.toString());
+                status.put("status", OrderStatus.PENDING);
+                conn.hMSet(statusKey, status);
+                conn.expire(statusKey, orderStatusTracker.getTtlSeconds());
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // 订单消息可能没有写入，归还本段库存并释放标记；即使消息已写入，数据库扣减库存时也不会超卖
+            try {
+                stringRedisTemplate.execute(SECKILL_RETURN_SCRIPT,
+                        Arrays.asList(seckillStock.stockKey(voucherId, segment, count),
+                                seckillStock.orderKey(voucherId, segment, count)),
+                        userId.toString());
+                stringRedisTemplate.delete(buyerKey);
+            } catch (RuntimeException ex) {
+                e.addSuppressed(ex);
+            }
+            throw e;
+        }
+        return 0;
+    }
+
+    /**
+     * 取消一批超时未支付的订单并归还库存：
+     * 1. 一个事务中锁定仍未支付的订单，一条UPDATE改为已取消，每张券一条语句归还数据库库存
+     * 2. 提交后每段一次脚本删除下单用户并归还redis库存，其他节点的售罄标记随之清除
+     * 3. 订单处理结果改为 CANCELLED 并通知等待的长轮询
+     * 已支付的订单不满足status条件，不会被取消；第2步失败时redis库存由库存对账修正
+     */
+    private void cancelUnpaidOrders(List<Long> orderIds) {
+        List<VoucherOrder> cancelled = transactionTemplate.execute(status -> {
+            List<VoucherOrder> orders = query()
+                    .select("id", "user_id", "voucher_id")
+                    .in("id", orderIds)
+                    .eq("status", STATUS_UNPAID)
+                    .last("FOR UPDATE")
+                    .list();
+            if (orders.isEmpty()) {
+                return orders;
+            }
+            List<Long> ids = new ArrayList<>(orders.size());
+            Map<Long, Integer> counts = new TreeMap<>();
+            for (VoucherOrder voucherOrder : orders) {
+                ids.add(voucherOrder.getId());
+                counts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+            }
+            update().set("status", STATUS_CANCELLED)
+                    .in("id", ids)
+                    .eq("status", STATUS_UNPAID)
+                    .update();
+            // 和扣减库存一样按券id顺序加行锁
+            counts.forEach(seckillVoucherMapper::increaseStock);
+            return orders;
+        });
+        if (cancelled == null || cancelled.isEmpty()) {
+            return;
+        }
+        cancelledOrders.add(cancelled.size());
+        orderStatusTracker.markCancelled(cancelled);
+        returnRedisStock(cancelled);
+    }
+
+    /**
+     * 在下单的段执行归还脚本：删除下单用户，删除成功才加回库存，重复归还不会多加
+     * 分段或配额模式时从 seckill:buyer 读取下单的段，读不到时(例如开启配额模式前的订单或标记还未改为段号)在所有段执行，用户最多在其中一段
+     */
+    private void returnRedisStock(List<VoucherOrder> orders) {
+        List<Integer> counts = new ArrayList<>(orders.size());
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : orders) {
+            counts.add(seckillStock.segments(voucherOrder.getVoucherId()));
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        // 1.一次pipeline读取有一人一单标记的订单下单的段
+        boolean quota = seckillQuota.isEnabled();
+        List<Object> segments = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < orders.size(); i++) {
+                if (counts.get(i) > 1 || quota) {
+                    conn.get(seckillStock.buyerKey(orders.get(i).getVoucherId(), orders.get(i).getUserId()));
+                }
+            }
+            return null;
+        });
+        // 2.一次pipeline归还库存并删除一人一单标记
+        String script = SECKILL_RETURN_SCRIPT.getScriptAsString();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            int index = 0;
+            for (int i = 0; i < orders.size(); i++) {
+                Long voucherId = orders.get(i).getVoucherId();
+                Long userId = orders.get(i).getUserId();
+                int count = counts.get(i);
+                int from = 0;
+                int to = count;
+                if (count > 1 || quota) {
+                    Object segment = segments.get(index++);
+                    if (segment != null && NumberUtil.isInteger(segment.toString())) {
+                        int s = Integer.parseInt(segment.toString());
+                        if (s >= 0 && s < count) {
+                            from = s;
+                            to = s + 1;
+                        }
+                    }
+                    conn.del(seckillStock.buyerKey(voucherId, userId));
+                }
+                for (int s = from; s < to; s++) {
+                    conn.eval(script, ReturnType.INTEGER, 2, seckillStock.stockKey(voucherId, s, count),
+                            seckillStock.orderKey(voucherId, s, count), userId.toString());
+                }
+            }
+            return null;
+        });
+        for (Long voucherId : voucherIds) {
+            soldOutRegistry.reset(voucherId);
+        }
+    }
+
+    /**
+     * 配额模式：下单不执行脚本，也不修改共享的租约
+     * 1. 在本地判断重复下单并取一个本地配额
+     * 2. SET NX 占用 seckill:buyer:{voucherId:userId}，值为用户首选段，已存在说明重复下单，退回配额
+     * 3. 一次pipeline写入首选段的下单用户、订单消息、处理结果和本节点的销量，租约在续期和归还时按销量批量扣除
+     */
+    private int executeQuotaSeckill(Long voucherId, Long userId, long orderId) {
+        if (seckillQuota.isPurchased(voucherId, userId)) {
+            return 2;
+        }
+        if (!seckillQuota.acquire(voucherId)) {
+            return 1;
+        }
+        // 1.占用一人一单标记
+        int count = seckillStock.segments(voucherId);
+        int home = seckillStock.homeSegment(voucherId, userId);
+        String buyerKey = seckillStock.buyerKey(voucherId, userId);
+        boolean claimed = false;
+        try {
+            claimed = BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(buyerKey, String.valueOf(home)));
+        } finally {
+            if (!claimed) {
+                seckillQuota.refund(voucherId);
+            }
+        }
+        if (!claimed) {
+            seckillQuota.purchased(voucherId, userId, false);
+            return 2;
+        }
+        // 2.写入下单用户、订单消息、处理结果和销量，字段和 seckill.lua 写入的一致
+        String orderKey = seckillStock.orderKey(voucherId, home, count);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.sAdd(orderKey, userId.toString());
+                Map<String, String> message = new LinkedHashMap<>();
+                message.put("userId", userId.toString());
+                message.put("voucherId", voucherId.toString());
+                message.put("id", String.valueOf(orderId));
+                conn.xAdd(StreamRecords.string(message).withStreamKey(streamKey(userId)));
+                String statusKey = ORDER_STATUS_KEY + orderId;
+                Map<String, String> status = new LinkedHashMap<>();
+                status.put("userId", userId.toString());
+                status.put("voucherId", voucherId.toString());
+                status.put("status", OrderStatus.PENDING);
+                conn.hMSet(statusKey, status);
+                conn.expire(statusKey, orderStatusTracker.getTtlSeconds());
+                conn.incr(seckillQuota.soldKey(voucherId));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // 订单消息可能没有写入，删除下单用户并释放标记；销量是否写入未知，本地配额不退回，偏差由库存对账修正，
+            // 即使消息已写入，数据库扣减库存时也不会超卖
+            try {
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+                stringRedisTemplate.delete(buyerKey);
+            } catch (RuntimeException ex) {
+                e.addSuppressed(ex);
+            }
+            throw e;
+        }
+        seckillQuota.purchased(voucherId, userId, true);
+        return 0;
+    }
+
+    @Override
+    public CompletableFuture<Result> queryOrderStatus(Long orderId, long waitMillis) {
+        Long userId = UserHolder.getUser().getId();
+        OrderStatus orderStatus = orderStatusTracker.get(orderId);
+        if (orderStatus == null) {
+            // 结果已过期，以数据库为准
+            VoucherOrder voucherOrder = getById(orderId);
+            if (voucherOrder == null || !userId.equals(voucherOrder.getUserId())) {
+                return CompletableFuture.completedFuture(Result.fail("订单不存在"));
+            }
+            orderStatus = new OrderStatus();
+            orderStatus.setOrderId(orderId);
+            orderStatus.setUserId(userId);
+            orderStatus.setVoucherId(voucherOrder.getVoucherId());
+            orderStatus.setStatus(voucherOrder.getStatus() != null && voucherOrder.getStatus() == STATUS_CANCELLED
+                    ? OrderStatus.CANCELLED : OrderStatus.CREATED);
+        } else if (!userId.equals(orderStatus.getUserId())) {
+            return CompletableFuture.completedFuture(Result.fail("订单不存在"));
+        }
+        return orderStatusTracker.await(orderStatus, waitMillis);
+    }
 
     @Transactional
     @Override
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        save(voucherOrder);
-        return ;
+        saveVoucherOrders(Collections.singletonList(voucherOrder));
+    }
+
+    /**
+     * 一条多行INSERT写入订单，每张券合并成一条库存扣减，需要在事务中调用
+     */
+    private void saveVoucherOrders(List<VoucherOrder> orders) {
+        getBaseMapper().insertBatch(orders);
+        // 多个分片并发扣减同一批券时，按券id顺序加行锁，避免死锁
+        Map<Long, Integer> counts = new TreeMap<>();
+        for (VoucherOrder voucherOrder : orders) {
+            counts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+        }
+        counts.forEach((voucherId, count) -> {
+            if (seckillVoucherMapper.decreaseStock(voucherId, count) == 0) {
+                throw new RuntimeException("库存不足, voucherId=" + voucherId + ", count=" + count);
+            }
+        });
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        long[] depths = new long[shards];
+        long maxDepth = 0L;
+        long totalDepth = 0L;
+        for (int i = 0; i < shards; i++) {
+            Long size = stringRedisTemplate.opsForStream().size(handlers[i].streamKey);
+            depths[i] = size == null ? 0L : size;
+            maxDepth = Math.max(maxDepth, depths[i]);
+            totalDepth += depths[i];
+        }
+        for (int i = 0; i < shards; i++) {
+            writer.gauge("hmdp_order_queue_depth", "Orders in the shard stream not yet acknowledged", depths[i],
+                    "shard", String.valueOf(i));
+        }
+        for (VoucherOrderHandler handler : handlers) {
+            writer.counter("hmdp_order_shard_persisted_total", "Orders persisted by shard", handler.persisted.sum(),
+                    "shard", String.valueOf(handler.shard));
+        }
+        // 最深分片和平均深度之比，1表示完全均衡
+        writer.gauge("hmdp_order_shard_imbalance", "Deepest shard queue divided by the mean shard queue depth",
+                totalDepth == 0L ? 1D : maxDepth * (double) shards / totalDepth)
+                .gauge("hmdp_order_last_batch_size", "Orders persisted by the last batch", lastBatchSize)
+                .gauge("hmdp_order_last_lag_seconds", "Lag of the last persisted order", lastLagMillis / 1000D)
+                .counter("hmdp_order_persisted_total", "Orders persisted", persistedOrders.sum())
+                .counter("hmdp_order_batches_total", "Order batches persisted", persistedBatches.sum())
+                .counter("hmdp_order_duplicates_total", "Orders dropped as duplicates", duplicateOrders.sum())
+                .counter("hmdp_order_failed_total", "Orders that failed to persist", failedOrders.sum())
+                .counter("hmdp_order_claimed_total", "Pending orders claimed for retry", claimedOrders.sum())
+                .counter("hmdp_order_dead_letter_total", "Orders moved to the dead letter stream", deadLetterOrders.sum())
+                .counter("hmdp_order_cancelled_total", "Unpaid orders cancelled after the payment timeout", cancelledOrders.sum())
+                .histogram("hmdp_order_flush_seconds", "Time to persist one batch", flushLatency)
+                .histogram("hmdp_order_lag_seconds", "Time from order creation to persistence", orderLag);
     }
 
 
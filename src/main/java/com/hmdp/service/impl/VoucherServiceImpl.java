@@ -7,14 +7,25 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SoldOutRegistry;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_TTL;
 
 /**
  * <p>
@@ -31,14 +42,29 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SeckillMeta seckillMeta;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询店铺上架的优惠券id
+        List<Long> ids = listObjs(query().select("id").eq("shop_id", shopId).eq("status", 1).getWrapper(),
+                id -> ((Number) id).longValue());
+        // 一次MGET + 一次IN查询优惠券信息，过期的先返回旧值再异步重建
+        Map<Long, Voucher> vouchers = cacheClient.queryBatchWithLogicExpire(CACHE_VOUCHER_KEY, ids, Voucher.class,
+                misses -> getBaseMapper().queryVoucherByIds(misses).stream()
+                        .collect(Collectors.toMap(Voucher::getId, Function.identity())),
+                CACHE_VOUCHER_TTL, TimeUnit.MINUTES);
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(new ArrayList<>(vouchers.values()));
     }
 
     @Override
@@ -54,6 +80,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存库存到redis，按配置分段
+        seckillStock.init(voucher.getId(), voucher.getStock());
+        // 保存秒杀时间到redis，秒杀脚本和本地都按它判断
+        seckillMeta.init(seckillVoucher);
+        // 库存已补充，提交后清除各节点的售罄标记
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                soldOutRegistry.reset(voucher.getId());
+            }
+        });
     }
 }
@@ -0,0 +1,269 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 布隆过滤器，位图保存在redis，本地保存一份镜像
+ * 查询只读本地镜像，不访问网络；新增同时写本地和redis
+ */
+public class BloomFilter {
+
+    private final String name;
+
+    private final String redisKey;
+
+    // 位数组长度
+    private final long numBits;
+
+    // hash函数个数
+    private final int numHashes;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // 本地镜像，重建时整体替换
+    private volatile AtomicLongArray bits;
+
+    // 初始化完成前放行所有请求
+    private volatile boolean ready;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder rejects = new LongAdder();
+    private final LongAdder inserts = new LongAdder();
+
+    public BloomFilter(String name, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        this.name = name;
+        this.redisKey = RedisConstants.BLOOM_KEY + name;
+        this.numBits = optimalNumOfBits(expectedInsertions, fpp);
+        this.numHashes = optimalNumOfHashes(expectedInsertions, numBits);
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.bits = newBits(numBits);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getRedisKey() {
+        return redisKey;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 是否可能存在，返回false则一定不存在
+     */
+    public boolean mightContain(Object id) {
+        if (!ready) {
+            return true;
+        }
+        AtomicLongArray current = bits;
+        long[] indexes = indexes(id);
+        for (long index : indexes) {
+            if ((current.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                rejects.increment();
+                return false;
+            }
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * 新增元素，写本地镜像并用一次pipeline写redis位图
+     */
+    public void put(Object id) {
+        long[] indexes = indexes(id);
+        putLocal(indexes);
+        byte[] rawKey = redisKey.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long index : indexes) {
+                connection.setBit(rawKey, index, true);
+            }
+            return null;
+        });
+        inserts.increment();
+    }
+
+    /**
+     * 只写本地镜像，用于接收其他节点的新增广播
+     */
+    public void putLocal(Object id) {
+        putLocal(indexes(id));
+    }
+
+    private void putLocal(long[] indexes) {
+        AtomicLongArray current = bits;
+        for (long index : indexes) {
+            setBit(current, index);
+        }
+    }
+
+    /**
+     * 用一批id生成新的位图，写入redis后替换本地镜像
+     */
+    public void rebuild(Collection<?> ids) {
+        AtomicLongArray rebuilt = newBits(numBits);
+        for (Object id : ids) {
+            for (long index : indexes(id)) {
+                setBit(rebuilt, index);
+            }
+        }
+        byte[] bytes = toRedisBytes(rebuilt);
+        byte[] rawKey = redisKey.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (redisKey + ":tmp").getBytes(StandardCharsets.UTF_8);
+        byte[] metaKey = (redisKey + ":meta").getBytes(StandardCharsets.UTF_8);
+        byte[] meta = meta().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            // 先写临时key再rename，避免其他节点读到写了一半的位图
+            connection.set(tmpKey, bytes);
+            connection.rename(tmpKey, rawKey);
+            connection.set(metaKey, meta);
+            return null;
+        });
+        this.bits = rebuilt;
+        this.ready = true;
+    }
+
+    /**
+     * 从redis加载位图到本地镜像
+     * @return redis中不存在或大小不一致时返回false，需要从数据库重建
+     */
+    public boolean reloadFromRedis() {
+        byte[] rawKey = redisKey.getBytes(StandardCharsets.UTF_8);
+        byte[] metaKey = (redisKey + ":meta").getBytes(StandardCharsets.UTF_8);
+        byte[][] result = stringRedisTemplate.execute((RedisCallback<byte[][]>) connection ->
+                new byte[][]{connection.get(metaKey), connection.get(rawKey)});
+        if (result == null || result[0] == null || result[1] == null
+                || !meta().equals(new String(result[0], StandardCharsets.UTF_8))) {
+            return false;
+        }
+        this.bits = fromRedisBytes(result[1], numBits);
+        this.ready = true;
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("numBits", numBits);
+        stats.put("numHashes", numHashes);
+        stats.put("hitCount", hits.sum());
+        stats.put("rejectCount", rejects.sum());
+        stats.put("insertCount", inserts.sum());
+        return stats;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getRejectCount() {
+        return rejects.sum();
+    }
+
+    private String meta() {
+        return numBits + "," + numHashes;
+    }
+
+    // 双重hash：h1 + i * h2
+    private long[] indexes(Object id) {
+        byte[] bytes = String.valueOf(id).getBytes(StandardCharsets.UTF_8);
+        long h1 = fmix64(fnv1a64(bytes));
+        long h2 = fmix64(h1 ^ 0x9E3779B97F4A7C15L);
+        long[] indexes = new long[numHashes];
+        long combined = h1;
+        for (int i = 0; i < numHashes; i++) {
+            combined += h2;
+            indexes[i] = (combined & Long.MAX_VALUE) % numBits;
+        }
+        return indexes;
+    }
+
+    private static long fnv1a64(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static void setBit(AtomicLongArray array, long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = array.get(word);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!array.compareAndSet(word, old, old | mask));
+    }
+
+    private static AtomicLongArray newBits(long numBits) {
+        return new AtomicLongArray((int) ((numBits + 63) >>> 6));
+    }
+
+    // redis位图中第0位是第一个字节的最高位
+    private static byte[] toRedisBytes(AtomicLongArray array) {
+        byte[] bytes = new byte[array.length() * 8];
+        for (int word = 0; word < array.length(); word++) {
+            long value = array.get(word);
+            if (value == 0) {
+                continue;
+            }
+            for (int bit = 0; bit < 64; bit++) {
+                if ((value & (1L << bit)) != 0) {
+                    long index = ((long) word << 6) + bit;
+                    bytes[(int) (index >>> 3)] |= (byte) (0x80 >>> (index & 7));
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static AtomicLongArray fromRedisBytes(byte[] bytes, long numBits) {
+        long[] words = new long[(int) ((numBits + 63) >>> 6)];
+        int limit = (int) Math.min(bytes.length, (numBits + 7) >>> 3);
+        for (int i = 0; i < limit; i++) {
+            int b = bytes[i] & 0xff;
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                if ((b & (0x80 >>> j)) != 0) {
+                    long index = ((long) i << 3) + j;
+                    words[(int) (index >>> 6)] |= 1L << index;
+                }
+            }
+        }
+        return new AtomicLongArray(words);
+    }
+
+    private static long optimalNumOfBits(long n, double p) {
+        return (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    }
+
+    private static int optimalNumOfHashes(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+}
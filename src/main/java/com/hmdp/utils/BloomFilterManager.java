@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 管理店铺、笔记、用户id的布隆过滤器：启动时加载、新增时同步、定时重建
+ */
+@Slf4j
+@Component
+public class BloomFilterManager implements MessageListener, MetricsSource {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    // 从数据库分批扫描id的批次大小
+    private static final int SCAN_BATCH_SIZE = 1000;
+
+    private static final ExecutorService BLOOM_INIT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    private final Map<String, BloomFilter> filters = new LinkedHashMap<>();
+
+    private final Map<String, BaseMapper<?>> sources = new LinkedHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        register(SHOP, shopMapper, RedisConstants.CACHE_SHOP_KEY);
+        register(BLOG, blogMapper, RedisConstants.CACHE_BLOG_KEY);
+        register(USER, userMapper, RedisConstants.CACHE_USER_KEY);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.BLOOM_CHANNEL));
+        // 异步加载，加载完成前过滤器放行所有请求
+        BLOOM_INIT_EXECUTOR.submit(() -> filters.values().forEach(this::load));
+    }
+
+    private void register(String name, BaseMapper<?> mapper, String keyPrefix) {
+        BloomFilter filter = new BloomFilter(name, expectedInsertions, fpp, stringRedisTemplate);
+        filters.put(name, filter);
+        sources.put(name, mapper);
+        if (keyPrefix != null) {
+            cacheClient.registerBloomFilter(keyPrefix, filter);
+        }
+    }
+
+    /**
+     * 是否可能存在，未开启时一律返回true
+     */
+    public boolean mightContain(String name, Object id) {
+        BloomFilter filter = filters.get(name);
+        return filter == null || filter.mightContain(id);
+    }
+
+    /**
+     * 新增数据后调用，写入过滤器并通知其他节点
+     */
+    public void put(String name, Object id) {
+        BloomFilter filter = filters.get(name);
+        if (filter == null || id == null) {
+            return;
+        }
+        try {
+            filter.put(id);
+            stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_CHANNEL, "add:" + name + ":" + id);
+        } catch (Exception e) {
+            // 写入失败不影响业务，等待定时重建修复
+            log.error("布隆过滤器写入失败, name={}, id={}", name, id, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // add:{name}:{id} 或 reload:{name}
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 3);
+        if (parts.length < 2) {
+            return;
+        }
+        BloomFilter filter = filters.get(parts[1]);
+        if (filter == null) {
+            return;
+        }
+        if ("add".equals(parts[0]) && parts.length == 3) {
+            filter.putLocal(parts[2]);
+        } else if ("reload".equals(parts[0])) {
+            BLOOM_INIT_EXECUTOR.submit(() -> filter.reloadFromRedis());
+        }
+    }
+
+    /**
+     * 定时从数据库重建，修正误判率漂移以及redis数据丢失
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.rebuild-interval-ms:21600000}",
+            fixedDelayString = "${hmdp.bloom.rebuild-interval-ms:21600000}")
+    public void scheduledRebuild() {
+        filters.values().forEach(this::rebuildFromDb);
+    }
+
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        filters.forEach((name, filter) -> stats.put(name, filter.stats()));
+        return stats;
+    }
+
+    public Map<String, BloomFilter> getFilters() {
+        return filters;
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        filters.forEach((name, filter) -> writer.counter("hmdp_bloom_checks_total",
+                "Bloom filter checks by result", filter.getHitCount(), "filter", name, "result", "pass"));
+        filters.forEach((name, filter) -> writer.counter("hmdp_bloom_checks_total",
+                "Bloom filter checks by result", filter.getRejectCount(), "filter", name, "result", "reject"));
+        filters.forEach((name, filter) -> writer.gauge("hmdp_bloom_ready",
+                "Whether the bloom filter has been loaded", filter.isReady() ? 1 : 0, "filter", name));
+    }
+
+    private void load(BloomFilter filter) {
+        try {
+            if (filter.reloadFromRedis()) {
+                log.info("布隆过滤器从redis加载完成, name={}", filter.getName());
+                return;
+            }
+            // redis中没有，从数据库初始化；其他节点正在初始化时等待其reload广播
+            rebuildFromDb(filter);
+        } catch (Exception e) {
+            log.error("布隆过滤器加载失败, name={}", filter.getName(), e);
+        }
+    }
+
+    private void rebuildFromDb(BloomFilter filter) {
+        String lockKey = RedisConstants.LOCK_BLOOM_KEY + filter.getName();
+        Boolean isLock = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", 10, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            BaseMapper<?> mapper = sources.get(filter.getName());
+            List<Object> ids = new ArrayList<>();
+            long lastId = scanIds(mapper, 0L, ids::add);
+            filter.rebuild(ids);
+            // 扫描期间新增的数据（id自增，只需要补大于lastId的部分）
+            scanIds(mapper, lastId, filter::put);
+            stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_CHANNEL, "reload:" + filter.getName());
+            if (ids.size() > expectedInsertions) {
+                log.warn("布隆过滤器元素数量超过预期, name={}, count={}, expected={}",
+                        filter.getName(), ids.size(), expectedInsertions);
+            }
+            log.info("布隆过滤器重建完成, name={}, count={}, cost={}ms",
+                    filter.getName(), ids.size(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("布隆过滤器重建失败, name={}", filter.getName(), e);
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    /**
+     * 按id顺序分批扫描，返回最后一个id
+     */
+    private <T> long scanIds(BaseMapper<T> mapper, long fromId, Consumer<Object> consumer) {
+        long lastId = fromId;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + SCAN_BATCH_SIZE));
+            if (ids == null || ids.isEmpty()) {
+                return lastId;
+            }
+            ids.forEach(consumer);
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+            if (ids.size() < SCAN_BATCH_SIZE) {
+                return lastId;
+            }
+        }
+    }
+}
@@ -2,47 +2,242 @@ package com.hmdp.utils;
 
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
-import org.yaml.snakeyaml.events.Event;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener, MetricsSource {
 
     private StringRedisTemplate stringRedisTemplate;
 
+    // 缓存值以byte[]读写，由CacheSerializer决定JSON还是二进制格式
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    @Resource
+    private CacheSerializer cacheSerializer;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    // 异步重建共用的调度器，同一个key只会有一个重建任务
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    // 提前刷新的系数，越大越早刷新
+    private static final double EARLY_REFRESH_BETA = 1.0;
+
+    // 等待同一个key的重建结果的最长时间
+    private static final long SINGLE_FLIGHT_TIMEOUT_MILLIS = 3000L;
+
+    // 其他节点持有重建锁时，重新读取redis的次数和间隔
+    private static final int MUTEX_MAX_RETRIES = 20;
+    private static final long MUTEX_RETRY_INTERVAL_MILLIS = 50L;
+
+    // 缓存key和重建锁key的前缀
+    private static final String CACHE_KEY_PREFIX = "cache:";
+    private static final String LOCK_KEY_PREFIX = "lock:";
+
+    // 一级缓存中空值的占位对象
+    private static final Object NULL_VALUE = new Object();
+
+    // redis中空值的占位，防止缓存穿透
+    private static final byte[] NULL_BYTES = new byte[0];
+
+    // 按key前缀开启的进程内一级缓存
+    private final Map<String, LocalCache> localCaches = new ConcurrentHashMap<>();
+
+    // 进程内正在加载的key，同一个key的并发请求共享一个结果
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 按key前缀注册的布隆过滤器，判定不存在的id直接返回，不查redis和数据库
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        // 订阅缓存失效频道，其他节点删除缓存时同步清理本地一级缓存
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 为某个key前缀开启进程内一级缓存
+     * @param keyPrefix    redis的key前缀
+     * @param maximumSize  最大条目数
+     * @param ttl          本地存活时间
+     * @param unit         时间单位
+     */
+    public void enableLocalCache(String keyPrefix, int maximumSize, long ttl, TimeUnit unit) {
+        localCaches.put(keyPrefix, new LocalCache(keyPrefix, maximumSize, unit.toMillis(ttl)));
+    }
+
+    public void registerBloomFilter(String keyPrefix, BloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    private boolean mightContain(String keyPrefix, Object id) {
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if(bloomFilter == null || bloomFilter.mightContain(id)){
+            return true;
+        }
+        cacheMetrics.record(keyPrefix, CacheMetrics.Event.BLOOM_REJECT);
+        return false;
+    }
+
+    /**
+     * 删除缓存，并通知所有节点清理一级缓存
+     */
+    public void evict(String key) {
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除缓存，一次DEL，失效广播用一次pipeline发送
+     */
+    public void evictAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(this::evictLocal);
+        byte[] channel = rawKey(RedisConstants.CACHE_INVALIDATE_CHANNEL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            keys.forEach(key -> connection.publish(channel, rawKey(key)));
+            return null;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        evictLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void evictLocal(String key) {
+        for (LocalCache localCache : localCaches.values()) {
+            if (key.startsWith(localCache.getName())) {
+                localCache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * 各key前缀的一级缓存统计
+     */
+    public Map<String, Map<String, Object>> localCacheStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        localCaches.forEach((prefix, localCache) -> stats.put(prefix, localCache.stats()));
+        return stats;
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        localCaches.forEach((prefix, localCache) -> writer.gauge("hmdp_local_cache_size",
+                "Entries in the in-process L1 cache", localCache.size(), "prefix", prefix));
+        localCaches.forEach((prefix, localCache) -> writer.counter("hmdp_local_cache_evictions_total",
+                "L1 entries evicted by capacity", localCache.getEvictionCount(), "prefix", prefix));
+        localCaches.forEach((prefix, localCache) -> writer.counter("hmdp_local_cache_expirations_total",
+                "L1 entries expired by ttl", localCache.getExpirationCount(), "prefix", prefix));
+        localCaches.forEach((prefix, localCache) -> writer.counter("hmdp_local_cache_invalidations_total",
+                "L1 entries invalidated by pub/sub", localCache.getInvalidationCount(), "prefix", prefix));
+    }
 
 
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        cacheRedisTemplate.opsForValue().set(key, cacheSerializer.serialize(value), time, unit);
      }
 
+    /**
+     * 列表写入，不设置过期时间
+     * @param type  元素类型，用于选择编解码器
+     */
+    public void setList(String key, List<?> values, Class<?> type){
+        cacheRedisTemplate.opsForValue().set(key, cacheSerializer.serializeList(values, type));
+    }
+
+    /**
+     * 列表读取，不存在时返回null
+     */
+    public <R> List<R> getList(String key, Class<R> type){
+        byte[] bytes = getBytes(key);
+        if(bytes == null || bytes.length == 0){
+            return null;
+        }
+        return cacheSerializer.deserializeList(bytes, type);
+    }
+
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 逻辑过期写入，同时记录本次重建耗时
+     * @param delta 重建耗时(ms)
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta){
         //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        cacheRedisTemplate.opsForValue().set(key, cacheSerializer.serializeLogical(value, expireTime, delta));
+    }
+
+    /**
+     * 按策略查询
+     */
+    public <R, ID> R query(CacheStrategy strategy, String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                           Long time, TimeUnit unit){
+        switch (strategy) {
+            case PASS_THROUGH:
+                return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit);
+            case MUTEX:
+                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
+            case EARLY_REFRESH:
+                return queryWithEarlyRefresh(keyPrefix, id, type, dbFallback, time, unit);
+            case LOGIC_EXPIRE:
+            default:
+                return queryWithLogicExpire(keyPrefix, id, type, dbFallback, time, unit);
+        }
     }
 
     /**
@@ -63,25 +258,56 @@ public class CacheClient {
 
         String key = keyPrefix + id;
 
+        // 0.布隆过滤器判定不存在，直接返回
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+
+        // 0.先查一级缓存
+        LocalCache localCache = localCaches.get(keyPrefix);
+        if(localCache != null){
+            Object cached = localCache.get(key);
+            if(cached != null){
+                if(cached == NULL_VALUE){
+                    cacheMetrics.record(keyPrefix, CacheMetrics.Event.LOCAL_NULL_HIT);
+                    return null;
+                }
+                cacheMetrics.record(keyPrefix, CacheMetrics.Event.LOCAL_HIT);
+                return (R) cached;
+            }
+        }
+
         // 1.从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
 
-        // 2. 判断是否存在  "abc" isNotBlank是否有实际的字符串
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        // 2. 判断是否存在，空数组是空值占位
+        if(bytes != null && bytes.length > 0){
+            cacheMetrics.record(keyPrefix, CacheMetrics.Event.REDIS_HIT);
+            R r = cacheSerializer.deserialize(bytes, type);
+            putLocal(localCache, key, r);
+            return r;
         }
 
         //3. 命中的是否是空值   ”“  redis中的value存“” 就是防止缓存穿透
-        if(json != null){
+        if(bytes != null){
+            cacheMetrics.record(keyPrefix, CacheMetrics.Event.REDIS_NULL_HIT);
+            putLocal(localCache, key, null);
             return null;
         }
 
-        //  4. redis不存在，根据id查询数据库
+        //  4. redis不存在，根据id查询数据库，进程内同一个key只查一次
+        cacheMetrics.record(keyPrefix, CacheMetrics.Event.MISS);
+        return singleFlight(keyPrefix, key, () -> loadAndSet(keyPrefix, key, id, dbFallback, time, unit));
+    }
+
+    private <R, ID> R loadAndSet(String keyPrefix, String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        long begin = System.nanoTime();
         R r = dbFallback.apply(id);
+        cacheMetrics.of(keyPrefix).recordLoad(begin);
         //  5. 数据库也不存在，照样向redis存入空值，返回错误
         if(r == null){
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            cacheRedisTemplate.opsForValue().set(key, NULL_BYTES, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
             // 返回错误信息
             return null;
         }
@@ -91,6 +317,141 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 互斥锁解决缓存击穿
+     * 进程内同一个key的并发请求合并，只有一个线程去抢redis锁和查数据库，其他线程等待它的结果
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                    Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        // 0.布隆过滤器判定不存在，直接返回
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        // 0.先查一级缓存
+        LocalCache localCache = localCaches.get(keyPrefix);
+        if(localCache != null){
+            Object cached = localCache.get(key);
+            if(cached != null){
+                if(cached == NULL_VALUE){
+                    cacheMetrics.record(keyPrefix, CacheMetrics.Event.LOCAL_NULL_HIT);
+                    return null;
+                }
+                cacheMetrics.record(keyPrefix, CacheMetrics.Event.LOCAL_HIT);
+                return (R) cached;
+            }
+        }
+        // 1.从redis查询缓存
+        byte[] bytes = getBytes(key);
+        if(bytes != null && bytes.length > 0){
+            cacheMetrics.record(keyPrefix, CacheMetrics.Event.REDIS_HIT);
+            R r = cacheSerializer.deserialize(bytes, type);
+            putLocal(localCache, key, r);
+            return r;
+        }
+        if(bytes != null){
+            cacheMetrics.record(keyPrefix, CacheMetrics.Event.REDIS_NULL_HIT);
+            putLocal(localCache, key, null);
+            return null;
+        }
+        // 2.未命中，进程内只有一个线程执行重建
+        cacheMetrics.record(keyPrefix, CacheMetrics.Event.MISS);
+        return singleFlight(keyPrefix, key, () -> loadWithMutex(keyPrefix, key, id, type, dbFallback, time, unit));
+    }
+
+    private <R, ID> R loadWithMutex(String keyPrefix, String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                    Long time, TimeUnit unit){
+        String lockKey = lockKey(keyPrefix, id);
+        for (int i = 0; ; i++) {
+            if(tryLock(lockKey)){
+                try {
+                    // 获取锁后再检查一次，可能其他节点刚刚重建完成
+                    byte[] bytes = getBytes(key);
+                    if(bytes != null && bytes.length > 0){
+                        return cacheSerializer.deserialize(bytes, type);
+                    }
+                    if(bytes != null){
+                        return null;
+                    }
+                    return loadAndSet(keyPrefix, key, id, dbFallback, time, unit);
+                }finally {
+                    unlock(lockKey);
+                }
+            }
+            if(i >= MUTEX_MAX_RETRIES){
+                // 等待太久，直接查询数据库
+                cacheMetrics.record(keyPrefix, CacheMetrics.Event.MUTEX_FALLBACK);
+                return dbFallback.apply(id);
+            }
+            // 其他节点正在重建，等待后重新读取redis（每个节点只有这一个线程在等待）
+            try {
+                Thread.sleep(MUTEX_RETRY_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            byte[] bytes = getBytes(key);
+            if(bytes != null && bytes.length > 0){
+                return cacheSerializer.deserialize(bytes, type);
+            }
+            if(bytes != null){
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 同一个key在进程内只执行一次loader，并发的调用方等待同一个结果
+     * 等待超时的调用方自己执行loader，loader内部的互斥锁仍然保护数据库
+     */
+    private <T> T singleFlight(String keyPrefix, String key, Supplier<T> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if(existing != null){
+            cacheMetrics.record(keyPrefix, CacheMetrics.Event.COALESCED);
+            try {
+                return (T) existing.get(SINGLE_FLIGHT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof Error){
+                    throw (Error) cause;
+                }
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (TimeoutException e) {
+                log.warn("等待缓存重建超时，直接加载, key={}", key);
+                return loader.get();
+            }
+        }
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // 任何异常都要结束future，否则等待方只能等到超时
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private void putLocal(LocalCache localCache, String key, Object value){
+        if(localCache != null){
+            localCache.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
+    /**
+     * 重建锁的key由缓存key前缀得到，不同类型的数据使用不同的锁：cache:shop:{id} -> lock:shop:{id}
+     */
+    private static String lockKey(String keyPrefix, Object id){
+        String name = keyPrefix.startsWith(CACHE_KEY_PREFIX) ? keyPrefix.substring(CACHE_KEY_PREFIX.length()) : keyPrefix;
+        return LOCK_KEY_PREFIX + name + id;
+    }
+
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10,TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -117,49 +478,448 @@ public class CacheClient {
                                           Long time, TimeUnit unit
                                           ){
         String key = keyPrefix + id;
+        // 0.布隆过滤器判定不存在，直接返回
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        // 0.先查一级缓存，本地保存的是已反序列化的对象和逻辑过期时间
+        LocalCache localCache = localCaches.get(keyPrefix);
+        if(localCache != null){
+            RedisData cached = (RedisData) localCache.get(key);
+            if(cached != null && cached.getExpireTime().isAfter(LocalDateTime.now())){
+                cacheMetrics.record(keyPrefix, CacheMetrics.Event.LOCAL_HIT);
+                return (R) cached.getData();
+            }
+        }
+
         // 1.从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
 
-        // 2. 判断是否存在  "" isBlank是否有实际的字符串
-        if(StrUtil.isBlank(json)){
+        // 2. 判断是否存在，空数组是空值占位
+        if(bytes == null || bytes.length == 0){
             // 3. 存在,直接返回
+            cacheMetrics.record(keyPrefix, bytes == null ? CacheMetrics.Event.MISS : CacheMetrics.Event.REDIS_NULL_HIT);
             return null;
         }
 
-        // 4. 命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        // 4. 命中，需要先反序列化为对象
+        RedisData redisData = cacheSerializer.deserializeLogical(bytes, type);
+        R r = (R) redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5. 判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())){
-            // 5.1 未过期，直接返回信息
+            // 5.1 未过期，放入一级缓存后返回
+            if(localCache != null){
+                RedisData local = new RedisData();
+                local.setData(r);
+                local.setExpireTime(expireTime);
+                localCache.put(key, local);
+            }
+            cacheMetrics.record(keyPrefix, CacheMetrics.Event.REDIS_HIT);
             return r;
         }
 
         // 5.2 已过期，需要缓存重建
+        cacheMetrics.record(keyPrefix, CacheMetrics.Event.STALE);
         // 6 缓存重建
-        // 6.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2 判断是否获取锁成功
-        if(isLock){
-            // 6.3 成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    // 查询数据库
-                    R r1 = dbFallback.apply(id);
-                    // 写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                }catch (Exception e){
-                    throw new RuntimeException();
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
+        rebuildAsync(keyPrefix, key, id, dbFallback, time, unit);
         // 7.
         return r;
     }
+
+    /**
+     * 逻辑过期 + 概率提前刷新(XFetch)
+     * 在过期前按 now - delta * beta * ln(rand) >= expireTime 触发后台刷新，
+     * delta 为上次重建耗时，重建越慢越早刷新，避免所有节点在过期瞬间同时抢锁
+     */
+    public <R, ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                           Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        // 0.布隆过滤器判定不存在，直接返回
+        if(!mightContain(keyPrefix, id)){
+            return null;
+        }
+        // 1.先查一级缓存
+        LocalCache localCache = localCaches.get(keyPrefix);
+        RedisData redisData = localCache == null ? null : (RedisData) localCache.get(key);
+        R r;
+        if(redisData != null && redisData.getExpireTime().isAfter(LocalDateTime.now())){
+            cacheMetrics.record(keyPrefix, CacheMetrics.Event.LOCAL_HIT);
+            r = (R) redisData.getData();
+        }else {
+            // 2.查询redis
+            byte[] bytes = getBytes(key);
+            if(bytes == null || bytes.length == 0){
+                cacheMetrics.record(keyPrefix, bytes == null ? CacheMetrics.Event.MISS : CacheMetrics.Event.REDIS_NULL_HIT);
+                return null;
+            }
+            redisData = cacheSerializer.deserializeLogical(bytes, type);
+            r = (R) redisData.getData();
+            boolean fresh = redisData.getExpireTime().isAfter(LocalDateTime.now());
+            cacheMetrics.record(keyPrefix, fresh ? CacheMetrics.Event.REDIS_HIT : CacheMetrics.Event.STALE);
+            if(localCache != null && fresh){
+                RedisData local = new RedisData();
+                local.setData(r);
+                local.setExpireTime(redisData.getExpireTime());
+                local.setDelta(redisData.getDelta());
+                localCache.put(key, local);
+            }
+        }
+        // 3.判断是否需要提前刷新，已过期时必然刷新
+        if(shouldRefreshEarly(redisData)){
+            if(redisData.getExpireTime().isAfter(LocalDateTime.now())){
+                cacheMetrics.record(keyPrefix, CacheMetrics.Event.EARLY_REFRESH);
+            }
+            rebuildAsync(keyPrefix, key, id, dbFallback, time, unit);
+        }
+        return r;
+    }
+
+    private boolean shouldRefreshEarly(RedisData redisData){
+        long remaining = Duration.between(LocalDateTime.now(), redisData.getExpireTime()).toMillis();
+        if(remaining <= 0){
+            return true;
+        }
+        Long delta = redisData.getDelta();
+        if(delta == null || delta <= 0){
+            return false;
+        }
+        // -ln(rand) 服从指数分布，rand取(0,1]
+        double gap = -delta * EARLY_REFRESH_BETA * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return gap >= remaining;
+    }
+
+    /**
+     * 提交到重建调度器，获取互斥锁后重建，并记录重建耗时
+     * 本节点已有同一个key的任务或队列已满时不提交，调用方继续返回旧值
+     */
+    private <R, ID> void rebuildAsync(String keyPrefix, String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+        String lockKey = lockKey(keyPrefix, id);
+        boolean submitted = cacheRebuildScheduler.submit(key, () -> {
+            // 6.1 获取互斥锁，其他节点正在重建时放弃
+            if(!tryLock(lockKey)){
+                metrics.recordRebuild(CacheMetrics.Rebuild.SKIPPED);
+                return;
+            }
+            long begin = System.nanoTime();
+            try {
+                // 6.2 查询数据库
+                R r1 = dbFallback.apply(id);
+                // 6.3 写入redis
+                this.setWithLogicalExpire(key, r1, time, unit, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+                metrics.recordRebuild(CacheMetrics.Rebuild.SUCCESS, begin);
+            }catch (RuntimeException e){
+                // 交给调度器退避重试
+                metrics.recordRebuild(CacheMetrics.Rebuild.FAILURE, begin);
+                throw e;
+            }finally {
+                //释放锁
+                unlock(lockKey);
+            }
+        });
+        if(!submitted){
+            metrics.recordRebuild(CacheMetrics.Rebuild.SKIPPED);
+        }
+    }
+
+    /**
+     * 批量查询  缓存穿透工具类
+     * 一次MGET查询所有key，未命中的id一次性查询数据库，再用一次pipeline写回redis
+     * @param keyPrefix  redis的key前缀
+     * @param ids         id集合
+     * @param type        查询数据库的返回类型
+     * @param dbFallback  批量查询数据库的调用函数，返回 id -> 数据
+     * @param time        设置过期时间
+     * @param unit        时间单位
+     * @return 按ids顺序排列的 id -> 数据，不存在的id不包含在结果中
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                        Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                        Long time, TimeUnit unit){
+        Map<ID, R> result = new LinkedHashMap<>();
+        if(ids == null || ids.isEmpty()){
+            return result;
+        }
+        // 布隆过滤器判定不存在的id直接去掉
+        List<ID> idList = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if(mightContain(keyPrefix, id)){
+                idList.add(id);
+            }
+        }
+        // 结果先按ids顺序占位，最后移除不存在的
+        Map<ID, Object> found = new LinkedHashMap<>();
+        idList.forEach(id -> found.put(id, null));
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+
+        // 0.先查一级缓存
+        LocalCache localCache = localCaches.get(keyPrefix);
+        List<ID> remain = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            Object cached = localCache == null ? null : localCache.get(keyPrefix + id);
+            if(cached != null){
+                metrics.record(cached == NULL_VALUE ? CacheMetrics.Event.LOCAL_NULL_HIT : CacheMetrics.Event.LOCAL_HIT);
+                found.put(id, cached);
+            }else {
+                remain.add(id);
+            }
+        }
+
+        // 1.一次MGET查询redis
+        List<ID> misses = new ArrayList<>();
+        if(!remain.isEmpty()){
+            List<String> keys = new ArrayList<>(remain.size());
+            remain.forEach(id -> keys.add(keyPrefix + id));
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remain.size(); i++) {
+                ID id = remain.get(i);
+                byte[] bytes = values == null ? null : readable(values.get(i));
+                if(bytes != null && bytes.length > 0){
+                    // 2.命中
+                    metrics.record(CacheMetrics.Event.REDIS_HIT);
+                    R r = cacheSerializer.deserialize(bytes, type);
+                    putLocal(localCache, keys.get(i), r);
+                    found.put(id, r);
+                }else if(bytes != null){
+                    // 3.命中空值
+                    metrics.record(CacheMetrics.Event.REDIS_NULL_HIT);
+                    putLocal(localCache, keys.get(i), null);
+                    found.put(id, NULL_VALUE);
+                }else {
+                    metrics.record(CacheMetrics.Event.MISS);
+                    misses.add(id);
+                }
+            }
+        }
+
+        // 4.未命中的id一次性查询数据库
+        if(!misses.isEmpty()){
+            long begin = System.nanoTime();
+            Map<ID, R> loaded = dbFallback.apply(misses);
+            metrics.recordLoad(begin);
+            if(loaded == null){
+                loaded = Collections.emptyMap();
+            }
+            // 5.一次pipeline写回redis，数据库不存在的写入空值
+            writeBatch(keyPrefix, misses, loaded, time, unit);
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                if(r != null){
+                    found.put(id, r);
+                }
+            }
+        }
+
+        // 6.整理结果
+        found.forEach((id, value) -> {
+            if(value != null && value != NULL_VALUE){
+                result.put(id, (R) value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 批量查询  逻辑过期工具类
+     * 一次MGET查询所有key，未命中的id一次性查询数据库并以逻辑过期方式写回，
+     * 已过期的数据先返回旧值，获取到锁的id合并成一个任务异步重建
+     * @return 按ids顺序排列的 id -> 数据，不存在的id不包含在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                        Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                        Long time, TimeUnit unit){
+        Map<ID, R> result = new LinkedHashMap<>();
+        if(ids == null || ids.isEmpty()){
+            return result;
+        }
+        // 布隆过滤器判定不存在的id直接去掉
+        List<ID> idList = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if(mightContain(keyPrefix, id)){
+                idList.add(id);
+            }
+        }
+        Map<ID, R> found = new HashMap<>();
+        LocalDateTime now = LocalDateTime.now();
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+
+        // 0.先查一级缓存，本地保存的是已反序列化的对象和逻辑过期时间
+        LocalCache localCache = localCaches.get(keyPrefix);
+        List<ID> remain = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            RedisData cached = localCache == null ? null : (RedisData) localCache.get(keyPrefix + id);
+            if(cached != null && cached.getExpireTime().isAfter(now)){
+                metrics.record(CacheMetrics.Event.LOCAL_HIT);
+                found.put(id, (R) cached.getData());
+            }else {
+                remain.add(id);
+            }
+        }
+
+        // 1.一次MGET查询redis
+        List<ID> misses = new ArrayList<>();
+        List<ID> expired = new ArrayList<>();
+        if(!remain.isEmpty()){
+            List<String> keys = new ArrayList<>(remain.size());
+            remain.forEach(id -> keys.add(keyPrefix + id));
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remain.size(); i++) {
+                ID id = remain.get(i);
+                byte[] bytes = values == null ? null : readable(values.get(i));
+                if(bytes == null){
+                    metrics.record(CacheMetrics.Event.MISS);
+                    misses.add(id);
+                    continue;
+                }
+                if(bytes.length == 0){
+                    // 空值，数据库中不存在
+                    metrics.record(CacheMetrics.Event.REDIS_NULL_HIT);
+                    continue;
+                }
+                RedisData redisData = cacheSerializer.deserializeLogical(bytes, type);
+                R r = (R) redisData.getData();
+                found.put(id, r);
+                if(redisData.getExpireTime().isAfter(now)){
+                    metrics.record(CacheMetrics.Event.REDIS_HIT);
+                    if(localCache != null){
+                        RedisData local = new RedisData();
+                        local.setData(r);
+                        local.setExpireTime(redisData.getExpireTime());
+                        localCache.put(keys.get(i), local);
+                    }
+                }else {
+                    metrics.record(CacheMetrics.Event.STALE);
+                    expired.add(id);
+                }
+            }
+        }
+
+        // 2.未命中的id一次性查询数据库，一次pipeline写回，数据库不存在的写入空值
+        if(!misses.isEmpty()){
+            long begin = System.nanoTime();
+            Map<ID, R> loaded = dbFallback.apply(misses);
+            metrics.recordLoad(begin);
+            writeBatchWithLogicalExpire(keyPrefix, misses, loaded, time, unit);
+            if(loaded != null){
+                misses.forEach(id -> {
+                    R r = loaded.get(id);
+                    if(r != null){
+                        found.put(id, r);
+                    }
+                });
+            }
+        }
+
+        // 3.已过期的id合并成一个重建任务，任务中只重建获取到锁的id
+        if(!expired.isEmpty()){
+            rebuildBatchAsync(keyPrefix, expired, dbFallback, time, unit);
+        }
+
+        // 4.按ids顺序整理结果
+        idList.forEach(id -> {
+            R r = found.get(id);
+            if(r != null){
+                result.put(id, r);
+            }
+        });
+        return result;
+    }
+
+    private <R, ID> void rebuildBatchAsync(String keyPrefix, List<ID> expired,
+                                           Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit){
+        CacheMetrics.PrefixMetrics metrics = cacheMetrics.of(keyPrefix);
+        boolean submitted = cacheRebuildScheduler.submit(keyPrefix + expired, () -> {
+            // 其他节点正在重建的id跳过
+            List<ID> locked = new ArrayList<>(expired.size());
+            for (ID id : expired) {
+                if(tryLock(lockKey(keyPrefix, id))){
+                    locked.add(id);
+                }else {
+                    metrics.recordRebuild(CacheMetrics.Rebuild.SKIPPED);
+                }
+            }
+            if(locked.isEmpty()){
+                return;
+            }
+            long begin = System.nanoTime();
+            try {
+                writeBatchWithLogicalExpire(keyPrefix, locked, dbFallback.apply(locked), time, unit);
+                metrics.recordRebuild(CacheMetrics.Rebuild.SUCCESS, begin);
+            }catch (RuntimeException e){
+                // 交给调度器退避重试
+                metrics.recordRebuild(CacheMetrics.Rebuild.FAILURE, begin);
+                throw e;
+            }finally {
+                locked.forEach(id -> unlock(lockKey(keyPrefix, id)));
+            }
+        });
+        if(!submitted){
+            metrics.recordRebuild(CacheMetrics.Rebuild.SKIPPED);
+        }
+    }
+
+    /**
+     * 批量写入并设置过期时间，一次pipeline完成；loaded中没有的id写入空值
+     */
+    public <R, ID> void writeBatch(String keyPrefix, List<ID> ids, Map<ID, R> loaded, Long time, TimeUnit unit){
+        Map<byte[], byte[]> values = new LinkedHashMap<>();
+        List<byte[]> nullKeys = new ArrayList<>();
+        for (ID id : ids) {
+            R r = loaded == null ? null : loaded.get(id);
+            if(r == null){
+                nullKeys.add(rawKey(keyPrefix + id));
+            }else {
+                values.put(rawKey(keyPrefix + id), cacheSerializer.serialize(r));
+            }
+        }
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            Expiration expiration = Expiration.from(time, unit);
+            values.forEach((key, value) -> connection.set(key, value, expiration, RedisStringCommands.SetOption.UPSERT));
+            Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            nullKeys.forEach(key -> connection.set(key, NULL_BYTES, nullExpiration, RedisStringCommands.SetOption.UPSERT));
+            return null;
+        });
+    }
+
+    /**
+     * 以逻辑过期格式批量写入，一次pipeline完成；loaded中没有的id写入空值
+     */
+    public <R, ID> void writeBatchWithLogicalExpire(String keyPrefix, List<ID> ids, Map<ID, R> loaded,
+                                                     Long time, TimeUnit unit){
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        Map<byte[], byte[]> values = new LinkedHashMap<>();
+        List<byte[]> nullKeys = new ArrayList<>();
+        for (ID id : ids) {
+            R r = loaded == null ? null : loaded.get(id);
+            if(r == null){
+                nullKeys.add(rawKey(keyPrefix + id));
+                continue;
+            }
+            values.put(rawKey(keyPrefix + id), cacheSerializer.serializeLogical(r, expireTime, null));
+        }
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach(connection::set);
+            Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            nullKeys.forEach(key -> connection.set(key, NULL_BYTES, nullExpiration, RedisStringCommands.SetOption.UPSERT));
+            return null;
+        });
+    }
+
+    private byte[] getBytes(String key){
+        return readable(cacheRedisTemplate.opsForValue().get(key));
+    }
+
+    /**
+     * 其他节点用本节点不认识的格式版本写入的值按未命中处理，重新加载
+     */
+    private byte[] readable(byte[] bytes){
+        return bytes == null || cacheSerializer.isReadable(bytes) ? bytes : null;
+    }
+
+    private static byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
 }
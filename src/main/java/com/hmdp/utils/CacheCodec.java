@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 缓存值的二进制编解码扩展点，按字段顺序直接读写，不经过反射和JSON
+ * 字段顺序即schema，增删字段时需要同时修改读写两端
+ * @param <T> 缓存的数据类型
+ */
+public interface CacheCodec<T> {
+
+    /**
+     * 支持的数据类型
+     */
+    Class<T> type();
+
+    void write(T value, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,326 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 内置的二进制编解码：Shop、ShopType、Blog、UserDTO，以及字段读写工具方法
+ */
+public class CacheCodecs {
+
+    // 超过该长度的大字段才压缩
+    private static final int COMPRESS_THRESHOLD = 256;
+
+    private static final byte NULL = 0;
+    private static final byte PLAIN = 1;
+    private static final byte DEFLATED = 2;
+
+    private CacheCodecs() {
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        writeString(out, value, false);
+    }
+
+    /**
+     * 写字符串，compress为true且超过阈值时使用deflate压缩
+     */
+    public static void writeString(DataOutput out, String value, boolean compress) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (compress && bytes.length >= COMPRESS_THRESHOLD) {
+            byte[] deflated = deflate(bytes);
+            if (deflated.length < bytes.length) {
+                out.writeByte(DEFLATED);
+                writeVarInt(out, bytes.length);
+                writeVarInt(out, deflated.length);
+                out.write(deflated);
+                return;
+            }
+        }
+        out.writeByte(PLAIN);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        byte flag = in.readByte();
+        if (flag == NULL) {
+            return null;
+        }
+        int length = readVarInt(in);
+        if (flag == PLAIN) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        byte[] deflated = new byte[readVarInt(in)];
+        in.readFully(deflated);
+        return new String(inflate(deflated, length), StandardCharsets.UTF_8);
+    }
+
+    public static void writeLong(DataOutput out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    public static Long readLong(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    public static void writeInt(DataOutput out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    public static Integer readInt(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    public static void writeDouble(DataOutput out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    public static Double readDouble(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+
+    public static void writeTime(DataOutput out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    public static LocalDateTime readTime(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long seconds = in.readLong();
+        int nanos = in.readInt();
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint格式错误");
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                offset += inflater.inflate(bytes, offset, length - offset);
+            }
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IOException("解压缓存字段失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static class ShopCodec implements CacheCodec<Shop> {
+
+        @Override
+        public Class<Shop> type() {
+            return Shop.class;
+        }
+
+        @Override
+        public void write(Shop shop, DataOutput out) throws IOException {
+            writeLong(out, shop.getId());
+            writeString(out, shop.getName());
+            writeLong(out, shop.getTypeId());
+            // 图片地址可能很长，开启压缩
+            writeString(out, shop.getImages(), true);
+            writeString(out, shop.getArea());
+            writeString(out, shop.getAddress());
+            writeDouble(out, shop.getX());
+            writeDouble(out, shop.getY());
+            writeLong(out, shop.getAvgPrice());
+            writeInt(out, shop.getSold());
+            writeInt(out, shop.getComments());
+            writeInt(out, shop.getScore());
+            writeString(out, shop.getOpenHours());
+            writeTime(out, shop.getCreateTime());
+            writeTime(out, shop.getUpdateTime());
+        }
+
+        @Override
+        public Shop read(DataInput in) throws IOException {
+            Shop shop = new Shop();
+            shop.setId(readLong(in));
+            shop.setName(readString(in));
+            shop.setTypeId(readLong(in));
+            shop.setImages(readString(in));
+            shop.setArea(readString(in));
+            shop.setAddress(readString(in));
+            shop.setX(readDouble(in));
+            shop.setY(readDouble(in));
+            shop.setAvgPrice(readLong(in));
+            shop.setSold(readInt(in));
+            shop.setComments(readInt(in));
+            shop.setScore(readInt(in));
+            shop.setOpenHours(readString(in));
+            shop.setCreateTime(readTime(in));
+            shop.setUpdateTime(readTime(in));
+            return shop;
+        }
+    }
+
+    public static class ShopTypeCodec implements CacheCodec<ShopType> {
+
+        @Override
+        public Class<ShopType> type() {
+            return ShopType.class;
+        }
+
+        @Override
+        public void write(ShopType shopType, DataOutput out) throws IOException {
+            writeLong(out, shopType.getId());
+            writeString(out, shopType.getName());
+            writeString(out, shopType.getIcon());
+            writeInt(out, shopType.getSort());
+            writeTime(out, shopType.getCreateTime());
+            writeTime(out, shopType.getUpdateTime());
+        }
+
+        @Override
+        public ShopType read(DataInput in) throws IOException {
+            ShopType shopType = new ShopType();
+            shopType.setId(readLong(in));
+            shopType.setName(readString(in));
+            shopType.setIcon(readString(in));
+            shopType.setSort(readInt(in));
+            shopType.setCreateTime(readTime(in));
+            shopType.setUpdateTime(readTime(in));
+            return shopType;
+        }
+    }
+
+    public static class BlogCodec implements CacheCodec<Blog> {
+
+        @Override
+        public Class<Blog> type() {
+            return Blog.class;
+        }
+
+        @Override
+        public void write(Blog blog, DataOutput out) throws IOException {
+            // isLike和当前登录用户有关，不缓存
+            writeLong(out, blog.getId());
+            writeLong(out, blog.getShopId());
+            writeLong(out, blog.getUserId());
+            writeString(out, blog.getIcon());
+            writeString(out, blog.getName());
+            writeString(out, blog.getTitle());
+            writeString(out, blog.getImages(), true);
+            writeString(out, blog.getContent(), true);
+            writeInt(out, blog.getLiked());
+            writeInt(out, blog.getComments());
+            writeTime(out, blog.getCreateTime());
+            writeTime(out, blog.getUpdateTime());
+        }
+
+        @Override
+        public Blog read(DataInput in) throws IOException {
+            Blog blog = new Blog();
+            blog.setId(readLong(in));
+            blog.setShopId(readLong(in));
+            blog.setUserId(readLong(in));
+            blog.setIcon(readString(in));
+            blog.setName(readString(in));
+            blog.setTitle(readString(in));
+            blog.setImages(readString(in));
+            blog.setContent(readString(in));
+            blog.setLiked(readInt(in));
+            blog.setComments(readInt(in));
+            blog.setCreateTime(readTime(in));
+            blog.setUpdateTime(readTime(in));
+            return blog;
+        }
+    }
+
+    public static class UserDTOCodec implements CacheCodec<UserDTO> {
+
+        @Override
+        public Class<UserDTO> type() {
+            return UserDTO.class;
+        }
+
+        @Override
+        public void write(UserDTO user, DataOutput out) throws IOException {
+            writeLong(out, user.getId());
+            writeString(out, user.getNickName());
+            writeString(out, user.getIcon());
+        }
+
+        @Override
+        public UserDTO read(DataInput in) throws IOException {
+            UserDTO user = new UserDTO();
+            user.setId(readLong(in));
+            user.setNickName(readString(in));
+            user.setIcon(readString(in));
+            return user;
+        }
+    }
+}
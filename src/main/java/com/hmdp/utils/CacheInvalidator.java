@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheInvalidation;
+import com.hmdp.mapper.CacheInvalidationMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 可靠的缓存删除：
+ * 1. 事务内向发件箱表写入待删除的key，和业务数据一起提交或回滚
+ * 2. 事务提交后立即删除缓存，并在延迟一段时间后再删除一次（延迟双删），覆盖提交前被并发查询回填的旧值
+ * 3. 第二次删除成功后移除发件箱记录；任一步失败或节点宕机时，记录保留，由定时任务批量重试
+ */
+@Slf4j
+@Component
+public class CacheInvalidator implements MetricsSource {
+
+    // 第二次删除使用的线程
+    private static final ScheduledExecutorService DELAYED_DELETE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 记录写入后多久才允许定时任务处理(秒)，在此之前由提交后的双删负责
+    private static final long RETRY_GRACE_SECONDS = 10L;
+
+    // 重试的最大间隔(秒)
+    private static final long MAX_RETRY_BACKOFF_SECONDS = 600L;
+
+    @Resource
+    private CacheInvalidationMapper cacheInvalidationMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 延迟双删的间隔，应大于一次查询数据库并回填缓存的耗时
+    @Value("${hmdp.cache.invalidation.delay-ms:500}")
+    private long delayMillis;
+
+    // 定时任务每次处理的记录数
+    @Value("${hmdp.cache.invalidation.batch-size:100}")
+    private int batchSize;
+
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder deleteFailures = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder retryFailures = new LongAdder();
+
+    /**
+     * 删除缓存，需要在写数据库的事务中调用；没有事务时立即执行
+     */
+    public void invalidate(String key) {
+        CacheInvalidation invalidation = new CacheInvalidation()
+                .setCacheKey(key)
+                .setRetryCount(0)
+                .setNextRetryTime(LocalDateTime.now().plus(delayMillis, ChronoUnit.MILLIS).plusSeconds(RETRY_GRACE_SECONDS));
+        cacheInvalidationMapper.insert(invalidation);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            deleteTwice(invalidation);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                deleteTwice(invalidation);
+            }
+        });
+    }
+
+    private void deleteTwice(CacheInvalidation invalidation) {
+        // 第一次删除失败也继续安排第二次删除，两次都失败时由定时任务重试
+        delete(invalidation.getCacheKey());
+        DELAYED_DELETE_EXECUTOR.schedule(() -> {
+            if (delete(invalidation.getCacheKey())) {
+                try {
+                    cacheInvalidationMapper.deleteById(invalidation.getId());
+                } catch (Exception e) {
+                    log.warn("删除缓存发件箱记录失败, id={}", invalidation.getId(), e);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean delete(String key) {
+        try {
+            cacheClient.evict(key);
+            deleted.increment();
+            return true;
+        } catch (Exception e) {
+            deleteFailures.increment();
+            log.warn("删除缓存失败，等待重试, key={}", key, e);
+            return false;
+        }
+    }
+
+    /**
+     * 批量重试到期的删除记录
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.invalidation.retry-interval-ms:5000}")
+    public void retryPending() {
+        // 多个节点同时处理是安全的，加锁只是避免重复删除
+        Boolean isLock = stringRedisTemplate.opsForValue()
+                .setIfAbsent(RedisConstants.LOCK_CACHE_INVALIDATION_KEY, "1", 1, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            return;
+        }
+        try {
+            while (true) {
+                List<CacheInvalidation> batch = cacheInvalidationMapper.selectList(new QueryWrapper<CacheInvalidation>()
+                        .le("next_retry_time", LocalDateTime.now())
+                        .orderByAsc("next_retry_time")
+                        .last("limit " + batchSize));
+                if (batch.isEmpty() || !retry(batch) || batch.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("缓存删除重试任务失败", e);
+        } finally {
+            stringRedisTemplate.delete(RedisConstants.LOCK_CACHE_INVALIDATION_KEY);
+        }
+    }
+
+    private boolean retry(List<CacheInvalidation> batch) {
+        List<String> keys = new ArrayList<>(batch.size());
+        List<Long> ids = new ArrayList<>(batch.size());
+        for (CacheInvalidation invalidation : batch) {
+            keys.add(invalidation.getCacheKey());
+            ids.add(invalidation.getId());
+        }
+        try {
+            cacheClient.evictAll(keys);
+        } catch (Exception e) {
+            retryFailures.add(batch.size());
+            log.warn("批量删除缓存失败，稍后重试, size={}", batch.size(), e);
+            // 按重试次数指数退避
+            LocalDateTime now = LocalDateTime.now();
+            for (CacheInvalidation invalidation : batch) {
+                int retryCount = invalidation.getRetryCount() + 1;
+                long backoff = Math.min(MAX_RETRY_BACKOFF_SECONDS, 1L << Math.min(retryCount, 10));
+                cacheInvalidationMapper.updateById(new CacheInvalidation()
+                        .setId(invalidation.getId())
+                        .setRetryCount(retryCount)
+                        .setNextRetryTime(now.plusSeconds(backoff)));
+            }
+            return false;
+        }
+        cacheInvalidationMapper.deleteBatchIds(ids);
+        retried.add(batch.size());
+        return true;
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("hmdp_cache_invalidation_total", "Cache invalidations by result", deleted.sum(), "result", "deleted")
+                .counter("hmdp_cache_invalidation_total", "Cache invalidations by result", deleteFailures.sum(), "result", "failed")
+                .counter("hmdp_cache_invalidation_total", "Cache invalidations by result", retried.sum(), "result", "retried")
+                .counter("hmdp_cache_invalidation_total", "Cache invalidations by result", retryFailures.sum(), "result", "retry_failed");
+    }
+
+    @PreDestroy
+    private void destroy() {
+        DELAYED_DELETE_EXECUTOR.shutdown();
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CacheClient各条路径的计数和耗时，按key前缀区分
+ */
+@Component
+public class CacheMetrics implements MetricsSource {
+
+    /**
+     * 一次查询的结果
+     */
+    public enum Event {
+        // 一级缓存命中
+        LOCAL_HIT,
+        // 一级缓存命中空值
+        LOCAL_NULL_HIT,
+        // redis命中
+        REDIS_HIT,
+        // redis命中空值
+        REDIS_NULL_HIT,
+        // redis未命中，需要查询数据库
+        MISS,
+        // 逻辑过期后返回了旧值
+        STALE,
+        // 布隆过滤器判定不存在
+        BLOOM_REJECT,
+        // 合并到进程内其他线程的加载结果
+        COALESCED,
+        // 过期前概率触发的提前刷新
+        EARLY_REFRESH,
+        // 等待其他节点重建超时，直接查询数据库
+        MUTEX_FALLBACK
+    }
+
+    /**
+     * 异步重建的结果
+     */
+    public enum Rebuild {
+        SUCCESS,
+        FAILURE,
+        // 本节点已在重建、队列已满或未抢到锁
+        SKIPPED
+    }
+
+    private final Map<String, PrefixMetrics> prefixes = new ConcurrentHashMap<>();
+
+    public PrefixMetrics of(String keyPrefix) {
+        PrefixMetrics metrics = prefixes.get(keyPrefix);
+        if (metrics == null) {
+            metrics = prefixes.computeIfAbsent(keyPrefix, k -> new PrefixMetrics());
+        }
+        return metrics;
+    }
+
+    public void record(String keyPrefix, Event event) {
+        of(keyPrefix).events[event.ordinal()].increment();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        // 同一个指标的样本需要连续输出
+        for (Event event : Event.values()) {
+            prefixes.forEach((prefix, m) -> writer.counter("hmdp_cache_requests_total",
+                    "Cache lookups by key prefix and result", m.events[event.ordinal()].sum(),
+                    "prefix", prefix, "result", event.name().toLowerCase()));
+        }
+        for (Rebuild rebuild : Rebuild.values()) {
+            prefixes.forEach((prefix, m) -> writer.counter("hmdp_cache_rebuild_total",
+                    "Asynchronous cache rebuilds by outcome", m.rebuilds[rebuild.ordinal()].sum(),
+                    "prefix", prefix, "outcome", rebuild.name().toLowerCase()));
+        }
+        prefixes.forEach((prefix, m) -> writer.histogram("hmdp_cache_load_seconds",
+                "Synchronous database load on cache miss", m.load, "prefix", prefix));
+        prefixes.forEach((prefix, m) -> writer.histogram("hmdp_cache_rebuild_seconds",
+                "Asynchronous rebuild duration", m.rebuild, "prefix", prefix));
+    }
+
+    public static class PrefixMetrics {
+        private final LongAdder[] events = newAdders(Event.values().length);
+        private final LongAdder[] rebuilds = newAdders(Rebuild.values().length);
+        private final LatencyHistogram load = new LatencyHistogram();
+        private final LatencyHistogram rebuild = new LatencyHistogram();
+
+        public void record(Event event) {
+            events[event.ordinal()].increment();
+        }
+
+        public void recordLoad(long startNanos) {
+            load.recordSince(startNanos);
+        }
+
+        public void recordRebuild(Rebuild outcome) {
+            rebuilds[outcome.ordinal()].increment();
+        }
+
+        public void recordRebuild(Rebuild outcome, long startNanos) {
+            rebuilds[outcome.ordinal()].increment();
+            rebuild.recordSince(startNanos);
+        }
+
+        private static LongAdder[] newAdders(int size) {
+            LongAdder[] adders = new LongAdder[size];
+            for (int i = 0; i < size; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+    }
+}
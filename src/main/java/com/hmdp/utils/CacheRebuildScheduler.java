@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存重建调度器，所有异步重建共用
+ * 同一个key同时只有一个任务（包括等待重试期间）；队列有界，满了直接拒绝，调用方继续返回旧值；
+ * 失败按指数退避重试，最终失败时记录原始异常
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler implements MetricsSource {
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${hmdp.cache.rebuild.queue-size:1000}")
+    private int queueSize;
+
+    @Value("${hmdp.cache.rebuild.max-retries:3}")
+    private int maxRetries;
+
+    @Value("${hmdp.cache.rebuild.retry-backoff-ms:200}")
+    private long retryBackoffMillis;
+
+    // 退避时间上限
+    private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+    private ThreadPoolExecutor executor;
+
+    // 只负责在退避时间到达后把任务重新放回executor
+    private ScheduledExecutorService retryTimer;
+
+    // 已提交且未结束的key
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram execution = new LatencyHistogram();
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "cache-rebuild-retry"));
+        timer.setRemoveOnCancelPolicy(true);
+        retryTimer = timer;
+    }
+
+    /**
+     * 提交重建任务
+     * @param key  去重的key，同一个key的任务未结束前不会重复提交
+     * @return 重复提交或队列已满时返回false，调用方应继续使用旧值
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!pendingKeys.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        if (!enqueue(new RebuildTask(key, task))) {
+            pendingKeys.remove(key);
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    private boolean enqueue(RebuildTask task) {
+        task.enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    private void retryLater(RebuildTask task, Exception cause) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, retryBackoffMillis << (task.attempt - 1));
+        log.warn("缓存重建失败，{}ms后第{}次重试, key={}, error={}", backoff, task.attempt, task.key, cause.toString());
+        retried.increment();
+        try {
+            retryTimer.schedule(() -> {
+                if (!enqueue(task)) {
+                    pendingKeys.remove(task.key);
+                }
+            }, backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 正在关闭
+            pendingKeys.remove(task.key);
+        }
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.gauge("hmdp_cache_rebuild_queue_depth", "Rebuild tasks waiting in the queue", executor.getQueue().size())
+                .gauge("hmdp_cache_rebuild_active", "Rebuild tasks currently running", executor.getActiveCount())
+                .gauge("hmdp_cache_rebuild_pending_keys", "Keys with a queued, running or retrying rebuild", pendingKeys.size())
+                .counter("hmdp_cache_rebuild_tasks_total", "Rebuild scheduler task outcomes", submitted.sum(), "result", "submitted")
+                .counter("hmdp_cache_rebuild_tasks_total", "Rebuild scheduler task outcomes", deduplicated.sum(), "result", "deduplicated")
+                .counter("hmdp_cache_rebuild_tasks_total", "Rebuild scheduler task outcomes", rejected.sum(), "result", "rejected")
+                .counter("hmdp_cache_rebuild_tasks_total", "Rebuild scheduler task outcomes", retried.sum(), "result", "retried")
+                .counter("hmdp_cache_rebuild_tasks_total", "Rebuild scheduler task outcomes", succeeded.sum(), "result", "succeeded")
+                .counter("hmdp_cache_rebuild_tasks_total", "Rebuild scheduler task outcomes", failed.sum(), "result", "failed")
+                .histogram("hmdp_cache_rebuild_queue_wait_seconds", "Time a rebuild task waited in the queue", queueWait)
+                .histogram("hmdp_cache_rebuild_execution_seconds", "Rebuild task execution time", execution);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        retryTimer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private class RebuildTask implements Runnable {
+        private final String key;
+        private final Runnable task;
+        private volatile long enqueuedAt;
+        private int attempt;
+
+        private RebuildTask(String key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            queueWait.record(begin - enqueuedAt);
+            try {
+                task.run();
+                succeeded.increment();
+                pendingKeys.remove(key);
+            } catch (Exception e) {
+                attempt++;
+                if (attempt <= maxRetries) {
+                    retryLater(this, e);
+                } else {
+                    failed.increment();
+                    pendingKeys.remove(key);
+                    log.error("缓存重建失败，已重试{}次, key={}", maxRetries, key, e);
+                }
+            } catch (Error e) {
+                // 不重试，但要释放key，否则这个key再也不会重建
+                failed.increment();
+                pendingKeys.remove(key);
+                throw e;
+            } finally {
+                execution.recordSince(begin);
+            }
+        }
+    }
+}
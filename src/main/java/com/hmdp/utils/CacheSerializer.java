@@ -0,0 +1,210 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 缓存值的序列化：有注册CacheCodec的类型使用二进制格式，其他类型使用JSON
+ * 二进制格式：版本号(1字节) + 类别(1字节) + [逻辑过期时间、重建耗时] + 数据
+ * 版本号不会和JSON的首字符冲突，读取时两种格式都支持，便于和旧的JSON缓存并存灰度
+ * 首字节 0x01~0x08 保留给二进制版本号，本节点不支持的版本由调用方按未命中处理，便于以后升级格式
+ */
+@Component
+public class CacheSerializer {
+
+    private static final byte VERSION = 1;
+    // 保留给二进制格式的版本号范围，JSON不会以这些控制字符开头
+    private static final byte MIN_BINARY_VERSION = 1;
+    private static final byte MAX_BINARY_VERSION = 8;
+
+    private static final byte KIND_VALUE = 0;
+    private static final byte KIND_LOGICAL = 1;
+    private static final byte KIND_LIST = 2;
+
+    private final Map<Class<?>, CacheCodec<?>> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * 写入格式：json 或 binary，灰度期间先保持json，所有节点升级后切换为binary
+     */
+    @Value("${hmdp.cache.codec:json}")
+    private String format = "json";
+
+    public CacheSerializer() {
+        register(new CacheCodecs.ShopCodec());
+        register(new CacheCodecs.ShopTypeCodec());
+        register(new CacheCodecs.BlogCodec());
+        register(new CacheCodecs.UserDTOCodec());
+    }
+
+    public <T> void register(CacheCodec<T> codec) {
+        codecs.put(codec.type(), codec);
+    }
+
+    public byte[] serialize(Object value) {
+        CacheCodec<Object> codec = binaryCodec(value == null ? null : value.getClass());
+        if (codec == null) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        return write(KIND_VALUE, out -> codec.write(value, out));
+    }
+
+    /**
+     * 逻辑过期格式
+     */
+    public byte[] serializeLogical(Object value, LocalDateTime expireTime, Long delta) {
+        CacheCodec<Object> codec = binaryCodec(value == null ? null : value.getClass());
+        if (codec == null) {
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            redisData.setDelta(delta);
+            return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        }
+        return write(KIND_LOGICAL, out -> {
+            out.writeLong(expireTime.toInstant(ZoneOffset.UTC).toEpochMilli());
+            CacheCodecs.writeLong(out, delta);
+            codec.write(value, out);
+        });
+    }
+
+    public byte[] serializeList(List<?> values, Class<?> type) {
+        CacheCodec<Object> codec = binaryCodec(type);
+        if (codec == null) {
+            return JSONUtil.toJsonStr(values).getBytes(StandardCharsets.UTF_8);
+        }
+        return write(KIND_LIST, out -> {
+            CacheCodecs.writeVarInt(out, values.size());
+            for (Object value : values) {
+                codec.write(value, out);
+            }
+        });
+    }
+
+    public <R> R deserialize(byte[] bytes, Class<R> type) {
+        if (!isBinary(bytes)) {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        }
+        return read(bytes, KIND_VALUE, type, in -> codecOf(type).read(in));
+    }
+
+    /**
+     * 读取逻辑过期格式，返回的RedisData中data已转换为type类型
+     */
+    public <R> RedisData deserializeLogical(byte[] bytes, Class<R> type) {
+        if (!isBinary(bytes)) {
+            RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            Object data = redisData.getData();
+            redisData.setData(data == null ? null : JSONUtil.toBean((JSONObject) data, type));
+            return redisData;
+        }
+        return read(bytes, KIND_LOGICAL, type, in -> {
+            RedisData redisData = new RedisData();
+            long expireMillis = in.readLong();
+            redisData.setExpireTime(LocalDateTime.ofEpochSecond(Math.floorDiv(expireMillis, 1000L),
+                    (int) Math.floorMod(expireMillis, 1000L) * 1_000_000, ZoneOffset.UTC));
+            redisData.setDelta(CacheCodecs.readLong(in));
+            redisData.setData(codecOf(type).read(in));
+            return redisData;
+        });
+    }
+
+    public <R> List<R> deserializeList(byte[] bytes, Class<R> type) {
+        if (!isBinary(bytes)) {
+            return JSONUtil.toList(new JSONArray(new String(bytes, StandardCharsets.UTF_8)), type);
+        }
+        return read(bytes, KIND_LIST, type, in -> {
+            int size = CacheCodecs.readVarInt(in);
+            CacheCodec<R> codec = codecOf(type);
+            List<R> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(codec.read(in));
+            }
+            return values;
+        });
+    }
+
+    /**
+     * 本节点能否读取，首字节是保留的二进制版本号但不是当前版本时返回false
+     */
+    public boolean isReadable(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] < MIN_BINARY_VERSION || bytes[0] > MAX_BINARY_VERSION) {
+            return true;
+        }
+        return bytes[0] == VERSION;
+    }
+
+    private boolean isBinary(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == VERSION;
+    }
+
+    @SuppressWarnings("unchecked")
+    private CacheCodec<Object> binaryCodec(Class<?> type) {
+        if (type == null || !"binary".equalsIgnoreCase(format)) {
+            return null;
+        }
+        return (CacheCodec<Object>) codecs.get(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> CacheCodec<R> codecOf(Class<R> type) {
+        CacheCodec<R> codec = (CacheCodec<R>) codecs.get(type);
+        if (codec == null) {
+            throw new RuntimeException("没有注册缓存编解码器: " + type.getName());
+        }
+        return codec;
+    }
+
+    private byte[] write(byte kind, Writer writer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeByte(kind);
+            writer.write(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("缓存序列化失败", e);
+        }
+    }
+
+    private <T> T read(byte[] bytes, byte kind, Class<?> type, Reader<T> reader) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.readByte();
+            byte actual = in.readByte();
+            if (actual != kind) {
+                throw new IOException("缓存格式不匹配, expected=" + kind + ", actual=" + actual);
+            }
+            return reader.read(in);
+        } catch (IOException e) {
+            throw new RuntimeException("缓存反序列化失败: " + type.getName(), e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+}
@@ -0,0 +1,23 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存查询策略
+ */
+public enum CacheStrategy {
+    /**
+     * 缓存空值，解决缓存穿透
+     */
+    PASS_THROUGH,
+    /**
+     * 缓存空值 + 互斥锁重建，进程内同一个key合并为一次加锁和查库
+     */
+    MUTEX,
+    /**
+     * 逻辑过期，过期后异步重建
+     */
+    LOGIC_EXPIRE,
+    /**
+     * 逻辑过期 + 概率提前刷新(XFetch)，重建越慢、越接近过期越容易提前刷新
+     */
+    EARLY_REFRESH
+}
@@ -0,0 +1,333 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.ShopTypeMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 缓存预热：按id游标分批扫描店铺、店铺类型、秒杀库存，由有界线程池用pipeline批量写入redis
+ * 用于启动时以及redis故障切换后，避免第一波流量全部打到数据库
+ */
+@Slf4j
+@Component
+public class CacheWarmer {
+
+    public static final String SHOP = "shop";
+    public static final String SHOP_TYPE = "shopType";
+    public static final String SECKILL_STOCK = "seckillStock";
+
+    // 同一时间只允许一个节点预热，锁的最长持有时间
+    private static final long WARMUP_LOCK_TTL_MINUTES = 30L;
+
+    // 负责扫描数据库的线程，扫描出的批次交给写入线程池，随bean一起销毁
+    private final ExecutorService warmupExecutor = Executors.newSingleThreadExecutor();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SeckillMeta seckillMeta;
+
+    @Value("${hmdp.cache.warmup.on-startup:false}")
+    private boolean onStartup;
+
+    @Value("${hmdp.cache.warmup.batch-size:500}")
+    private int batchSize;
+
+    @Value("${hmdp.cache.warmup.threads:4}")
+    private int threads;
+
+    // 写入队列长度，队列满时由扫描线程自己写入，限制内存占用
+    @Value("${hmdp.cache.warmup.queue-size:16}")
+    private int queueSize;
+
+    @Value("${hmdp.cache.shop.strategy:LOGIC_EXPIRE}")
+    private CacheStrategy shopStrategy;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // 最近一次预热的进度
+    private volatile Map<String, Progress> progress = new LinkedHashMap<>();
+
+    private volatile long startTime;
+
+    private volatile long endTime;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup() {
+        if (onStartup) {
+            start();
+        }
+    }
+
+    /**
+     * 异步开始预热
+     * @return 已有预热任务在执行时返回false
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Boolean isLock = stringRedisTemplate.opsForValue()
+                .setIfAbsent(RedisConstants.LOCK_WARMUP_KEY, "1", WARMUP_LOCK_TTL_MINUTES, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            // 其他节点正在预热
+            running.set(false);
+            return false;
+        }
+        Map<String, Progress> current = new LinkedHashMap<>();
+        current.put(SHOP, new Progress());
+        current.put(SHOP_TYPE, new Progress());
+        current.put(SECKILL_STOCK, new Progress());
+        progress = current;
+        startTime = System.currentTimeMillis();
+        endTime = 0L;
+        warmupExecutor.submit(() -> {
+            try {
+                warmUp(current);
+            } catch (Exception e) {
+                log.error("缓存预热失败", e);
+            } finally {
+                endTime = System.currentTimeMillis();
+                stringRedisTemplate.delete(RedisConstants.LOCK_WARMUP_KEY);
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * 预热进度：各数据的扫描数、写入数、失败批次数、吞吐量
+     */
+    public Map<String, Object> progress() {
+        long end = endTime == 0L ? System.currentTimeMillis() : endTime;
+        long elapsed = startTime == 0L ? 0L : end - startTime;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("running", running.get());
+        result.put("elapsedMillis", elapsed);
+        progress.forEach((name, p) -> result.put(name, p.toMap()));
+        return result;
+    }
+
+    private void warmUp(Map<String, Progress> current) throws InterruptedException {
+        ThreadPoolExecutor writers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            warmUpShops(writers, current.get(SHOP));
+            warmUpShopTypes(current.get(SHOP_TYPE));
+            warmUpSeckillStock(writers, current.get(SECKILL_STOCK));
+        } finally {
+            writers.shutdown();
+            writers.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        current.forEach((name, p) -> log.info("缓存预热完成, name={}, scanned={}, written={}, failedBatches={}, cost={}ms, throughput={}/s",
+                name, p.scanned.sum(), p.written.sum(), p.failedBatches.sum(), p.cost(), p.throughput(p.cost())));
+    }
+
+    private void warmUpShops(ThreadPoolExecutor writers, Progress p) {
+        // 和查询使用相同的写入格式：逻辑过期策略写RedisData，其他策略写带TTL的普通值
+        boolean logical = shopStrategy == CacheStrategy.LOGIC_EXPIRE || shopStrategy == CacheStrategy.EARLY_REFRESH;
+        Phaser phaser = new Phaser(1);
+        p.begin();
+        scan(shopMapper, "id", Shop::getId, p, shops -> {
+            List<Long> ids = new ArrayList<>(shops.size());
+            Map<Long, Shop> values = new LinkedHashMap<>();
+            for (Shop shop : shops) {
+                ids.add(shop.getId());
+                values.put(shop.getId(), shop);
+            }
+            submit(writers, phaser, p, ids.size(), () -> {
+                if (logical) {
+                    cacheClient.writeBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, values,
+                            RedisConstants.CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+                } else {
+                    cacheClient.writeBatch(RedisConstants.CACHE_SHOP_KEY, ids, values,
+                            RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                }
+            });
+        });
+        phaser.arriveAndAwaitAdvance();
+        p.finish();
+    }
+
+    private void warmUpShopTypes(Progress p) {
+        p.begin();
+        List<ShopType> types = shopTypeMapper.selectList(new QueryWrapper<ShopType>().orderByAsc("sort"));
+        p.scanned.add(types.size());
+        try {
+            cacheClient.setList(RedisConstants.CACHE_SHOP_TYPE, types, ShopType.class);
+            p.written.add(types.size());
+        } catch (Exception e) {
+            p.failedBatches.increment();
+            log.error("店铺类型预热失败", e);
+        }
+        p.finish();
+    }
+
+    private void warmUpSeckillStock(ThreadPoolExecutor writers, Progress p) {
+        Phaser phaser = new Phaser(1);
+        p.begin();
+        scan(seckillVoucherMapper, "voucher_id", SeckillVoucher::getVoucherId, p, vouchers -> {
+            List<Long> voucherIds = new ArrayList<>(vouchers.size());
+            for (SeckillVoucher voucher : vouchers) {
+                voucherIds.add(voucher.getVoucherId());
+            }
+            List<Integer> segments = seckillStock.segments(voucherIds);
+            Map<byte[], byte[]> stocks = new LinkedHashMap<>();
+            Map<String, Map<String, String>> metas = new LinkedHashMap<>();
+            for (int i = 0; i < vouchers.size(); i++) {
+                SeckillVoucher voucher = vouchers.get(i);
+                Map<String, String> fields = seckillMeta.fields(voucher);
+                for (String key : seckillMeta.keys(voucher.getVoucherId(), segments.get(i))) {
+                    metas.put(key, fields);
+                }
+                // 分段的券按段拆分数据库中的剩余库存
+                seckillStock.split(voucher.getVoucherId(), voucher.getStock(), segments.get(i)).forEach((key, stock) ->
+                        stocks.put(key.getBytes(StandardCharsets.UTF_8), stock.getBytes(StandardCharsets.UTF_8)));
+            }
+            // 库存只在不存在时写入，已有的库存是秒杀扣减后的实时值，不能覆盖；秒杀时间以数据库为准
+            submit(writers, phaser, p, stocks.size(), () ->
+                    stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        stocks.forEach(connection::setNX);
+                        metas.forEach(((StringRedisConnection) connection)::hMSet);
+                        return null;
+                    }));
+        });
+        phaser.arriveAndAwaitAdvance();
+        // 秒杀时间以数据库为准重新写入，各节点重新读取
+        seckillMeta.invalidateAll();
+        p.finish();
+    }
+
+    private void submit(ThreadPoolExecutor writers, Phaser phaser, Progress p, int size, Runnable write) {
+        phaser.register();
+        writers.execute(() -> {
+            try {
+                write.run();
+                p.written.add(size);
+            } catch (Exception e) {
+                p.failedBatches.increment();
+                log.error("缓存预热写入失败, size={}", size, e);
+            } finally {
+                phaser.arriveAndDeregister();
+            }
+        });
+    }
+
+    /**
+     * 按主键顺序游标扫描，每次取batchSize条
+     */
+    private <T> void scan(BaseMapper<T> mapper, String idColumn, Function<T, Long> idGetter,
+                          Progress p, Consumer<List<T>> consumer) {
+        long lastId = 0L;
+        while (true) {
+            List<T> rows = mapper.selectList(new QueryWrapper<T>()
+                    .gt(idColumn, lastId)
+                    .orderByAsc(idColumn)
+                    .last("limit " + batchSize));
+            if (rows == null || rows.isEmpty()) {
+                return;
+            }
+            p.scanned.add(rows.size());
+            consumer.accept(rows);
+            lastId = idGetter.apply(rows.get(rows.size() - 1));
+            if (rows.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        warmupExecutor.shutdownNow();
+    }
+
+    private static class Progress {
+        private final LongAdder scanned = new LongAdder();
+        private final LongAdder written = new LongAdder();
+        private final LongAdder failedBatches = new LongAdder();
+        private volatile long begin;
+        private volatile long end;
+
+        private void begin() {
+            begin = System.currentTimeMillis();
+        }
+
+        private void finish() {
+            end = System.currentTimeMillis();
+        }
+
+        private long cost() {
+            if (begin == 0L) {
+                return 0L;
+            }
+            return (end == 0L ? System.currentTimeMillis() : end) - begin;
+        }
+
+        private long throughput(long millis) {
+            return millis <= 0 ? written.sum() : written.sum() * 1000 / millis;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("scanned", scanned.sum());
+            map.put("written", written.sum());
+            map.put("failedBatches", failedBatches.sum());
+            map.put("costMillis", cost());
+            map.put("throughput", throughput(cost()));
+            map.put("done", end != 0L);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的耗时直方图，记录时只对一个桶计数，不加锁
+ */
+public class LatencyHistogram {
+
+    // 各桶上限(ms)，最后还有一个+Inf桶
+    private static final double[] BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        double millis = nanos / 1_000_000D;
+        int i = 0;
+        while (i < BOUNDS_MILLIS.length && millis > BOUNDS_MILLIS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * 从startNanos(System.nanoTime())到现在的耗时
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / 1_000_000_000D;
+    }
+
+    public int bucketCount() {
+        return BOUNDS_MILLIS.length;
+    }
+
+    /**
+     * 第i个桶的上限(秒)
+     */
+    public double bucketBoundSeconds(int i) {
+        return BOUNDS_MILLIS[i] / 1000D;
+    }
+
+    /**
+     * 小于等于第i个桶上限的累计次数，i为bucketCount()时表示+Inf
+     */
+    public long cumulativeCount(int i) {
+        long cumulative = 0;
+        for (int j = 0; j <= i; j++) {
+            cumulative += buckets[j].sum();
+        }
+        return cumulative;
+    }
+}
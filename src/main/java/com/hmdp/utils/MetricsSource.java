@@ -0,0 +1,9 @@
+package com.hmdp.utils;
+
+/**
+ * 指标来源，由 /metrics 接口统一收集后按prometheus文本格式输出
+ */
+public interface MetricsSource {
+
+    void writeMetrics(MetricsWriter writer);
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * prometheus文本格式(0.0.4)输出
+ * 标签按 name1, value1, name2, value2 ... 的顺序传入
+ */
+public class MetricsWriter {
+
+    private final StringBuilder out = new StringBuilder(4096);
+
+    // 已输出过HELP和TYPE的指标名
+    private final Set<String> declared = new HashSet<>();
+
+    public MetricsWriter counter(String name, String help, double value, String... labels) {
+        declare(name, "counter", help);
+        sample(name, labels, null, value);
+        return this;
+    }
+
+    public MetricsWriter gauge(String name, String help, double value, String... labels) {
+        declare(name, "gauge", help);
+        sample(name, labels, null, value);
+        return this;
+    }
+
+    public MetricsWriter histogram(String name, String help, LatencyHistogram histogram, String... labels) {
+        declare(name, "histogram", help);
+        for (int i = 0; i < histogram.bucketCount(); i++) {
+            sample(name + "_bucket", labels, "le=\"" + histogram.bucketBoundSeconds(i) + "\"",
+                    histogram.cumulativeCount(i));
+        }
+        sample(name + "_bucket", labels, "le=\"+Inf\"", histogram.cumulativeCount(histogram.bucketCount()));
+        sample(name + "_sum", labels, null, histogram.getSumSeconds());
+        sample(name + "_count", labels, null, histogram.getCount());
+        return this;
+    }
+
+    private void declare(String name, String type, String help) {
+        if (declared.add(name)) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+    }
+
+    private void sample(String name, String[] labels, String extraLabel, double value) {
+        out.append(name);
+        if (labels.length > 0 || extraLabel != null) {
+            out.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            if (extraLabel != null) {
+                if (labels.length > 0) {
+                    out.append(',');
+                }
+                out.append(extraLabel);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
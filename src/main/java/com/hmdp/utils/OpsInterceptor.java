@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+
+public class OpsInterceptor implements HandlerInterceptor {
+
+    // 允许调用运维接口的用户id，为空时所有人都不能调用
+    private final Set<Long> adminUserIds;
+
+    public OpsInterceptor(Set<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 在登录拦截器之后执行，这里只判断是否是运维人员
+        UserDTO user = UserHolder.getUser();
+        if(user == null || !adminUserIds.contains(user.getId())){
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
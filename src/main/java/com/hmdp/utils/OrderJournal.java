@@ -0,0 +1,472 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * 已接受订单的本地预写日志：
+ * 1. 请求线程先预占预分配环形缓冲区中的槽位，下单成功后写入基本类型字段，无锁且不创建对象；缓冲区满时直接拒绝下单
+ * 2. 后台线程把缓冲区中的记录批量写入固定大小的段文件(mmap追加定长记录)，写入后JVM被kill数据仍在page cache中；
+ *    写入之前(通常不超过1ms)记录只在堆内的缓冲区中，不等待刷盘的调用方在这段时间内被kill会丢失该记录
+ * 3. 后台线程合并刷盘(group commit)，需要抵御机器掉电时调用方等待所在记录刷盘即可，多个调用方共用一次fsync
+ * 4. 订单确认(ack)后从内存中移除，一个段写满且其中的订单全部确认后删除该段文件；
+ *    确认早于写入时(记录仍在缓冲区中)记录墓碑，写入时发现墓碑直接确认，否则该订单会一直留在内存和段文件中
+ * 5. 启动时读取剩余的段，校验失败的记录视为写入中断并截断
+ */
+@Slf4j
+public class OrderJournal implements Closeable {
+
+    // 记录格式：magic(4) orderId(8) userId(8) voucherId(8) createTime(8) crc(4)
+    public static final int RECORD_SIZE = 40;
+    private static final int MAGIC = 0x4F4A4E4C;
+    private static final String SUFFIX = ".journal";
+    private static final int DRAIN_BATCH_SIZE = 1024;
+    // 缓冲区为空时刷盘线程的休眠时间，即订单在写入段文件前停留在内存中的最长时间
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final File dir;
+    private final int segmentSize;
+    private final long flushIntervalMillis;
+
+    // orderId -> 未确认的订单
+    private final Map<Long, Entry> pending = new ConcurrentHashMap<>();
+    // 早于写入到达的确认，orderId -> 确认时缓冲区已占用的最大序号，写入到该序号后不再需要
+    private final Map<Long, Long> earlyAcks = new ConcurrentHashMap<>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private Segment active;
+    private long nextSegmentId;
+
+    // 写入时复用，只在刷盘线程中使用(打开和关闭时刷盘线程未运行)
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    // 请求线程写入缓冲区，刷盘线程批量写入段文件
+    private final OrderRingBuffer ring;
+    private final OrderRingBuffer.SlotHandler writer = this::write;
+
+    // 已写入段文件和已刷盘的记录序号
+    private volatile long written;
+    private volatile long forced;
+    private final Object forceMonitor = new Object();
+    // 等待刷盘的请求中最大的记录序号
+    private final AtomicLong forceRequested = new AtomicLong();
+    private Thread flusher;
+    private volatile boolean running;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder deletedSegments = new LongAdder();
+    private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+
+    /**
+     * @param segmentSize 段文件大小，按记录大小向下取整
+     * @param flushIntervalMillis 没有调用方等待时的刷盘间隔
+     * @param bufferSize 缓冲区槽位数，需要容纳一个刷盘间隔内接受的订单
+     */
+    public OrderJournal(File dir, int segmentSize, long flushIntervalMillis, int bufferSize) {
+        this.dir = dir;
+        this.ring = new OrderRingBuffer(bufferSize);
+        this.segmentSize = Math.max(RECORD_SIZE, segmentSize / RECORD_SIZE * RECORD_SIZE);
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * 读取已有的段并开始写入新段
+     * @return 上次运行留下的未确认订单，仍然保留在日志中直到确认
+     */
+    public synchronized List<VoucherOrder> open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建日志目录: " + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        List<VoucherOrder> recovered = new ArrayList<>();
+        for (File file : files) {
+            long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            Segment segment = new Segment(file, (int) file.length());
+            recovered.addAll(recover(segment));
+        }
+        active = createSegment();
+        running = true;
+        flusher = new Thread(this::flushLoop, "order-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return recovered;
+    }
+
+    private List<VoucherOrder> recover(Segment segment) {
+        List<VoucherOrder> orders = new ArrayList<>();
+        MappedByteBuffer buffer = segment.buffer;
+        byte[] bytes = new byte[RECORD_SIZE];
+        int position = 0;
+        while (position + RECORD_SIZE <= segment.capacity) {
+            buffer.position(position);
+            buffer.get(bytes);
+            ByteBuffer r = ByteBuffer.wrap(bytes);
+            if (r.getInt(0) != MAGIC) {
+                break;
+            }
+            crc.reset();
+            crc.update(bytes, 4, RECORD_SIZE - 8);
+            if ((int) crc.getValue() != r.getInt(RECORD_SIZE - 4)) {
+                // 写入中断的记录，之后的内容都不可信
+                log.warn("日志记录校验失败，截断, file={}, position={}", segment.file.getName(), position);
+                break;
+            }
+            VoucherOrder order = new VoucherOrder()
+                    .setId(r.getLong(4))
+                    .setUserId(r.getLong(12))
+                    .setVoucherId(r.getLong(20))
+                    .setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(r.getLong(28)), ZoneId.systemDefault()));
+            // 同一订单可能被重复写入，只保留一份
+            if (pending.putIfAbsent(order.getId(),
+                    new Entry(order.getUserId(), order.getVoucherId(), r.getLong(28), segment)) == null) {
+                segment.pending.incrementAndGet();
+                orders.add(order);
+            }
+            position += RECORD_SIZE;
+        }
+        segment.position = position;
+        segment.forcedPosition = position;
+        segment.sealed = true;
+        segments.add(segment);
+        deleteIfDone(segment);
+        return orders;
+    }
+
+    /**
+     * 预占一条记录的位置，之后必须调用append或cancel
+     * @return 记录序号；缓冲区已满或日志已关闭时返回-1
+     */
+    public long reserve() {
+        return running ? ring.tryClaim() : -1L;
+    }
+
+    /**
+     * 写入预占位置的订单，由刷盘线程批量写入段文件
+     */
+    public void append(long sequence, long orderId, long userId, long voucherId, long createMillis) {
+        ring.publish(sequence, orderId, userId, voucherId, createMillis);
+    }
+
+    /**
+     * 放弃预占的位置
+     */
+    public void cancel(long sequence) {
+        ring.cancel(sequence);
+    }
+
+    /**
+     * 把缓冲区中已发布的一批记录写入段文件，只在刷盘线程中调用
+     * @return 读取的记录数
+     */
+    private int drain() {
+        int count = ring.drain(writer, DRAIN_BATCH_SIZE);
+        written = ring.getConsumed();
+        if (!earlyAcks.isEmpty()) {
+            // 订单的记录一定在确认之前占用，已经写入过的墓碑属于其他节点的订单或已处理，可以删除
+            long consumed = written;
+            earlyAcks.values().removeIf(sequence -> sequence <= consumed);
+        }
+        return count;
+    }
+
+    private void write(long sequence, long orderId, long userId, long voucherId, long createMillis) {
+        if (active.position + RECORD_SIZE > active.capacity) {
+            roll();
+        }
+        record.clear();
+        record.putInt(MAGIC)
+                .putLong(orderId)
+                .putLong(userId)
+                .putLong(voucherId)
+                .putLong(createMillis);
+        crc.reset();
+        crc.update(record.array(), 4, RECORD_SIZE - 8);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        active.buffer.position(active.position);
+        active.buffer.put(record);
+        active.position += RECORD_SIZE;
+        active.pending.incrementAndGet();
+        pending.put(orderId, new Entry(userId, voucherId, createMillis, active));
+        appended.increment();
+        // 先写入pending再检查墓碑，和ack的顺序相反，两边至少有一边能看到对方
+        if (!earlyAcks.isEmpty() && earlyAcks.remove(orderId) != null) {
+            ack(orderId);
+        }
+    }
+
+    /**
+     * 等待记录刷盘，多个调用方共用一次fsync
+     * @return 超时前是否已刷盘
+     */
+    public boolean awaitForced(long sequence, long timeoutMillis) throws InterruptedException {
+        if (forced >= sequence) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        // 唤醒刷盘线程，不用等到下一个刷盘间隔
+        forceRequested.accumulateAndGet(sequence, Math::max);
+        LockSupport.unpark(flusher);
+        synchronized (forceMonitor) {
+            while (forced < sequence) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !running) {
+                    return false;
+                }
+                forceMonitor.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    public void ack(Long orderId) {
+        Entry entry = pending.remove(orderId);
+        if (entry == null) {
+            if (ring.size() == 0) {
+                // 其他节点接受的订单
+                return;
+            }
+            // 可能是缓冲区中还未写入的订单，记录墓碑后再检查一次，刷盘线程可能刚好在记录墓碑前写入
+            earlyAcks.put(orderId, ring.getClaimed());
+            entry = pending.remove(orderId);
+            if (entry == null) {
+                return;
+            }
+            earlyAcks.remove(orderId);
+        }
+        acked.increment();
+        if (entry.segment.pending.decrementAndGet() == 0) {
+            deleteIfDone(entry.segment);
+        }
+    }
+
+    public void ack(Collection<Long> orderIds) {
+        for (Long orderId : orderIds) {
+            ack(orderId);
+        }
+    }
+
+    /**
+     * 写入时间早于指定时间且仍未确认的订单
+     */
+    public List<VoucherOrder> pendingBefore(long createMillis) {
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (Map.Entry<Long, Entry> e : pending.entrySet()) {
+            Long orderId = e.getKey();
+            Entry entry = e.getValue();
+            if (entry.createMillis < createMillis) {
+                orders.add(entry.toVoucherOrder(orderId));
+            }
+        }
+        return orders;
+    }
+
+    private void roll() {
+        active.sealed = true;
+        Segment sealed = active;
+        active = createSegment();
+        deleteIfDone(sealed);
+    }
+
+    private Segment createSegment() {
+        File file = new File(dir, String.format("%020d", nextSegmentId) + SUFFIX);
+        try {
+            Segment segment = new Segment(file, segmentSize);
+            nextSegmentId++;
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new IllegalStateException("无法创建日志段: " + file, e);
+        }
+    }
+
+    /**
+     * 写满且全部确认的段可以删除
+     */
+    private void deleteIfDone(Segment segment) {
+        if (!segment.sealed || segment.pending.get() > 0 || !segment.deleted.compareAndSet(false, true)) {
+            return;
+        }
+        segments.remove(segment);
+        if (!segment.file.delete()) {
+            log.warn("删除日志段失败, file={}", segment.file);
+        }
+        deletedSegments.increment();
+    }
+
+    /**
+     * 持续把缓冲区中的记录写入段文件；距上次刷盘超过刷盘间隔或有请求等待刷盘时刷盘
+     */
+    private void flushLoop() {
+        long lastForce = System.nanoTime();
+        while (running) {
+            try {
+                int drained = drain();
+                if (written > forced && (forceRequested.get() > forced
+                        || System.nanoTime() - lastForce >= TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis))) {
+                    force();
+                    lastForce = System.nanoTime();
+                } else if (drained == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (Exception e) {
+                log.error("日志写入失败", e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+            }
+        }
+    }
+
+    /**
+     * 刷盘所有有新写入的段，先读取序号再刷盘，保证序号之前的记录都已落盘
+     */
+    private void force() {
+        long target = written;
+        if (target == forced) {
+            return;
+        }
+        long begin = System.nanoTime();
+        for (Segment segment : segments) {
+            int position = segment.position;
+            if (position > segment.forcedPosition) {
+                segment.buffer.force();
+                segment.forcedPosition = position;
+            }
+        }
+        fsyncLatency.recordSince(begin);
+        synchronized (forceMonitor) {
+            forced = target;
+            forceMonitor.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (drain() > 0) {
+            // 写完缓冲区中剩余的记录
+        }
+        force();
+        synchronized (forceMonitor) {
+            forceMonitor.notifyAll();
+        }
+    }
+
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    public long getAcked() {
+        return acked.sum();
+    }
+
+    public long getDeletedSegments() {
+        return deletedSegments.sum();
+    }
+
+    public int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * 缓冲区中还未写入段文件的记录数
+     */
+    public long bufferedSize() {
+        return ring.size();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    public LatencyHistogram getFsyncLatency() {
+        return fsyncLatency;
+    }
+
+    private static class Segment {
+        private final File file;
+        private final int capacity;
+        private final MappedByteBuffer buffer;
+        // 只在持有日志锁时修改
+        private volatile int position;
+        private volatile int forcedPosition;
+        private volatile boolean sealed;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean deleted = new AtomicBoolean();
+
+        private Segment(File file, int capacity) throws IOException {
+            this.file = file;
+            this.capacity = capacity;
+            // 映射之后关闭文件，映射在buffer被回收前一直有效
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < capacity) {
+                    raf.setLength(capacity);
+                }
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final long userId;
+        private final long voucherId;
+        private final long createMillis;
+        private final Segment segment;
+
+        private Entry(long userId, long voucherId, long createMillis, Segment segment) {
+            this.userId = userId;
+            this.voucherId = voucherId;
+            this.createMillis = createMillis;
+            this.segment = segment;
+        }
+
+        private VoucherOrder toVoucherOrder(Long orderId) {
+            return new VoucherOrder()
+                    .setId(orderId)
+                    .setUserId(userId)
+                    .setVoucherId(voucherId)
+                    .setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(createMillis), ZoneId.systemDefault()));
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 秒杀订单本地日志的管理：
+ * 1. 秒杀脚本接受订单后、接口返回前写入日志；订单处理结束(CREATED/FAILED)的通知到达时确认
+ * 2. 订单和库存扣减一起写在redis中，redis故障切换或重启丢失最近的写入时，已经告诉用户成功的订单也会丢失，日志用于找回这些订单
+ * 3. 启动后和定期检查长时间未确认的订单：数据库中已有或redis中已结束的直接确认，redis中仍在处理的保留，
+ *    两边都找不到的交给重放处理器重新写入订单队列；上次运行留下的订单由订单消费线程重放，不阻塞启动
+ * 每个节点需要使用独立的日志目录
+ */
+@Slf4j
+@Component
+public class OrderJournalManager implements MessageListener, MetricsSource {
+
+    // 日志未启用时预占返回的序号
+    public static final long DISABLED = 0L;
+    // 日志缓冲区已满时预占返回的序号
+    public static final long FULL = -1L;
+
+    // 重放时每批检查的订单数
+    private static final int REPLAY_BATCH_SIZE = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Value("${hmdp.order.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.order.journal.dir:data/order-journal}")
+    private String dir;
+
+    @Value("${hmdp.order.journal.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    // 没有请求等待刷盘时的刷盘间隔
+    @Value("${hmdp.order.journal.flush-interval-ms:10}")
+    private long flushIntervalMillis;
+
+    // 缓冲区槽位数，需要容纳一个刷盘间隔内接受的订单，满时拒绝下单
+    @Value("${hmdp.order.journal.buffer-size:65536}")
+    private int bufferSize;
+
+    // 是否等待刷盘后再返回，默认等待：多个请求的记录由刷盘线程合并成一次fsync；
+    // 不等待时返回前记录只在堆内的缓冲区中，刷盘线程写入段文件之前进程被kill或机器掉电都会丢失该记录
+    @Value("${hmdp.order.journal.sync:true}")
+    private boolean sync;
+
+    @Value("${hmdp.order.journal.sync-timeout-ms:200}")
+    private long syncTimeoutMillis;
+
+    // 超过该时间仍未确认的订单检查是否丢失
+    @Value("${hmdp.order.journal.replay-after-ms:60000}")
+    private long replayAfterMillis;
+
+    private OrderJournal journal;
+
+    // 上次运行留下的订单，由replayRecovered重放，重放之前不做定期检查
+    private volatile List<VoucherOrder> recovered;
+
+    private volatile Consumer<List<VoucherOrder>> replayHandler;
+
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder syncTimeouts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long recoverMillis;
+    private volatile int recoveredCount;
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        journal = new OrderJournal(new File(dir), segmentSizeMb * 1024 * 1024, flushIntervalMillis, bufferSize);
+        recovered = journal.open();
+        recoverMillis = System.currentTimeMillis() - begin;
+        recoveredCount = recovered.size();
+        log.info("订单日志已打开, dir={}, recovered={}, costMillis={}", dir, recoveredCount, recoverMillis);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.ORDER_STATUS_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * 预占日志位置，在秒杀脚本之前调用，之后必须调用append或cancel
+     * @return 序号；日志未启用时返回DISABLED，缓冲区已满时返回FULL，此时应拒绝下单
+     */
+    public long reserve() {
+        if (journal == null) {
+            return DISABLED;
+        }
+        long sequence = journal.reserve();
+        if (sequence < 0) {
+            rejected.increment();
+            return FULL;
+        }
+        return sequence;
+    }
+
+    /**
+     * 记录已被秒杀脚本接受的订单
+     */
+    public void append(long sequence, long orderId, long userId, long voucherId) {
+        if (journal == null || sequence <= 0) {
+            return;
+        }
+        journal.append(sequence, orderId, userId, voucherId, System.currentTimeMillis());
+        if (!sync) {
+            return;
+        }
+        try {
+            if (!journal.awaitForced(sequence, syncTimeoutMillis)) {
+                syncTimeouts.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 秒杀脚本没有接受订单时放弃预占的位置
+     */
+    public void cancel(long sequence) {
+        if (journal != null && sequence > 0) {
+            journal.cancel(sequence);
+        }
+    }
+
+    /**
+     * 注册重放处理器，上次运行留下的订单之后由replayRecovered重放
+     */
+    public void start(Consumer<List<VoucherOrder>> handler) {
+        replayHandler = handler;
+    }
+
+    /**
+     * 检查并重放上次运行留下的订单，在订单消费线程上调用，订单多时可能需要较长时间
+     * 中途失败时剩下的订单仍未确认，由定期检查处理
+     */
+    public void replayRecovered() {
+        List<VoucherOrder> orders = recovered;
+        if (orders == null || replayHandler == null) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            for (int from = 0; from < orders.size(); from += REPLAY_BATCH_SIZE) {
+                replay(orders.subList(from, Math.min(orders.size(), from + REPLAY_BATCH_SIZE)));
+                log.info("检查上次运行留下的订单, progress={}/{}", Math.min(orders.size(), from + REPLAY_BATCH_SIZE), orders.size());
+            }
+            log.info("上次运行留下的订单检查完成, size={}, costMillis={}", orders.size(), System.currentTimeMillis() - begin);
+        } finally {
+            recovered = null;
+        }
+    }
+
+    /**
+     * 定期检查长时间未确认的订单，确认通知可能丢失，redis也可能在运行中丢失数据
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.journal.replay-after-ms:60000}")
+    public void replayStale() {
+        if (journal == null || replayHandler == null || recovered != null) {
+            return;
+        }
+        try {
+            List<VoucherOrder> stale = journal.pendingBefore(System.currentTimeMillis() - replayAfterMillis);
+            if (!stale.isEmpty()) {
+                replay(stale);
+            }
+        } catch (Exception e) {
+            log.error("检查未确认订单失败", e);
+        }
+    }
+
+    private void replay(List<VoucherOrder> orders) {
+        for (int from = 0; from < orders.size(); from += REPLAY_BATCH_SIZE) {
+            List<VoucherOrder> batch = orders.subList(from, Math.min(orders.size(), from + REPLAY_BATCH_SIZE));
+            List<Long> ids = new ArrayList<>(batch.size());
+            for (VoucherOrder voucherOrder : batch) {
+                ids.add(voucherOrder.getId());
+            }
+            // 1.数据库中已有的订单
+            Set<Long> persisted = new HashSet<>();
+            for (VoucherOrder voucherOrder : voucherOrderMapper.selectList(
+                    new QueryWrapper<VoucherOrder>().select("id").in("id", ids))) {
+                persisted.add(voucherOrder.getId());
+            }
+            // 2.redis中的处理结果，和订单在同一个脚本中写入
+            List<Object> statuses = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long id : ids) {
+                    conn.hGet(RedisConstants.ORDER_STATUS_KEY + id, "status");
+                }
+                return null;
+            });
+            List<VoucherOrder> lost = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                VoucherOrder voucherOrder = batch.get(i);
+                Object status = statuses.get(i);
+                if (persisted.contains(voucherOrder.getId())
+                        || (status != null && !OrderStatus.PENDING.equals(status))) {
+                    journal.ack(voucherOrder.getId());
+                } else if (status == null) {
+                    lost.add(voucherOrder);
+                }
+            }
+            if (!lost.isEmpty()) {
+                log.warn("redis中找不到已接受的订单，从日志重放, size={}", lost.size());
+                replayHandler.accept(lost);
+                replayed.add(lost.size());
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // {orderId}:{status}
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 2);
+        if (journal == null || parts.length != 2 || OrderStatus.PENDING.equals(parts[1])) {
+            return;
+        }
+        journal.ack(Long.valueOf(parts[0]));
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        if (journal == null) {
+            return;
+        }
+        writer.counter("hmdp_order_journal_appended_total", "Orders appended to the local journal", journal.getAppended())
+                .counter("hmdp_order_journal_acked_total", "Journal orders acknowledged", journal.getAcked())
+                .counter("hmdp_order_journal_replayed_total", "Journal orders replayed into the order stream", replayed.sum())
+                .counter("hmdp_order_journal_sync_timeouts_total", "Appends that gave up waiting for fsync", syncTimeouts.sum())
+                .counter("hmdp_order_journal_rejected_total", "Seckill requests rejected because the journal buffer was full", rejected.sum())
+                .counter("hmdp_order_journal_deleted_segments_total", "Journal segments deleted", journal.getDeletedSegments())
+                .gauge("hmdp_order_journal_buffered", "Journal records waiting in the ring buffer", journal.bufferedSize())
+                .gauge("hmdp_order_journal_pending", "Journal orders not yet acknowledged", journal.pendingSize())
+                .gauge("hmdp_order_journal_segments", "Journal segment files", journal.segmentCount())
+                .gauge("hmdp_order_journal_recovered", "Orders read from the journal at startup", recoveredCount)
+                .gauge("hmdp_order_journal_recover_seconds", "Time to read the journal at startup", recoverMillis / 1000D)
+                .histogram("hmdp_order_journal_fsync_seconds", "Time of one group fsync", journal.getFsyncLatency());
+    }
+}
@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 多生产者单消费者的环形缓冲区，槽位预先分配，按字段存放在long数组中，写入订单不创建对象：
+ * 1. 生产者CAS推进游标占用槽位，缓冲区满时立即返回-1，不阻塞也不抛异常
+ * 2. 写入字段后发布槽位，消费者按序号顺序批量读取已发布的槽位，遇到未发布的槽位时停止
+ * 3. 占用的槽位必须发布或取消，否则消费者会停在该槽位
+ */
+public class OrderRingBuffer {
+
+    // orderId为该值的槽位表示已取消，消费者跳过
+    private static final long CANCELLED = 0L;
+
+    private final int capacity;
+    private final int mask;
+
+    private final long[] orderIds;
+    private final long[] userIds;
+    private final long[] voucherIds;
+    private final long[] createMillis;
+    // 槽位上已发布的序号，用于判断槽位是否可读
+    private final AtomicLong claimed = new AtomicLong(0L);
+    private final AtomicLongArray published;
+
+    // 已读取的最大序号，只由消费者写入
+    private volatile long consumed;
+
+    /**
+     * 槽位的处理，参数都是基本类型，读取不创建对象
+     */
+    public interface SlotHandler {
+        void onOrder(long sequence, long orderId, long userId, long voucherId, long createMillis);
+    }
+
+    /**
+     * @param capacity 槽位数，向上取整为2的幂
+     */
+    public OrderRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.orderIds = new long[size];
+        this.userIds = new long[size];
+        this.voucherIds = new long[size];
+        this.createMillis = new long[size];
+        this.published = new AtomicLongArray(size);
+    }
+
+    /**
+     * 占用一个槽位
+     * @return 槽位序号，从1开始；缓冲区已满时返回-1
+     */
+    public long tryClaim() {
+        while (true) {
+            long current = claimed.get();
+            long next = current + 1;
+            // 新序号和消费者的距离不能超过容量，否则会覆盖未读取的槽位
+            if (next - consumed > capacity) {
+                return -1L;
+            }
+            if (claimed.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    public void publish(long sequence, long orderId, long userId, long voucherId, long createTime) {
+        int index = (int) (sequence & mask);
+        orderIds[index] = orderId;
+        userIds[index] = userId;
+        voucherIds[index] = voucherId;
+        createMillis[index] = createTime;
+        // 有序写入，保证消费者看到序号时字段已经写入
+        published.lazySet(index, sequence);
+    }
+
+    public void cancel(long sequence) {
+        int index = (int) (sequence & mask);
+        orderIds[index] = CANCELLED;
+        published.lazySet(index, sequence);
+    }
+
+    /**
+     * 批量读取已发布的槽位，只能由一个线程调用
+     * @return 读取的槽位数，包括已取消的
+     */
+    public int drain(SlotHandler handler, int max) {
+        long next = consumed + 1;
+        int count = 0;
+        while (count < max) {
+            int index = (int) (next & mask);
+            if (published.get(index) != next) {
+                break;
+            }
+            long orderId = orderIds[index];
+            if (orderId != CANCELLED) {
+                handler.onOrder(next, orderId, userIds[index], voucherIds[index], createMillis[index]);
+            }
+            next++;
+            count++;
+        }
+        if (count > 0) {
+            consumed = next - 1;
+        }
+        return count;
+    }
+
+    /**
+     * 已占用的最大序号
+     */
+    public long getClaimed() {
+        return claimed.get();
+    }
+
+    /**
+     * 已读取的最大序号
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 已占用但未读取的槽位数
+     */
+    public long size() {
+        return claimed.get() - consumed;
+    }
+}
@@ -0,0 +1,241 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀订单处理结果：
+ * 1. 秒杀脚本下单成功时写入 PENDING，后台线程写入数据库后改为 CREATED，无法创建时改为 FAILED，
+ *    CREATED 的订单超时未支付时改为 CANCELLED
+ * 2. 结果保存在有过期时间的redis hash中，不会再变化的结果(FAILED、CANCELLED)同时缓存在本地
+ * 3. 结果变化通过发布订阅通知所有节点，唤醒本节点上等待该订单的长轮询请求
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker implements MessageListener, MetricsSource {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // redis中结果的存活时间(秒)
+    @Value("${hmdp.order.status.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    // 长轮询的最长等待时间
+    @Value("${hmdp.order.status.max-wait-ms:30000}")
+    private long maxWaitMillis;
+
+    @Value("${hmdp.order.status.local-size:10000}")
+    private int localSize;
+
+    // 不会再变化的结果，本地缓存直到过期；CREATED之后还可能被取消，不缓存
+    private LocalCache finished;
+
+    // orderId -> 等待该订单结果的长轮询请求
+    private final Map<Long, Set<CompletableFuture<Result>>> waiters = new ConcurrentHashMap<>();
+
+    // 长轮询到期后返回当前结果，随bean一起销毁
+    private final ScheduledExecutorService timeoutExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-status-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder longPolls = new LongAdder();
+    private final LongAdder longPollTimeouts = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        finished = new LocalCache(RedisConstants.ORDER_STATUS_KEY, localSize, ttlSeconds * 1000L);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.ORDER_STATUS_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        timeoutExecutor.shutdownNow();
+    }
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public void markCreated(Collection<VoucherOrder> orders) {
+        update(orders, OrderStatus.CREATED, null);
+    }
+
+    public void markFailed(Collection<VoucherOrder> orders, String reason) {
+        update(orders, OrderStatus.FAILED, reason);
+    }
+
+    public void markCancelled(Collection<VoucherOrder> orders) {
+        update(orders, OrderStatus.CANCELLED, "超时未支付");
+    }
+
+    /**
+     * 一次pipeline写入结果并发布通知
+     */
+    private void update(Collection<VoucherOrder> orders, String status, String reason) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = RedisConstants.ORDER_STATUS_KEY + order.getId();
+                    Map<String, String> fields = new LinkedHashMap<>();
+                    fields.put("userId", String.valueOf(order.getUserId()));
+                    fields.put("voucherId", String.valueOf(order.getVoucherId()));
+                    fields.put("status", status);
+                    if (reason != null) {
+                        fields.put("reason", reason);
+                    }
+                    conn.hMSet(key, fields);
+                    conn.expire(key, ttlSeconds);
+                    conn.publish(RedisConstants.ORDER_STATUS_CHANNEL, order.getId() + ":" + status);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 结果写入失败不影响订单本身，查询时会回退到数据库
+            log.warn("订单结果写入失败, status={}, size={}", status, orders.size(), e);
+        }
+    }
+
+    /**
+     * 查询订单结果，先查本地缓存再查redis，都没有时返回null
+     */
+    public OrderStatus get(Long orderId) {
+        polls.increment();
+        OrderStatus cached = (OrderStatus) finished.get(RedisConstants.ORDER_STATUS_KEY + orderId);
+        if (cached != null) {
+            return cached;
+        }
+        Map<Object, Object> fields = stringRedisTemplate.opsForHash().entries(RedisConstants.ORDER_STATUS_KEY + orderId);
+        if (fields.isEmpty()) {
+            return null;
+        }
+        OrderStatus orderStatus = toOrderStatus(orderId, fields);
+        if (isFinal(orderStatus)) {
+            finished.put(RedisConstants.ORDER_STATUS_KEY + orderId, orderStatus);
+        }
+        return orderStatus;
+    }
+
+    /**
+     * 长轮询：结果未结束时返回未完成的future，结果变化或超时后完成，不会异常结束
+     * @param current 当前结果，已结束时直接返回
+     */
+    public CompletableFuture<Result> await(OrderStatus current, long waitMillis) {
+        long timeout = Math.min(waitMillis, maxWaitMillis);
+        if (current.isFinished() || timeout <= 0) {
+            return CompletableFuture.completedFuture(Result.ok(current));
+        }
+        longPolls.increment();
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        waiters.computeIfAbsent(current.getOrderId(), k -> ConcurrentHashMap.newKeySet()).add(result);
+        ScheduledFuture<?> expiry = timeoutExecutor.schedule(() -> {
+            if (result.complete(Result.ok(current))) {
+                longPollTimeouts.increment();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        // 结果返回、超时或被调用方取消时都移除等待
+        result.whenComplete((r, e) -> {
+            expiry.cancel(false);
+            removeWaiter(current.getOrderId(), result);
+        });
+        // 注册之前结果可能已经变化，注册后再查一次
+        OrderStatus latest = get(current.getOrderId());
+        if (latest != null && latest.isFinished()) {
+            result.complete(Result.ok(latest));
+        }
+        return result;
+    }
+
+    private void removeWaiter(Long orderId, CompletableFuture<Result> result) {
+        waiters.computeIfPresent(orderId, (k, set) -> {
+            set.remove(result);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // {orderId}:{status}
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 2);
+        if (parts.length != 2) {
+            return;
+        }
+        Long orderId = Long.valueOf(parts[0]);
+        // 只有本节点有等待的请求时才读取结果
+        Set<CompletableFuture<Result>> set = waiters.get(orderId);
+        if (set == null || set.isEmpty()) {
+            return;
+        }
+        OrderStatus latest = get(orderId);
+        if (latest == null || !latest.isFinished()) {
+            return;
+        }
+        for (CompletableFuture<Result> result : set) {
+            result.complete(Result.ok(latest));
+        }
+    }
+
+    private static boolean isFinal(OrderStatus orderStatus) {
+        return OrderStatus.FAILED.equals(orderStatus.getStatus()) || OrderStatus.CANCELLED.equals(orderStatus.getStatus());
+    }
+
+    private OrderStatus toOrderStatus(Long orderId, Map<Object, Object> fields) {
+        OrderStatus orderStatus = new OrderStatus();
+        orderStatus.setOrderId(orderId);
+        orderStatus.setUserId(toLong(fields.get("userId")));
+        orderStatus.setVoucherId(toLong(fields.get("voucherId")));
+        orderStatus.setStatus((String) fields.get("status"));
+        orderStatus.setReason((String) fields.get("reason"));
+        return orderStatus;
+    }
+
+    private static Long toLong(Object value) {
+        return value == null ? null : Long.valueOf(value.toString());
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("hmdp_order_status_queries_total", "Order status lookups", polls.sum())
+                .counter("hmdp_order_status_long_polls_total", "Order status long polls parked", longPolls.sum())
+                .counter("hmdp_order_status_long_poll_timeouts_total", "Order status long polls that timed out", longPollTimeouts.sum())
+                .gauge("hmdp_order_status_waiters", "Orders with parked long polls on this node", waiters.size())
+                .gauge("hmdp_order_status_local_size", "Finished order statuses cached on this node", finished.size());
+    }
+}
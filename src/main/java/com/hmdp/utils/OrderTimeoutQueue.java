@@ -0,0 +1,208 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ * 未支付订单的超时取消：
+ * 1. 订单写入数据库后加入 order:timeout，score为超时时间，同时加入本节点的时间轮，到期时不需要轮询redis
+ * 2. 到期时用脚本认领：score仍未推后的订单把score推后到重试时间，认领成功的才交给处理器，
+ *    多个节点(时间轮和扫描)同时到期时一般只处理一次；取消的事务提交后才ZREM
+ * 3. 定时扫描ZSET中超时较久仍未删除的订单，处理写入节点宕机或重启、时间轮丢失的情况
+ * 4. 处理失败或认领后宕机的订单留在ZSET中，重试时间之后由扫描重新认领；取消只修改未支付的订单，重复处理没有影响
+ */
+@Slf4j
+@Component
+public class OrderTimeoutQueue implements MetricsSource {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.order.timeout.enabled:true}")
+    private boolean enabled;
+
+    // 下单后未支付的最长时间
+    @Value("${hmdp.order.timeout.pay-timeout-ms:900000}")
+    private long payTimeoutMillis;
+
+    // 时间轮每格的时间跨度
+    @Value("${hmdp.order.timeout.tick-ms:100}")
+    private long tickMillis;
+
+    @Value("${hmdp.order.timeout.wheel-size:4096}")
+    private int wheelSize;
+
+    // 每批取消的订单数
+    @Value("${hmdp.order.timeout.batch-size:500}")
+    private int batchSize;
+
+    // 超时超过该时间仍在ZSET中的订单由扫描处理，正常情况下时间轮先到期
+    @Value("${hmdp.order.timeout.sweep-grace-ms:10000}")
+    private long sweepGraceMillis;
+
+    // 认领后超过该时间仍未删除(取消失败或节点宕机)的订单可以被重新认领
+    @Value("${hmdp.order.timeout.claim-retry-ms:60000}")
+    private long claimRetryMillis;
+
+    private TimingWheel wheel;
+
+    private volatile Consumer<List<Long>> cancelHandler;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder swept = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * 注册取消处理器并启动时间轮，处理器在数据库中取消订单并归还库存
+     */
+    public void start(Consumer<List<Long>> handler) {
+        if (!enabled) {
+            return;
+        }
+        cancelHandler = handler;
+        wheel = new TimingWheel(tickMillis, wheelSize, batchSize, this::claimAndCancel);
+        wheel.start("order-timeout-wheel");
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+    }
+
+    /**
+     * 加入超时队列，重复加入同一订单只保留一个
+     */
+    public void schedule(Collection<VoucherOrder> orders) {
+        if (wheel == null || orders.isEmpty()) {
+            return;
+        }
+        List<Long> deadlines = new ArrayList<>(orders.size());
+        for (VoucherOrder voucherOrder : orders) {
+            deadlines.add(voucherOrder.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                    + payTimeoutMillis);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            int i = 0;
+            for (VoucherOrder voucherOrder : orders) {
+                conn.zAdd(ORDER_TIMEOUT_KEY, deadlines.get(i++), voucherOrder.getId().toString());
+            }
+            return null;
+        });
+        int i = 0;
+        for (VoucherOrder voucherOrder : orders) {
+            wheel.schedule(voucherOrder.getId(), deadlines.get(i++));
+        }
+        scheduled.add(orders.size());
+    }
+
+    /**
+     * 扫描超时较久仍未处理的订单，每批处理后继续直到没有
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.timeout.sweep-interval-ms:5000}")
+    public void sweep() {
+        if (wheel == null) {
+            return;
+        }
+        try {
+            while (true) {
+                Set<String> expired = stringRedisTemplate.opsForZSet().rangeByScore(ORDER_TIMEOUT_KEY,
+                        0, System.currentTimeMillis() - sweepGraceMillis, 0, batchSize);
+                if (expired == null || expired.isEmpty()) {
+                    return;
+                }
+                List<Long> ids = new ArrayList<>(expired.size());
+                for (String id : expired) {
+                    ids.add(Long.valueOf(id));
+                }
+                swept.add(claimAndCancel(ids));
+                if (expired.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("扫描超时订单失败", e);
+        }
+    }
+
+    /**
+     * 认领到期的订单交给处理器取消，取消成功后从ZSET删除
+     * @return 本节点认领的订单数
+     */
+    private int claimAndCancel(List<Long> ids) {
+        fired.add(ids.size());
+        long now = System.currentTimeMillis();
+        List<String> args = new ArrayList<>(ids.size() + 2);
+        args.add(String.valueOf(now));
+        args.add(String.valueOf(now + claimRetryMillis));
+        for (Long id : ids) {
+            args.add(id.toString());
+        }
+        List<Object> result = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Collections.singletonList(ORDER_TIMEOUT_KEY), args.toArray());
+        if (result == null || result.isEmpty()) {
+            return 0;
+        }
+        List<Long> owned = new ArrayList<>(result.size());
+        for (Object id : result) {
+            owned.add(Long.valueOf(id.toString()));
+        }
+        claimed.add(owned.size());
+        try {
+            cancelHandler.accept(owned);
+        } catch (Exception e) {
+            // 仍在ZSET中，重试时间之后由扫描重新认领
+            failed.add(owned.size());
+            log.error("取消超时订单失败，等待重试, size={}", owned.size(), e);
+            return owned.size();
+        }
+        // 取消已提交，删除失败时重试时间后再认领一次，取消不会重复生效
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, owned.stream().map(String::valueOf).toArray());
+        return owned.size();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        if (wheel == null) {
+            return;
+        }
+        writer.counter("hmdp_order_timeout_scheduled_total", "Orders scheduled for payment timeout", scheduled.sum())
+                .counter("hmdp_order_timeout_fired_total", "Timeouts fired by the timing wheel or the sweeper", fired.sum())
+                .counter("hmdp_order_timeout_claimed_total", "Timeouts claimed by this node", claimed.sum())
+                .counter("hmdp_order_timeout_swept_total", "Timeouts claimed by the sweeper instead of the timing wheel", swept.sum())
+                .counter("hmdp_order_timeout_failed_total", "Timeouts whose cancellation failed and will be reclaimed", failed.sum())
+                .gauge("hmdp_order_timeout_wheel_size", "Timeouts waiting in the local timing wheel", wheel.size());
+    }
+}
@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 接口限流，由RateLimitAspect在redis中用lua脚本原子判断
+ * 可以重复标注，按用户、IP、全局分别限流，全部通过才放行
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(RateLimit.List.class)
+public @interface RateLimit {
+
+    /**
+     * 限流名称，和维度一起组成redis的key
+     */
+    String name();
+
+    Dimension dimension() default Dimension.USER;
+
+    Algorithm algorithm() default Algorithm.TOKEN_BUCKET;
+
+    /**
+     * 每个周期允许的请求数；令牌桶为每个周期补充的令牌数
+     */
+    long permits();
+
+    long period() default 1;
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+
+    /**
+     * 令牌桶容量，即允许的突发请求数，不大于0时等于permits
+     */
+    long burst() default 0;
+
+    String message() default "请求过于频繁，请稍后再试";
+
+    enum Dimension {
+        // 登录用户，未登录时按IP
+        USER,
+        IP,
+        // 所有请求共用
+        GLOBAL
+    }
+
+    enum Algorithm {
+        TOKEN_BUCKET,
+        SLIDING_WINDOW
+    }
+
+    @Documented
+    @Target(ElementType.METHOD)
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface List {
+        RateLimit[] value();
+    }
+}
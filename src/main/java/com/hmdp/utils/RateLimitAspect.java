@@ -0,0 +1,224 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 处理@RateLimit：
+ * 1. 本地预过滤：被redis拒绝的key记录可再次通过的时间，在此之前本节点直接拒绝，不访问redis
+ * 2. 令牌桶/滑动窗口由lua脚本在redis中原子判断，所有节点共享额度；一个接口的所有规则一次脚本调用，
+ *    全部通过才消耗额度，被某个规则拒绝时不会白白消耗其他规则的额度。
+ *    同一接口的key用限流名称作hash tag，集群下落在同一个slot
+ * 3. redis异常时放行，限流不能影响正常业务
+ */
+@Slf4j
+@Aspect
+@Component
+public class RateLimitAspect implements MetricsSource {
+
+    private static final DefaultRedisScript<List> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("ratelimit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(List.class);
+    }
+
+    // 滑动窗口中请求的唯一标识
+    private static final String NODE_ID = UUID.randomUUID().toString().substring(0, 8);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 可信的反向代理，只有直接来自这些地址的请求才读取X-Forwarded-For，否则客户端可以伪造ip绕过限流
+    @Value("${hmdp.rate-limit.trusted-proxies:}")
+    private Set<String> trustedProxies;
+
+    // 限流key -> 本节点可以再次访问redis的时间
+    private final Map<String, Long> blockedUntil = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestSeq = new AtomicLong();
+
+    // 方法 -> 方法上的限流规则
+    private final Map<Method, RateLimit[]> limitsByMethod = new ConcurrentHashMap<>();
+
+    // 限流名称:维度 -> 各结果的计数
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+
+    @Around("@annotation(com.hmdp.utils.RateLimit) || @annotation(com.hmdp.utils.RateLimit$List)")
+    public Object around(ProceedingJoinPoint joinPoint) throws Throwable {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        RateLimit[] limits = limitsByMethod.computeIfAbsent(method, m ->
+                AnnotationUtils.getRepeatableAnnotations(m, RateLimit.class, RateLimit.List.class).toArray(new RateLimit[0]));
+        RateLimit rejected = tryAcquire(limits);
+        if (rejected != null) {
+            if (Result.class.isAssignableFrom(method.getReturnType())) {
+                return Result.fail(rejected.message());
+            }
+            throw new RuntimeException(rejected.message());
+        }
+        return joinPoint.proceed();
+    }
+
+    /**
+     * 判断一个接口的所有规则
+     * @return 拒绝请求的规则，全部通过时返回null
+     */
+    private RateLimit tryAcquire(RateLimit[] limits) {
+        Counters[] c = new Counters[limits.length];
+        List<String> keys = new ArrayList<>(limits.length);
+        for (int i = 0; i < limits.length; i++) {
+            RateLimit limit = limits[i];
+            c[i] = counters.computeIfAbsent(limit.name() + ":" + limit.dimension().name().toLowerCase(), k -> new Counters());
+            keys.add(RedisConstants.RATE_LIMIT_KEY + "{" + limit.name() + "}:" + dimensionKey(limit.dimension()));
+        }
+        // 1.本地预过滤，任何一个规则被拒绝都不访问redis
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < limits.length; i++) {
+            Long until = blockedUntil.get(keys.get(i));
+            if (until == null) {
+                continue;
+            }
+            if (until > now) {
+                c[i].rejectedLocal.increment();
+                return limits[i];
+            }
+            blockedUntil.remove(keys.get(i), until);
+        }
+        // 2.redis中一次判断所有规则
+        String[] args = new String[limits.length * 4];
+        for (int i = 0; i < limits.length; i++) {
+            RateLimit limit = limits[i];
+            long periodMillis = Math.max(1L, limit.unit().toMillis(limit.period()));
+            args[i * 4 + 1] = String.valueOf(limit.permits());
+            args[i * 4 + 2] = String.valueOf(periodMillis);
+            if (limit.algorithm() == RateLimit.Algorithm.TOKEN_BUCKET) {
+                args[i * 4] = "bucket";
+                args[i * 4 + 3] = String.valueOf(limit.burst() > 0 ? limit.burst() : limit.permits());
+            } else {
+                args[i * 4] = "window";
+                args[i * 4 + 3] = NODE_ID + ":" + requestSeq.incrementAndGet();
+            }
+        }
+        List<?> result;
+        try {
+            result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, keys, (Object[]) args);
+        } catch (Exception e) {
+            for (Counters counter : c) {
+                counter.errors.increment();
+            }
+            log.warn("限流脚本执行失败，放行请求, keys={}", keys, e);
+            return null;
+        }
+        if (result == null || ((Number) result.get(0)).longValue() == 1L) {
+            for (Counters counter : c) {
+                counter.allowed.increment();
+            }
+            return null;
+        }
+        // 3.被拒绝的规则记录可再次通过的时间，返回第一个拒绝的规则
+        RateLimit rejected = null;
+        for (int i = 0; i < limits.length; i++) {
+            long wait = ((Number) result.get(i + 1)).longValue();
+            if (wait <= 0) {
+                continue;
+            }
+            blockedUntil.put(keys.get(i), now + wait);
+            c[i].rejectedRedis.increment();
+            if (rejected == null) {
+                rejected = limits[i];
+            }
+        }
+        return rejected;
+    }
+
+    private String dimensionKey(RateLimit.Dimension dimension) {
+        if (dimension == RateLimit.Dimension.GLOBAL) {
+            return "global";
+        }
+        if (dimension == RateLimit.Dimension.USER) {
+            UserDTO user = UserHolder.getUser();
+            if (user != null) {
+                return "user:" + user.getId();
+            }
+        }
+        return "ip:" + clientIp();
+    }
+
+    private String clientIp() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (!(attributes instanceof ServletRequestAttributes)) {
+            return "unknown";
+        }
+        HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+        String remoteAddr = request.getRemoteAddr();
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (forwarded == null || forwarded.isEmpty() || !trustedProxies.contains(remoteAddr)) {
+            return remoteAddr;
+        }
+        // 从右向左跳过可信代理追加的地址，第一个不可信的地址是客户端，更左边的可能是客户端伪造的
+        String[] hops = forwarded.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (!hop.isEmpty() && !trustedProxies.contains(hop)) {
+                return hop;
+            }
+        }
+        return remoteAddr;
+    }
+
+    /**
+     * 清理已解除的本地拒绝记录
+     */
+    @Scheduled(fixedDelay = 60000L)
+    public void cleanBlocked() {
+        long now = System.currentTimeMillis();
+        blockedUntil.entrySet().removeIf(e -> e.getValue() <= now);
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        counters.forEach((name, c) -> writer.counter("hmdp_rate_limit_requests_total",
+                "Rate limited requests by limiter and result", c.allowed.sum(), "limiter", name, "result", "allowed"));
+        counters.forEach((name, c) -> writer.counter("hmdp_rate_limit_requests_total",
+                "Rate limited requests by limiter and result", c.rejectedLocal.sum(), "limiter", name, "result", "rejected_local"));
+        counters.forEach((name, c) -> writer.counter("hmdp_rate_limit_requests_total",
+                "Rate limited requests by limiter and result", c.rejectedRedis.sum(), "limiter", name, "result", "rejected_redis"));
+        counters.forEach((name, c) -> writer.counter("hmdp_rate_limit_requests_total",
+                "Rate limited requests by limiter and result", c.errors.sum(), "limiter", name, "result", "error"));
+        writer.gauge("hmdp_rate_limit_blocked_keys", "Keys rejected locally on this node", blockedUntil.size());
+    }
+
+    private static class Counters {
+        private final LongAdder allowed = new LongAdder();
+        private final LongAdder rejectedLocal = new LongAdder();
+        private final LongAdder rejectedRedis = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+}
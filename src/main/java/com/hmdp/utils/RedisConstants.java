@@ -10,13 +10,50 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    // 店铺逻辑过期时间(秒)
+    public static final Long CACHE_SHOP_LOGICAL_TTL = 20L;
 
     public static final String CACHE_SHOP_TYPE = "cache:shop_type";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    // 笔记和优惠券按逻辑过期缓存(分钟)，列表中的点赞数、库存最多延迟这么久
+    public static final Long CACHE_BLOG_TTL = 5L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_VOUCHER_TTL = 1L;
+    public static final String CACHE_VOUCHER_KEY = "cache:voucher:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String LOCK_CACHE_INVALIDATION_KEY = "lock:cache:invalidation";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String LOCK_WARMUP_KEY = "lock:warmup";
+    public static final String LOCK_STOCK_RECONCILE_KEY = "lock:stock:reconcile";
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_CHANNEL = "bloom:channel";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_BUYER_KEY = "seckill:buyer:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_EXPIRE_KEY = "seckill:lease:expire:";
+    public static final String SECKILL_LEASE_SOLD_KEY = "seckill:lease:sold:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_META_CHANNEL = "seckill:meta:invalidate";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String RATE_LIMIT_KEY = "limit:";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
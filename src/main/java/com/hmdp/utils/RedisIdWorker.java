@@ -1,16 +1,29 @@
 package com.hmdp.utils;
 
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements MetricsSource {
 
     /**
      * 开始时间戳
@@ -19,10 +32,45 @@ public class RedisIdWorker {
 
     //序列号位数
     private static final int COUNT_BITS = 32;
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyMMdd");
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    // 每次INCRBY租用的序列号个数，不大于1时每个id一次INCR
+    @Value("${hmdp.id.lease-size:1000}")
+    private int leaseSize;
+
+    // 当前段剩余比例低于该值时预取下一段
+    @Value("${hmdp.id.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    // 允许的最大时钟回拨(秒)，回拨期间沿用上一次的时间戳，超过时拒绝生成
+    @Value("${hmdp.id.max-backward-seconds:5}")
+    private long maxBackwardSeconds;
+
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    private final Map<String, Sequence> sequences = new ConcurrentHashMap<>();
+
+    // 异步预取下一段序列号，随bean一起销毁
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-lease-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder prefetchedLeases = new LongAdder();
+    private final LongAdder syncLeases = new LongAdder();
+    private final LongAdder clockBackwards = new LongAdder();
+
     public long nextId(String keyPrefix){
+        if (leaseSize > 1) {
+            return sequences.computeIfAbsent(keyPrefix, Sequence::new).nextId();
+        }
         // 1. 生成当前时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -31,7 +79,7 @@ public class RedisIdWorker {
         // 2. 生成序列号
         // 利用每天的日期生成key, 避免同一个key超过32次方，同时也有统计的效果
         //  2.1 获取当前的日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyMMdd"));
+        String date = now.format(DATE_FORMATTER);
         //  2.2 自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
@@ -40,6 +88,131 @@ public class RedisIdWorker {
         return timeStamp << COUNT_BITS | count;
     }
 
+    /**
+     * 和LocalDateTime.now().toEpochSecond(UTC)相同的本地时间秒数，不创建对象
+     */
+    private long localSecond() {
+        long millis = System.currentTimeMillis();
+        return Math.floorDiv(millis + timeZone.getOffset(millis), 1000L);
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("hmdp_id_leases_total", "Sequence ranges leased from redis", prefetchedLeases.sum(), "mode", "prefetched")
+                .counter("hmdp_id_leases_total", "Sequence ranges leased from redis", syncLeases.sum(), "mode", "sync")
+                .counter("hmdp_id_clock_backward_total", "Ids generated while the clock was behind the last timestamp", clockBackwards.sum());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * 一次INCRBY租到的序列号区间，只属于某一天的key
+     */
+    private static class Lease {
+        private final long day;
+        private final AtomicLong next;
+        private final long end;
+        // 取到该序列号时触发预取
+        private final long prefetchAt;
+
+        private Lease(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个key前缀的序列号
+     * id只由时间戳和序列号组成，序列号在同一天的key内唯一，所以只要序列号来自时间戳所在那天的key，id就不会重复；
+     * 跨天时丢弃旧区间，重新从新一天的key租用
+     */
+    private class Sequence {
+        private final String keyPrefix;
+        private volatile Lease current;
+        private volatile CompletableFuture<Lease> prefetch;
+        // 已使用的最大时间戳，时钟回拨时继续使用它，保证id递增
+        private final AtomicLong lastSecond = new AtomicLong();
+
+        private Sequence(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long nextId() {
+            long second = currentSecond();
+            long day = Math.floorDiv(second, SECONDS_PER_DAY);
+            while (true) {
+                Lease lease = current;
+                if (lease != null && lease.day == day) {
+                    long count = lease.next.getAndIncrement();
+                    if (count <= lease.end) {
+                        if (count == lease.prefetchAt) {
+                            prefetchAsync(day);
+                        }
+                        return (second - BEGIN_TIMESTAMP) << COUNT_BITS | count;
+                    }
+                }
+                renew(lease, day);
+            }
+        }
+
+        private long currentSecond() {
+            long now = localSecond();
+            long last = lastSecond.accumulateAndGet(now, Math::max);
+            if (last > now) {
+                clockBackwards.increment();
+                if (last - now > maxBackwardSeconds) {
+                    throw new RuntimeException("时钟回拨" + (last - now) + "秒，拒绝生成id, keyPrefix=" + keyPrefix);
+                }
+            }
+            return last;
+        }
+
+        private void prefetchAsync(long day) {
+            prefetch = CompletableFuture.supplyAsync(() -> lease(day), prefetchExecutor);
+        }
+
+        /**
+         * 当前区间用完或已跨天时换一个区间，优先使用预取的区间
+         */
+        private synchronized void renew(Lease exhausted, long day) {
+            if (current != exhausted) {
+                // 其他线程已经换过
+                return;
+            }
+            CompletableFuture<Lease> future = prefetch;
+            prefetch = null;
+            if (future != null) {
+                try {
+                    Lease lease = future.join();
+                    if (lease.day == day) {
+                        prefetchedLeases.increment();
+                        current = lease;
+                        return;
+                    }
+                } catch (Exception e) {
+                    log.warn("预取序列号失败，同步租用, keyPrefix={}", keyPrefix, e);
+                }
+            }
+            syncLeases.increment();
+            current = lease(day);
+        }
+
+        private Lease lease(long day) {
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, leaseSize);
+            if (end == null) {
+                throw new RuntimeException("租用序列号失败, keyPrefix=" + keyPrefix);
+            }
+            long start = end - leaseSize + 1;
+            return new Lease(day, start, end, end - (long) (leaseSize * prefetchRatio));
+        }
+    }
+
 //    public static void main(String[] args) {
 //        LocalDateTime time = LocalDateTime.of(2023, 1, 1, 0, 0, 0);
 //        long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,247 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀券的时间窗口：
+ * 1. 创建秒杀券时写入 seckill:meta:{voucherId}，begin/end为毫秒时间戳，秒杀脚本用redis时间和库存一起原子判断；
+ *    分段的券在每段另写一份 seckill:meta:{voucherId:i}，和该段的库存在同一个hash slot
+ * 2. 时间窗口缓存在有容量上限和存活时间的本地缓存中，直接在本地拒绝窗口外的请求，不访问redis；
+ *    各节点时钟有误差，只拒绝明显在窗口外的请求，临界的交给脚本判断；配额模式下单不执行脚本，按本地时钟严格判断
+ * 3. redis中没有时(在此之前创建的券)从数据库读取并补写，数据库中也没有的券同样缓存，随机的id不会每次都查询数据库
+ * 4. 新建券或重建redis中的时间窗口后广播失效通知，各节点删除本地缓存
+ */
+@Slf4j
+@Component
+public class SeckillMeta implements MessageListener, MetricsSource {
+
+    private static final List<Object> FIELDS = Arrays.asList("begin", "end");
+
+    // 失效通知中表示全部失效的内容
+    private static final String ALL = "*";
+
+    // 不存在的券的时间窗口
+    private static final Window MISSING = new Window(0L, 0L, true);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    // 本地时钟和redis时钟的最大误差
+    @Value("${hmdp.seckill.clock-tolerance-ms:1000}")
+    private long clockToleranceMillis;
+
+    @Value("${hmdp.seckill.meta.local-size:10000}")
+    private int localSize;
+
+    // 本地缓存的存活时间，失效通知丢失时最多延迟这么久生效
+    @Value("${hmdp.seckill.meta.local-ttl-ms:60000}")
+    private long localTtlMillis;
+
+    // voucherId -> 时间窗口
+    private LocalCache windows;
+
+    private final LongAdder notStarted = new LongAdder();
+    private final LongAdder ended = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+
+    @PostConstruct
+    private void start() {
+        windows = new LocalCache(RedisConstants.SECKILL_META_KEY, localSize, localTtlMillis);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_META_CHANNEL));
+    }
+
+    /**
+     * 新建秒杀券时写入时间窗口，通知其他节点删除可能缓存的"不存在"
+     */
+    public void init(SeckillVoucher voucher) {
+        write(voucher);
+        invalidate(voucher.getVoucherId());
+    }
+
+    /**
+     * 时间窗口在redis中被修改后调用，删除所有节点的本地缓存
+     */
+    public void invalidate(Long voucherId) {
+        publish(voucherId.toString());
+    }
+
+    /**
+     * 批量重建redis中的时间窗口后调用
+     */
+    public void invalidateAll() {
+        publish(ALL);
+    }
+
+    private void publish(String message) {
+        if (ALL.equals(message)) {
+            windows.invalidateAll();
+        } else {
+            windows.invalidate(message);
+        }
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_META_CHANNEL, message);
+        } catch (Exception e) {
+            // 通知失败时其他节点的缓存到期后失效
+            log.warn("秒杀时间窗口失效通知发送失败, message={}", message, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (ALL.equals(body)) {
+            windows.invalidateAll();
+        } else {
+            windows.invalidate(body);
+        }
+    }
+
+    /**
+     * 在本地判断是否在秒杀时间内
+     * @return 不在时间内时返回原因，否则返回null
+     */
+    public String check(Long voucherId) {
+        return check(voucherId, clockToleranceMillis);
+    }
+
+    /**
+     * 按本地时钟严格判断，用于配额模式：下单不执行脚本，没有redis时间的判断
+     */
+    public String checkStrict(Long voucherId) {
+        return check(voucherId, 0L);
+    }
+
+    private String check(Long voucherId, long toleranceMillis) {
+        long now = System.currentTimeMillis();
+        Window window = (Window) windows.get(voucherId.toString());
+        if (window == null) {
+            window = load(voucherId);
+        }
+        if (window.missing) {
+            missing.increment();
+            return "优惠券不存在";
+        }
+        if (now < window.begin - toleranceMillis) {
+            notStarted.increment();
+            return "秒杀尚未开始";
+        }
+        if (now > window.end + toleranceMillis) {
+            ended.increment();
+            return "秒杀已经结束";
+        }
+        return null;
+    }
+
+    private Window load(Long voucherId) {
+        Window window;
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(key(voucherId), FIELDS);
+        if (values.get(0) != null && values.get(1) != null) {
+            window = new Window(Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString()), false);
+        } else {
+            SeckillVoucher voucher = seckillVoucherMapper.selectById(voucherId);
+            if (voucher == null) {
+                window = MISSING;
+            } else {
+                write(voucher);
+                window = new Window(toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()), false);
+            }
+        }
+        windows.put(voucherId.toString(), window);
+        return window;
+    }
+
+    public String key(Long voucherId) {
+        return RedisConstants.SECKILL_META_KEY + voucherId;
+    }
+
+    /**
+     * 秒杀时间的所有副本：seckill:meta:{voucherId}，分段时还有每段一份
+     */
+    public List<String> keys(Long voucherId, int count) {
+        List<String> keys = new ArrayList<>(count + 1);
+        keys.add(key(voucherId));
+        if (count > 1) {
+            for (int i = 0; i < count; i++) {
+                keys.add(seckillStock.metaKey(voucherId, i, count));
+            }
+        }
+        return keys;
+    }
+
+    private void write(SeckillVoucher voucher) {
+        Map<String, String> fields = fields(voucher);
+        List<String> keys = keys(voucher.getVoucherId(), seckillStock.segments(voucher.getVoucherId()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                ((StringRedisConnection) connection).hMSet(key, fields);
+            }
+            return null;
+        });
+    }
+
+    public Map<String, String> fields(SeckillVoucher voucher) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+        fields.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+        return fields;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("hmdp_seckill_window_rejected_total", "Seckill requests rejected locally by the time window",
+                        notStarted.sum(), "reason", "not_started")
+                .counter("hmdp_seckill_window_rejected_total", "Seckill requests rejected locally by the time window",
+                        ended.sum(), "reason", "ended")
+                .counter("hmdp_seckill_window_rejected_total", "Seckill requests rejected locally by the time window",
+                        missing.sum(), "reason", "missing")
+                .gauge("hmdp_seckill_window_cached", "Seckill time windows cached on this node", windows.size());
+    }
+
+    private static class Window {
+        private final long begin;
+        private final long end;
+        private final boolean missing;
+
+        private Window(long begin, long end, boolean missing) {
+            this.begin = begin;
+            this.end = end;
+            this.missing = missing;
+        }
+    }
+}
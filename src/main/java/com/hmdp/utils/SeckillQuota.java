@@ -0,0 +1,431 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀库存的节点配额：
+ * 1. 节点从 seckill:stock:{voucherId} 租用一批库存，记在租约 seckill:lease:{voucherId} 中本节点的字段，
+ *    本地用原子计数器扣减，配额用完的请求和售罄的请求一样在本地拒绝，剩余比例较低时异步预取下一批
+ * 2. 下单时不执行脚本，也不修改共享的租约：一人一单由 SET NX seckill:buyer:{voucherId:userId} 保证，
+ *    卖出的数量 INCR 到本节点自己的销量key seckill:lease:sold:{voucherId}:{nodeId}，
+ *    续期、租用和归还时由脚本把销量批量从租约中扣除；租约减去销量就是该节点已租未卖的数量
+ * 3. 租约定期续期，一段时间没有卖出时归还本地剩余配额；节点宕机后租约到期，由其他节点租用时扣除销量后回收
+ * 4. 自我隔离在本地进行：超过fenceAt仍未续期成功、或续期发现租约已被回收时放弃本地配额；
+ *    节点停顿超过租约时长时可能在回收后卖出少量配额，由数据库扣减库存的条件兜底，不会超卖
+ * 5. 每批租用的数量按本节点最近的销量估算，约为target-lease-ms内的销量
+ * 6. 本地记录通过本节点下过单的用户，重复请求直接拒绝；其他节点的下单由 seckill:buyer 判断
+ */
+@Slf4j
+@Component
+public class SeckillQuota implements MessageListener, MetricsSource {
+
+    private static final DefaultRedisScript<List> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(List.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 销量的指数加权平均中新观测值的权重
+    private static final double RATE_ALPHA = 0.5D;
+
+    // 本节点在租约中的id，每次启动不同，宕机前的租约只能等待到期回收
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Value("${hmdp.seckill.quota.enabled:false}")
+    private boolean enabled;
+
+    // 租约时长，到期未续期的配额被其他节点回收
+    @Value("${hmdp.seckill.quota.lease-ttl-ms:30000}")
+    private long leaseTtlMillis;
+
+    // 续期和估算销量的间隔，应明显小于租约时长
+    @Value("${hmdp.seckill.quota.renew-interval-ms:5000}")
+    private long renewIntervalMillis;
+
+    // 每批租用的数量约为该时间内的销量
+    @Value("${hmdp.seckill.quota.target-lease-ms:1000}")
+    private long targetLeaseMillis;
+
+    @Value("${hmdp.seckill.quota.min-lease:10}")
+    private int minLease;
+
+    @Value("${hmdp.seckill.quota.max-lease:1000}")
+    private int maxLease;
+
+    // 本地配额低于上次租用数量的该比例时预取
+    @Value("${hmdp.seckill.quota.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    // 库存已被其他节点租完时，本节点多久之后再尝试租用
+    @Value("${hmdp.seckill.quota.empty-retry-ms:1000}")
+    private long emptyRetryMillis;
+
+    // 异步预取配额，随bean一起销毁
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-quota-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // voucherId -> 本节点的配额
+    private final Map<Long, Quota> quotas = new ConcurrentHashMap<>();
+
+    private final LongAdder syncLeases = new LongAdder();
+    private final LongAdder prefetchedLeases = new LongAdder();
+    private final LongAdder leased = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder fenced = new LongAdder();
+    private final LongAdder emptyRejected = new LongAdder();
+    private final LongAdder duplicateRejected = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            // 归还库存(取消订单、对账补充)时清除本地的下单用户
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        }
+    }
+
+    /**
+     * 停止前归还所有剩余配额
+     */
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+        for (Quota quota : quotas.values()) {
+            try {
+                quota.release();
+            } catch (Exception e) {
+                log.warn("归还秒杀配额失败，等待租约到期回收, voucherId={}", quota.voucherId, e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 用户是否已经通过本节点下过单
+     */
+    public boolean isPurchased(Long voucherId, Long userId) {
+        Quota quota = quotas.get(voucherId);
+        if (quota != null && quota.users.contains(userId)) {
+            duplicateRejected.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 从本地配额中取一个，配额用完时租用下一批
+     * @return 库存已全部被租用或售罄时返回false
+     */
+    public boolean acquire(Long voucherId) {
+        Quota quota = quotas.computeIfAbsent(voucherId, Quota::new);
+        while (true) {
+            if (System.currentTimeMillis() >= quota.fenceAt) {
+                // 租约可能已经到期被回收，本地配额作废
+                quota.fence();
+            }
+            long left = quota.remaining.decrementAndGet();
+            if (left >= 0) {
+                if (left == quota.prefetchAt) {
+                    quota.prefetchAsync();
+                }
+                return true;
+            }
+            quota.remaining.incrementAndGet();
+            if (!quota.renew()) {
+                emptyRejected.increment();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 取出的配额没有卖出(重复下单)时退回本地；期间租约已归还或放弃时不退回，留在redis的租约中到期回收
+     */
+    public void refund(Long voucherId) {
+        Quota quota = quotas.get(voucherId);
+        if (quota != null && quota.fenceAt != Long.MAX_VALUE) {
+            quota.remaining.incrementAndGet();
+        }
+    }
+
+    /**
+     * 确认下单或重复下单后记录用户
+     */
+    public void purchased(Long voucherId, Long userId, boolean sold) {
+        Quota quota = quotas.get(voucherId);
+        if (quota == null) {
+            return;
+        }
+        quota.users.add(userId);
+        if (sold) {
+            quota.sold.increment();
+        }
+    }
+
+    /**
+     * 配额使用的key：租约、到期时间、本节点的销量
+     */
+    public String leaseKey(Long voucherId) {
+        return RedisConstants.SECKILL_LEASE_KEY + voucherId;
+    }
+
+    public String expireKey(Long voucherId) {
+        return RedisConstants.SECKILL_LEASE_EXPIRE_KEY + voucherId;
+    }
+
+    public String soldKey(Long voucherId) {
+        return soldKey(voucherId, nodeId);
+    }
+
+    public String soldKey(Long voucherId, String node) {
+        return RedisConstants.SECKILL_LEASE_SOLD_KEY + voucherId + ":" + node;
+    }
+
+    /**
+     * 定期估算销量，续期有销量的租约，归还一段时间没有卖出的配额
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.quota.renew-interval-ms:5000}")
+    public void renewLeases() {
+        if (!enabled) {
+            return;
+        }
+        for (Quota quota : quotas.values()) {
+            try {
+                quota.maintain();
+            } catch (Exception e) {
+                log.warn("续期秒杀配额失败, voucherId={}", quota.voucherId, e);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // reset:{voucherId}，库存被归还，可能有用户的订单已取消
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 2);
+        if (parts.length != 2 || !"reset".equals(parts[0])) {
+            return;
+        }
+        Quota quota = quotas.get(Long.valueOf(parts[1]));
+        if (quota != null) {
+            quota.users.clear();
+            quota.emptyUntil = 0L;
+        }
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        if (!enabled) {
+            return;
+        }
+        long remaining = 0L;
+        for (Quota quota : quotas.values()) {
+            remaining += Math.max(0L, quota.remaining.get());
+        }
+        writer.counter("hmdp_seckill_quota_leases_total", "Stock quota leases taken from redis", prefetchedLeases.sum(), "mode", "prefetched")
+                .counter("hmdp_seckill_quota_leases_total", "Stock quota leases taken from redis", syncLeases.sum(), "mode", "sync")
+                .counter("hmdp_seckill_quota_leased_total", "Stock units leased by this node", leased.sum())
+                .counter("hmdp_seckill_quota_released_total", "Unsold stock units returned by this node", released.sum())
+                .counter("hmdp_seckill_quota_fenced_total", "Times this node dropped its local quota after losing the lease", fenced.sum())
+                .counter("hmdp_seckill_quota_rejected_total", "Seckill requests rejected locally in quota mode",
+                        emptyRejected.sum(), "reason", "empty")
+                .counter("hmdp_seckill_quota_rejected_total", "Seckill requests rejected locally in quota mode",
+                        duplicateRejected.sum(), "reason", "duplicate")
+                .gauge("hmdp_seckill_quota_remaining", "Unsold stock units held by this node", remaining);
+    }
+
+    /**
+     * 本节点在一张券上的配额
+     */
+    private class Quota {
+        private final Long voucherId;
+        // 租用和归还时从这一段库存中取还
+        private final int segment;
+        private final AtomicLong remaining = new AtomicLong();
+        // 本地配额降到该值时预取
+        private volatile long prefetchAt = -1L;
+        // 超过该时间仍未续期成功时放弃本地配额，早于redis中的到期时间
+        private volatile long fenceAt = Long.MAX_VALUE;
+        // 库存已被租完，在此之前不再租用
+        private volatile long emptyUntil;
+        private volatile CompletableFuture<Long> prefetch;
+        private final LongAdder sold = new LongAdder();
+        private long lastSold;
+        // 每秒销量的加权平均
+        private volatile double rate;
+        private final Set<Long> users = ConcurrentHashMap.newKeySet();
+
+        private Quota(Long voucherId) {
+            this.voucherId = voucherId;
+            this.segment = Math.floorMod(nodeId.hashCode(), seckillStock.segments(voucherId));
+        }
+
+        /**
+         * 本地配额用完时租用，优先使用预取的结果
+         * @return 租到配额时返回true
+         */
+        private synchronized boolean renew() {
+            if (remaining.get() > 0) {
+                // 其他线程已经租到
+                return true;
+            }
+            CompletableFuture<Long> future = prefetch;
+            prefetch = null;
+            if (future != null) {
+                try {
+                    if (future.join() > 0) {
+                        prefetchedLeases.increment();
+                        return true;
+                    }
+                } catch (Exception e) {
+                    log.warn("预取秒杀配额失败，同步租用, voucherId={}", voucherId, e);
+                }
+            }
+            if (System.currentTimeMillis() < emptyUntil) {
+                return false;
+            }
+            syncLeases.increment();
+            return lease(leaseSize()) > 0;
+        }
+
+        private void prefetchAsync() {
+            prefetch = CompletableFuture.supplyAsync(() -> lease(leaseSize()), prefetchExecutor);
+        }
+
+        /**
+         * 从各段库存中依次租用，先从本节点的段开始
+         * @return 租到的数量
+         */
+        private long lease(int size) {
+            int count = seckillStock.segments(voucherId);
+            for (int i = 0; i < count; i++) {
+                long granted = execute((segment + i) % count, size).get(0);
+                if (granted > 0) {
+                    fenceAt = System.currentTimeMillis() + leaseTtlMillis - renewIntervalMillis;
+                    prefetchAt = (long) (granted * prefetchRatio);
+                    remaining.addAndGet(granted);
+                    leased.add(granted);
+                    return granted;
+                }
+            }
+            // 库存已被租完，其他节点归还或租约到期回收后才有库存
+            emptyUntil = System.currentTimeMillis() + emptyRetryMillis;
+            return 0L;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<Long> execute(int segment, int size) {
+            int count = seckillStock.segments(voucherId);
+            return (List<Long>) stringRedisTemplate.execute(LEASE_SCRIPT,
+                    Arrays.asList(seckillStock.stockKey(voucherId, segment, count), leaseKey(voucherId),
+                            expireKey(voucherId), soldKey(voucherId)),
+                    nodeId, String.valueOf(size), String.valueOf(leaseTtlMillis),
+                    RedisConstants.SECKILL_LEASE_SOLD_KEY + voucherId + ":");
+        }
+
+        /**
+         * 按最近的销量估算下一批的数量
+         */
+        private int leaseSize() {
+            long size = (long) Math.ceil(rate * targetLeaseMillis / 1000D);
+            return (int) Math.max(minLease, Math.min(maxLease, size));
+        }
+
+        private synchronized void maintain() {
+            long total = sold.sum();
+            long delta = total - lastSold;
+            lastSold = total;
+            rate = RATE_ALPHA * delta * 1000D / renewIntervalMillis + (1 - RATE_ALPHA) * rate;
+            if (remaining.get() <= 0) {
+                // 租约中只剩已卖出的部分，不再续期，到期后扣除销量回收
+                return;
+            }
+            if (delta == 0L) {
+                // 一个间隔内没有卖出，归还剩余配额给其他节点
+                release();
+                return;
+            }
+            // 续期，同时把这段时间的销量从租约中扣除
+            List<Long> result = execute(segment, 0);
+            if (result.get(1) < 0) {
+                // 租约已被回收
+                fence();
+            } else {
+                fenceAt = System.currentTimeMillis() + leaseTtlMillis - renewIntervalMillis;
+            }
+        }
+
+        /**
+         * 归还本地未卖出的配额；已取出正在下单的配额留在租约中
+         */
+        private synchronized void release() {
+            fenceAt = Long.MAX_VALUE;
+            prefetchAt = -1L;
+            long unsold = Math.max(0L, remaining.getAndSet(0L));
+            int count = seckillStock.segments(voucherId);
+            Long left = stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Arrays.asList(seckillStock.stockKey(voucherId, segment, count), leaseKey(voucherId),
+                            expireKey(voucherId), soldKey(voucherId)),
+                    nodeId, String.valueOf(unsold));
+            if (left != null && left > 0) {
+                released.add(left);
+            }
+        }
+
+        private void fence() {
+            if (remaining.getAndSet(0L) > 0 || fenceAt != Long.MAX_VALUE) {
+                fenced.increment();
+            }
+            fenceAt = Long.MAX_VALUE;
+            prefetchAt = -1L;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀库存在redis中的分段布局
+ * 分段数为1时沿用 seckill:stock:{voucherId} 和 seckill:order:{voucherId}，一次脚本调用完成下单，
+ * 脚本同时访问stream、订单状态等不在同一个hash slot的key，只支持单个redis实例(可以是主从/哨兵)；
+ * 大于1时用于Redis Cluster，库存拆成 seckill:stock:{voucherId:i}，同一段的下单用户 seckill:order:{voucherId:i}
+ * 和秒杀时间 seckill:meta:{voucherId:i} 使用相同的hash tag，每段的脚本只访问本段的key；
+ * 一人一单由 seckill:buyer:{voucherId:userId} 保证，下单前 SET NX 占用，值为下单的段
+ * 每次下单约3次往返(占用、扣减、写入订单)，单个redis实例上比1段慢，应保持1段
+ * 每张券的分段数在创建时写入 seckill:segments:{voucherId}，之后不再变化
+ */
+@Component
+public class SeckillStock {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 新建秒杀券使用的分段数
+    @Value("${hmdp.seckill.stock-segments:1}")
+    private int stockSegments;
+
+    // 分段数key不存在时按1段处理的缓存时间，过期后重新查询，其他节点稍后写入的分段数最多延迟这么久生效
+    private static final long MISSING_TTL_MILLIS = 5000L;
+
+    // voucherId -> 分段数，创建后不变，可以一直缓存
+    private final Map<Long, Integer> segments = new ConcurrentHashMap<>();
+
+    // 分段数key不存在的券，有容量上限和存活时间，不会被随机的id撑大
+    private final LocalCache missing = new LocalCache(RedisConstants.SECKILL_SEGMENTS_KEY, 10000, MISSING_TTL_MILLIS);
+
+    /**
+     * 新建秒杀券时写入库存，按当前配置分段
+     */
+    public void init(Long voucherId, int stock) {
+        int count = Math.max(1, stockSegments);
+        Map<String, String> values = split(voucherId, stock, count);
+        values.put(RedisConstants.SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(count));
+        stringRedisTemplate.opsForValue().multiSet(values);
+        segments.put(voucherId, count);
+        missing.invalidate(voucherId.toString());
+    }
+
+    /**
+     * 按段拆分库存，前 stock % count 段各多分1个
+     * @return 各段库存key -> 库存
+     */
+    public Map<String, String> split(Long voucherId, int stock, int count) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int share = stock / count + (i < stock % count ? 1 : 0);
+            values.put(stockKey(voucherId, i, count), String.valueOf(share));
+        }
+        return values;
+    }
+
+    public int segments(Long voucherId) {
+        Integer count = segments.get(voucherId);
+        if (count == null) {
+            if (missing.get(voucherId.toString()) != null) {
+                return 1;
+            }
+            String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SEGMENTS_KEY + voucherId);
+            if (value == null) {
+                missing.put(voucherId.toString(), Boolean.TRUE);
+                return 1;
+            }
+            count = Integer.parseInt(value);
+            segments.put(voucherId, count);
+        }
+        return count;
+    }
+
+    /**
+     * 批量查询分段数，一次MGET
+     */
+    public List<Integer> segments(List<Long> voucherIds) {
+        List<String> keys = new ArrayList<>(voucherIds.size());
+        for (Long voucherId : voucherIds) {
+            keys.add(RedisConstants.SECKILL_SEGMENTS_KEY + voucherId);
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<Integer> result = new ArrayList<>(voucherIds.size());
+        for (int i = 0; i < voucherIds.size(); i++) {
+            String value = values == null ? null : values.get(i);
+            if (value == null) {
+                missing.put(voucherIds.get(i).toString(), Boolean.TRUE);
+                result.add(1);
+                continue;
+            }
+            int count = Integer.parseInt(value);
+            segments.put(voucherIds.get(i), count);
+            result.add(count);
+        }
+        return result;
+    }
+
+    /**
+     * 用户的首选段，同一用户总是从同一段开始尝试
+     */
+    public int homeSegment(Long voucherId, Long userId) {
+        return Math.floorMod(userId.hashCode(), segments(voucherId));
+    }
+
+    public String stockKey(Long voucherId, int segment, int count) {
+        if (count == 1) {
+            return RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        }
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    public String orderKey(Long voucherId, int segment, int count) {
+        if (count == 1) {
+            return RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        }
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 秒杀时间在本段的副本，1段时就是 seckill:meta:{voucherId}
+     */
+    public String metaKey(Long voucherId, int segment, int count) {
+        if (count == 1) {
+            return RedisConstants.SECKILL_META_KEY + voucherId;
+        }
+        return RedisConstants.SECKILL_META_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    /**
+     * 分段时的一人一单标记
+     */
+    public String buyerKey(Long voucherId, Long userId) {
+        return RedisConstants.SECKILL_BUYER_KEY + "{" + voucherId + ":" + userId + "}";
+    }
+}
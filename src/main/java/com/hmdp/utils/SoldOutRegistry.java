@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.NumberUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的秒杀券售罄标记，售罄后的请求直接在本地拒绝，不再执行秒杀脚本
+ * 标记通过redis发布订阅同步到所有节点；补充库存时清除
+ * 标记有存活时间：发布订阅不保证送达，过期后再执行一次脚本即可纠正，每个节点每张券最多多一次调用
+ * 分段的券另外在本节点记录售罄的段，下单时跳过，所有段都售罄后才标记整张券
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener, MetricsSource {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl-ms:10000}")
+    private long ttlMillis;
+
+    // voucherId -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    // voucherId:segment -> 标记的过期时间，只在本节点记录
+    private final Map<String, Long> soldOutSegments = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 是否已售罄，售罄时计入本地拒绝数
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    /**
+     * 秒杀脚本返回库存不足时调用，标记本节点并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis) == null) {
+            publish("soldOut:" + voucherId);
+        }
+    }
+
+    /**
+     * 分段的券的某一段是否已售罄
+     */
+    public boolean isSoldOut(Long voucherId, int segment) {
+        String key = voucherId + ":" + segment;
+        Long expireAt = soldOutSegments.get(key);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOutSegments.remove(key, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 分段的券在某一段库存不足时调用，所有段都已售罄时标记整张券
+     * @return 是否所有段都已售罄
+     */
+    public boolean markSoldOut(Long voucherId, int segment, int count) {
+        soldOutSegments.put(voucherId + ":" + segment, System.currentTimeMillis() + ttlMillis);
+        for (int i = 0; i < count; i++) {
+            if (!isSoldOut(voucherId, i)) {
+                return false;
+            }
+        }
+        markSoldOut(voucherId);
+        return true;
+    }
+
+    /**
+     * 补充库存后调用，清除所有节点的标记
+     */
+    public void reset(Long voucherId) {
+        clear(voucherId);
+        publish("reset:" + voucherId);
+    }
+
+    private void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        String prefix = voucherId + ":";
+        soldOutSegments.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private void publish(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, message);
+        } catch (Exception e) {
+            // 通知失败只影响其他节点的拒绝速度，不影响正确性
+            log.warn("售罄标记广播失败, message={}", message, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // soldOut:{voucherId} 或 reset:{voucherId}
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 2);
+        if (parts.length != 2 || !NumberUtil.isLong(parts[1])) {
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[1]);
+        if ("soldOut".equals(parts[0])) {
+            soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+        } else if ("reset".equals(parts[0])) {
+            clear(voucherId);
+        }
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.gauge("hmdp_seckill_sold_out_vouchers", "Vouchers marked sold out on this node", soldOut.size())
+                .counter("hmdp_seckill_sold_out_rejected_total", "Seckill requests rejected locally as sold out", rejected.sum());
+    }
+}
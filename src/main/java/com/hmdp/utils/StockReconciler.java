@@ -0,0 +1,443 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 秒杀库存对账：redis中的剩余库存(含节点租用的配额)+已下单用户数 应等于 数据库中的剩余库存+订单数
+ * 1. 定时按券分批比较，两边的差额称为偏差；读取两边不是同一时刻，只有连续两次偏差相同才修正
+ * 2. 以authority指定的一方为准：DB时用INCRBY修正redis库存，REDIS时用一条CASE语句批量修正数据库库存，REPORT只报告
+ * 3. redis数据丢失后可以用数据库重建库存、分段数、秒杀时间和已下单用户，全部用pipeline写入
+ * 注意：进入死信队列的订单在redis中已扣减但不会写入数据库，这部分库存不会被对账找回
+ */
+@Slf4j
+@Component
+public class StockReconciler implements MetricsSource {
+
+    public enum Authority {
+        DB,
+        REDIS,
+        REPORT
+    }
+
+    // 锁的最长持有时间
+    private static final long LOCK_TTL_MINUTES = 10L;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillMeta seckillMeta;
+
+    @Resource
+    private SeckillQuota seckillQuota;
+
+    @Value("${hmdp.seckill.reconcile.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.reconcile.authority:DB}")
+    private Authority authority;
+
+    @Value("${hmdp.seckill.reconcile.batch-size:200}")
+    private int batchSize;
+
+    // voucherId -> 上一次发现的偏差，用于确认
+    private final Map<Long, Long> lastDrifts = new ConcurrentHashMap<>();
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder drifted = new LongAdder();
+    private final LongAdder corrected = new LongAdder();
+    private final LongAdder rebuilt = new LongAdder();
+    private volatile long lastDriftedVouchers;
+    private volatile long lastAbsoluteDrift;
+    private volatile long lastRunMillis;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void scheduledReconcile() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            reconcile();
+        } catch (Exception e) {
+            log.error("库存对账失败", e);
+        }
+    }
+
+    /**
+     * 对账一次
+     * @return 报告，其他节点正在对账时返回null
+     */
+    public Map<String, Object> reconcile() {
+        if (!tryLock()) {
+            return null;
+        }
+        long begin = System.currentTimeMillis();
+        List<Map<String, Object>> drifts = new ArrayList<>();
+        long[] totals = new long[2];
+        try {
+            scan(vouchers -> reconcileBatch(vouchers, drifts, totals));
+        } finally {
+            stringRedisTemplate.delete(RedisConstants.LOCK_STOCK_RECONCILE_KEY);
+        }
+        runs.increment();
+        lastDriftedVouchers = drifts.size();
+        lastAbsoluteDrift = totals[1];
+        lastRunMillis = System.currentTimeMillis() - begin;
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("authority", authority);
+        report.put("checked", totals[0]);
+        report.put("drifted", drifts.size());
+        report.put("absoluteDrift", totals[1]);
+        report.put("costMillis", lastRunMillis);
+        report.put("details", drifts);
+        return report;
+    }
+
+    /**
+     * @param totals [0]对账的券数 [1]偏差绝对值之和
+     */
+    private void reconcileBatch(List<SeckillVoucher> vouchers, List<Map<String, Object>> drifts, long[] totals) {
+        List<Long> voucherIds = new ArrayList<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            voucherIds.add(voucher.getVoucherId());
+        }
+        List<Integer> segments = seckillStock.segments(voucherIds);
+        // 1.一次pipeline读取所有段的库存和已下单用户数
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < vouchers.size(); i++) {
+                Long voucherId = voucherIds.get(i);
+                int count = segments.get(i);
+                for (int s = 0; s < count; s++) {
+                    conn.get(seckillStock.stockKey(voucherId, s, count));
+                    conn.sCard(seckillStock.orderKey(voucherId, s, count));
+                }
+                conn.hGetAll(seckillQuota.leaseKey(voucherId));
+            }
+            return null;
+        });
+        // 节点租用的配额减去还未从租约中扣除的销量，才是redis中剩余的库存，再一次pipeline读取各节点的销量
+        List<List<String>> leaseNodes = new ArrayList<>(vouchers.size());
+        List<List<Long>> leaseAmounts = new ArrayList<>(vouchers.size());
+        int position = 0;
+        for (int i = 0; i < vouchers.size(); i++) {
+            position += segments.get(i) * 2;
+            List<String> nodes = new ArrayList<>();
+            List<Long> amounts = new ArrayList<>();
+            Object leases = values.get(position++);
+            if (leases != null) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) leases).entrySet()) {
+                    nodes.add(entry.getKey().toString());
+                    amounts.add(Long.parseLong(entry.getValue().toString()));
+                }
+            }
+            leaseNodes.add(nodes);
+            leaseAmounts.add(amounts);
+        }
+        List<Object> leaseSold = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < vouchers.size(); i++) {
+                for (String node : leaseNodes.get(i)) {
+                    conn.get(seckillQuota.soldKey(voucherIds.get(i), node));
+                }
+            }
+            return null;
+        });
+        // 2.一次查询统计订单数
+        Map<Long, Long> orderCounts = new HashMap<>();
+        for (Map<String, Object> row : voucherOrderMapper.countByVoucherIds(voucherIds)) {
+            orderCounts.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("total")).longValue());
+        }
+        // 3.逐张券比较
+        Map<String, Long> redisCorrections = new LinkedHashMap<>();
+        List<SeckillVoucher> dbCorrections = new ArrayList<>();
+        List<Long> replenished = new ArrayList<>();
+        int index = 0;
+        int soldIndex = 0;
+        for (int i = 0; i < vouchers.size(); i++) {
+            SeckillVoucher voucher = vouchers.get(i);
+            Long voucherId = voucher.getVoucherId();
+            int count = segments.get(i);
+            long[] segmentStocks = new long[count];
+            long redisStock = 0L;
+            long redisSold = 0L;
+            boolean missing = false;
+            for (int s = 0; s < count; s++) {
+                Object stock = values.get(index++);
+                Object sold = values.get(index++);
+                if (stock == null) {
+                    missing = true;
+                } else {
+                    segmentStocks[s] = Long.parseLong(stock.toString());
+                    redisStock += segmentStocks[s];
+                }
+                redisSold += sold == null ? 0L : ((Number) sold).longValue();
+            }
+            // 节点租用但还未卖出的配额也是redis中的库存
+            index++;
+            for (Long lease : leaseAmounts.get(i)) {
+                Object sold = leaseSold.get(soldIndex++);
+                redisStock += lease - (sold == null ? 0L : Long.parseLong(sold.toString()));
+            }
+            long dbStock = voucher.getStock();
+            long dbOrders = orderCounts.getOrDefault(voucherId, 0L);
+            totals[0]++;
+            checked.increment();
+            if (missing) {
+                // 库存key不存在，需要重建而不是修正
+                drifts.add(detail(voucherId, null, redisSold, dbStock, dbOrders, null, "missing"));
+                continue;
+            }
+            long drift = redisStock + redisSold - dbStock - dbOrders;
+            if (drift == 0L) {
+                lastDrifts.remove(voucherId);
+                continue;
+            }
+            drifted.increment();
+            totals[1] += Math.abs(drift);
+            Long previous = lastDrifts.put(voucherId, drift);
+            String action;
+            if (authority == Authority.REPORT) {
+                action = "reported";
+            } else if (previous == null || previous != drift) {
+                action = "unconfirmed";
+            } else if (authority == Authority.DB) {
+                // 数据库为准：redis库存改为 数据库总量 - redis已下单数
+                addRedisCorrection(redisCorrections, voucherId, count, segmentStocks, -drift);
+                if (redisStock <= 0 && redisStock - drift > 0) {
+                    replenished.add(voucherId);
+                }
+                lastDrifts.remove(voucherId);
+                action = "redis_corrected";
+            } else {
+                // redis为准：数据库库存改为 redis总量 - 数据库订单数
+                dbCorrections.add(new SeckillVoucher().setVoucherId(voucherId).setStock((int) (dbStock + drift)));
+                lastDrifts.remove(voucherId);
+                action = "db_corrected";
+            }
+            drifts.add(detail(voucherId, redisStock, redisSold, dbStock, dbOrders, drift, action));
+            log.warn("秒杀库存偏差, voucherId={}, redisStock={}, redisSold={}, dbStock={}, dbOrders={}, drift={}, action={}",
+                    voucherId, redisStock, redisSold, dbStock, dbOrders, drift, action);
+        }
+        // 4.批量修正
+        if (!redisCorrections.isEmpty()) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                redisCorrections.forEach((key, delta) -> conn.incrBy(key, delta));
+                return null;
+            });
+            corrected.add(redisCorrections.size());
+            replenished.forEach(soldOutRegistry::reset);
+        }
+        if (!dbCorrections.isEmpty()) {
+            seckillVoucherMapper.updateStockBatch(dbCorrections);
+            corrected.add(dbCorrections.size());
+        }
+    }
+
+    /**
+     * 把库存调整量分配到各段：增加时加到第0段，减少时依次从有库存的段扣除
+     * 一人一单由下单用户集合或 seckill:buyer 标记保证，和库存在哪一段无关
+     */
+    private void addRedisCorrection(Map<String, Long> corrections, Long voucherId, int count,
+                                    long[] segmentStocks, long delta) {
+        if (delta > 0 || count == 1) {
+            corrections.put(seckillStock.stockKey(voucherId, 0, count), delta);
+            return;
+        }
+        long remaining = -delta;
+        for (int s = 0; s < count && remaining > 0; s++) {
+            long take = Math.min(remaining, Math.max(0L, segmentStocks[s]));
+            if (take > 0) {
+                corrections.put(seckillStock.stockKey(voucherId, s, count), -take);
+                remaining -= take;
+            }
+        }
+        if (remaining > 0) {
+            corrections.merge(seckillStock.stockKey(voucherId, 0, count), -remaining, Long::sum);
+        }
+    }
+
+    private Map<String, Object> detail(Long voucherId, Long redisStock, long redisSold, long dbStock, long dbOrders,
+                                       Long drift, String action) {
+        Map<String, Object> detail = new LinkedHashMap<>();
+        detail.put("voucherId", voucherId);
+        detail.put("redisStock", redisStock);
+        detail.put("redisSold", redisSold);
+        detail.put("dbStock", dbStock);
+        detail.put("dbOrders", dbOrders);
+        // redis已下单但还未写入数据库的订单数
+        detail.put("inFlight", redisSold - dbOrders);
+        detail.put("drift", drift);
+        detail.put("action", action);
+        return detail;
+    }
+
+    /**
+     * 用数据库重建redis中的秒杀状态：库存、分段数、秒杀时间、已下单用户
+     * 会覆盖redis中的库存，只应在redis数据丢失后、秒杀暂停时执行
+     * @return 重建的券数，其他节点正在对账或重建时返回-1
+     */
+    public long rebuildRedis() {
+        if (!tryLock()) {
+            return -1L;
+        }
+        long before = rebuilt.sum();
+        try {
+            scan(this::rebuildBatch);
+        } finally {
+            stringRedisTemplate.delete(RedisConstants.LOCK_STOCK_RECONCILE_KEY);
+        }
+        lastDrifts.clear();
+        seckillMeta.invalidateAll();
+        return rebuilt.sum() - before;
+    }
+
+    private void rebuildBatch(List<SeckillVoucher> vouchers) {
+        List<Long> voucherIds = new ArrayList<>(vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            voucherIds.add(voucher.getVoucherId());
+        }
+        // 1.库存、分段数和秒杀时间，分段数优先沿用本节点记录的值；
+        //   清除节点的配额租约和销量，库存已按数据库重建，节点续期时发现租约不存在后重新租用
+        List<Object> leaseNodes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long voucherId : voucherIds) {
+                conn.hKeys(seckillQuota.leaseKey(voucherId));
+            }
+            return null;
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < vouchers.size(); i++) {
+                SeckillVoucher voucher = vouchers.get(i);
+                int count = seckillStock.segments(voucher.getVoucherId());
+                conn.set(RedisConstants.SECKILL_SEGMENTS_KEY + voucher.getVoucherId(), String.valueOf(count));
+                seckillStock.split(voucher.getVoucherId(), voucher.getStock(), count).forEach(conn::set);
+                Map<String, String> fields = seckillMeta.fields(voucher);
+                for (String key : seckillMeta.keys(voucher.getVoucherId(), count)) {
+                    conn.hMSet(key, fields);
+                }
+                conn.del(seckillQuota.leaseKey(voucher.getVoucherId()), seckillQuota.expireKey(voucher.getVoucherId()));
+                Object nodes = leaseNodes.get(i);
+                if (nodes != null) {
+                    for (Object node : (Set<?>) nodes) {
+                        conn.del(seckillQuota.soldKey(voucher.getVoucherId(), node.toString()));
+                    }
+                }
+            }
+            return null;
+        });
+        // 2.已下单用户(不含已取消的订单)，按id游标分批读取，每批一次pipeline写入用户首选段，分段或配额模式时同时写入一人一单标记
+        for (Long voucherId : voucherIds) {
+            int count = seckillStock.segments(voucherId);
+            long lastId = 0L;
+            while (true) {
+                List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                        .select("id", "user_id")
+                        .eq("voucher_id", voucherId)
+                        .ne("status", 4)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + batchSize));
+                if (orders.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (VoucherOrder order : orders) {
+                        int home = seckillStock.homeSegment(voucherId, order.getUserId());
+                        conn.sAdd(seckillStock.orderKey(voucherId, home, count), String.valueOf(order.getUserId()));
+                        if (count > 1 || seckillQuota.isEnabled()) {
+                            conn.set(seckillStock.buyerKey(voucherId, order.getUserId()), String.valueOf(home));
+                        }
+                    }
+                    return null;
+                });
+                lastId = orders.get(orders.size() - 1).getId();
+                if (orders.size() < batchSize) {
+                    break;
+                }
+            }
+            soldOutRegistry.reset(voucherId);
+            rebuilt.increment();
+        }
+    }
+
+    private boolean tryLock() {
+        Boolean isLock = stringRedisTemplate.opsForValue()
+                .setIfAbsent(RedisConstants.LOCK_STOCK_RECONCILE_KEY, "1", LOCK_TTL_MINUTES, TimeUnit.MINUTES);
+        return BooleanUtil.isTrue(isLock);
+    }
+
+    /**
+     * 按voucher_id游标分批扫描秒杀券
+     */
+    private void scan(Consumer<List<SeckillVoucher>> consumer) {
+        long lastId = 0L;
+        while (true) {
+            List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                    .gt("voucher_id", lastId)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + batchSize));
+            if (vouchers.isEmpty()) {
+                return;
+            }
+            consumer.accept(vouchers);
+            lastId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            if (vouchers.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void writeMetrics(MetricsWriter writer) {
+        writer.counter("hmdp_stock_reconcile_runs_total", "Stock reconciliation runs", runs.sum())
+                .counter("hmdp_stock_reconcile_vouchers_total", "Vouchers by reconciliation result", checked.sum(), "result", "checked")
+                .counter("hmdp_stock_reconcile_vouchers_total", "Vouchers by reconciliation result", drifted.sum(), "result", "drifted")
+                .counter("hmdp_stock_reconcile_vouchers_total", "Vouchers by reconciliation result", corrected.sum(), "result", "corrected")
+                .counter("hmdp_stock_reconcile_vouchers_total", "Vouchers by reconciliation result", rebuilt.sum(), "result", "rebuilt")
+                .gauge("hmdp_stock_reconcile_last_drifted", "Vouchers with drift in the last run", lastDriftedVouchers)
+                .gauge("hmdp_stock_reconcile_last_absolute_drift", "Sum of absolute drift in the last run", lastAbsoluteDrift)
+                .gauge("hmdp_stock_reconcile_last_duration_seconds", "Duration of the last run", lastRunMillis / 1000D);
+    }
+}
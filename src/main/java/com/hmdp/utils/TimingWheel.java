@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 哈希时间轮：按到期时间落入 tick 对应的格子，调度O(1)，不为每个任务创建定时器
+ * 1. 每个格子用两个long数组保存 id 和到期时间，任务不创建对象
+ * 2. 后台线程在每个tick结束后处理对应的格子，到期的id攒成一批交给处理器，未到期的(下一圈的)留在格子里
+ * 3. 只在内存中，进程退出后丢失，需要调用方另有持久化的兜底
+ */
+@Slf4j
+public class TimingWheel {
+
+    private final long tickMillis;
+    private final int mask;
+    private final Bucket[] buckets;
+    private final int batchSize;
+    private final Consumer<List<Long>> handler;
+
+    private final AtomicLong size = new AtomicLong();
+    private Thread worker;
+    private volatile boolean running;
+
+    /**
+     * @param tickMillis 每格的时间跨度，也是触发的精度
+     * @param wheelSize 格子数，向上取整为2的幂
+     * @param batchSize 每批交给处理器的最大id数
+     */
+    public TimingWheel(long tickMillis, int wheelSize, int batchSize, Consumer<List<Long>> handler) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.batchSize = batchSize;
+        this.handler = handler;
+    }
+
+    public void start(String name) {
+        running = true;
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * 调度一个id，已经到期的在当前tick结束后触发
+     */
+    public void schedule(long id, long deadlineMillis) {
+        long tick = Math.max(deadlineMillis, System.currentTimeMillis()) / tickMillis;
+        // 该tick刚好已被处理时放入下一个tick，否则要等一整圈
+        while (!buckets[(int) (tick & mask)].add(tick, id, deadlineMillis)) {
+            tick++;
+        }
+        size.incrementAndGet();
+    }
+
+    /**
+     * 等待触发的id数
+     */
+    public long size() {
+        return size.get();
+    }
+
+    private void run() {
+        long tick = System.currentTimeMillis() / tickMillis;
+        List<Long> batch = new ArrayList<>(batchSize);
+        while (running) {
+            long now = System.currentTimeMillis();
+            // 处理已经结束的每一格，处理器耗时较长时追赶经过的格子
+            while ((tick + 1) * tickMillis <= now) {
+                buckets[(int) (tick & mask)].expire(tick, now, batch);
+                tick++;
+            }
+            if (!batch.isEmpty()) {
+                fire(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep((tick + 1) * tickMillis - System.currentTimeMillis());
+            } catch (InterruptedException e) {
+                return;
+            } catch (IllegalArgumentException e) {
+                // 已经过了下一格的时间
+            }
+        }
+    }
+
+    private void fire(List<Long> expired) {
+        size.addAndGet(-expired.size());
+        for (int from = 0; from < expired.size(); from += batchSize) {
+            try {
+                handler.accept(expired.subList(from, Math.min(expired.size(), from + batchSize)));
+            } catch (Exception e) {
+                log.error("时间轮任务处理失败, size={}", expired.size(), e);
+            }
+        }
+    }
+
+    private static class Bucket {
+        private long[] ids = new long[16];
+        private long[] deadlines = new long[16];
+        private int count;
+        // 最近处理过的tick
+        private long expiredTick = -1L;
+
+        /**
+         * @return tick已被处理时返回false
+         */
+        private synchronized boolean add(long tick, long id, long deadline) {
+            if (tick <= expiredTick) {
+                return false;
+            }
+            if (count == ids.length) {
+                int capacity = count << 1;
+                long[] newIds = new long[capacity];
+                long[] newDeadlines = new long[capacity];
+                System.arraycopy(ids, 0, newIds, 0, count);
+                System.arraycopy(deadlines, 0, newDeadlines, 0, count);
+                ids = newIds;
+                deadlines = newDeadlines;
+            }
+            ids[count] = id;
+            deadlines[count] = deadline;
+            count++;
+            return true;
+        }
+
+        /**
+         * 取出到期的id，未到期的前移保留
+         */
+        private synchronized void expire(long tick, long now, List<Long> expired) {
+            expiredTick = tick;
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (deadlines[i] <= now) {
+                    expired.add(ids[i]);
+                } else {
+                    ids[kept] = ids[i];
+                    deadlines[kept] = deadlines[i];
+                    kept++;
+                }
+            }
+            count = kept;
+            // 一圈之后容量仍远大于剩余数量时缩小，避免高峰后长期占用内存
+            if (ids.length > 64 && kept < ids.length >> 2) {
+                int capacity = Math.max(16, kept << 1);
+                long[] newIds = new long[capacity];
+                long[] newDeadlines = new long[capacity];
+                System.arraycopy(ids, 0, newIds, 0, kept);
+                System.arraycopy(deadlines, 0, newDeadlines, 0, kept);
+                ids = newIds;
+                deadlines = newDeadlines;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+-- 认领到期的超时订单：把score推后到重试时间，不删除，取消成功后由调用方ZREM
+-- 认领的节点在取消前宕机时，订单在重试时间后仍会被扫描到
+-- KEYS[1] 超时队列 order:timeout
+-- ARGV[1] 当前时间，ARGV[2] 重试时间，ARGV[3..] 订单id
+local now = tonumber(ARGV[1])
+local retryAt = ARGV[2]
+local claimed = {}
+for i = 3, #ARGV do
+    local score = redis.call('zscore', KEYS[1], ARGV[i])
+    -- 已被删除(已处理)或已被其他节点认领(score已推后)的跳过
+    if score and tonumber(score) <= now then
+        redis.call('zadd', KEYS[1], 'XX', retryAt, ARGV[i])
+        claimed[#claimed + 1] = ARGV[i]
+    end
+end
+return claimed
@@ -0,0 +1,65 @@
+-- 一个接口的所有限流规则一次判断：全部通过才消耗额度，任何一个拒绝时都不消耗
+-- KEYS[i] 第i个规则的key，令牌桶为hash(tokens 剩余令牌数、ts 上次补充时间)，滑动窗口为zset(score为请求时间)
+-- ARGV[4i-3] 算法 bucket/window  ARGV[4i-2] 每个周期的请求数  ARGV[4i-1] 周期(毫秒)
+-- ARGV[4i] 令牌桶为容量，滑动窗口为本次请求的唯一标识
+-- 返回 {是否通过 1/0, 各规则拒绝时还需等待的毫秒数(通过的规则为0)...}
+redis.replicate_commands()
+
+-- 1.使用redis的时间，避免各节点时钟不一致
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.逐个判断，只读取不消耗
+local result = {1}
+local tokens = {}
+for i, key in ipairs(KEYS) do
+    local permits = tonumber(ARGV[4 * i - 2])
+    local period = tonumber(ARGV[4 * i - 1])
+    local wait = 0
+    if ARGV[4 * i - 3] == 'bucket' then
+        -- 按经过的时间补充令牌
+        local capacity = tonumber(ARGV[4 * i])
+        local bucket = redis.call('hmget', key, 'tokens', 'ts')
+        local left = tonumber(bucket[1])
+        local ts = tonumber(bucket[2])
+        if left == nil then
+            left = capacity
+            ts = now
+        end
+        left = math.min(capacity, left + math.max(0, now - ts) * permits / period)
+        if left < 1 then
+            wait = math.ceil((1 - left) * period / permits)
+        end
+        tokens[i] = left
+    else
+        -- 移除窗口外的请求，最早的请求移出窗口后才能再通过
+        redis.call('zremrangebyscore', key, '-inf', now - period)
+        if redis.call('zcard', key) >= permits then
+            local oldest = redis.call('zrange', key, 0, 0, 'withscores')
+            wait = math.max(1, tonumber(oldest[2]) + period - now)
+        end
+    end
+    if wait > 0 then
+        result[1] = 0
+    end
+    result[i + 1] = wait
+end
+if result[1] == 0 then
+    return result
+end
+
+-- 3.全部通过，每个规则消耗一次
+for i, key in ipairs(KEYS) do
+    local permits = tonumber(ARGV[4 * i - 2])
+    local period = tonumber(ARGV[4 * i - 1])
+    if ARGV[4 * i - 3] == 'bucket' then
+        local capacity = tonumber(ARGV[4 * i])
+        redis.call('hset', key, 'tokens', tostring(tokens[i] - 1), 'ts', now)
+        -- 桶装满所需的时间后过期
+        redis.call('pexpire', key, math.ceil(capacity * period / permits) + 1000)
+    else
+        redis.call('zadd', key, now, ARGV[4 * i])
+        redis.call('pexpire', key, period)
+    end
+end
+return result
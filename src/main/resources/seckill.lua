@@ -1,3 +1,8 @@
+-- 库存不分段时的秒杀脚本，一次调用完成下单；分段时见 seckill_segment.lua
+-- 一次调用访问的key不在同一个hash slot，只支持单个redis实例，不支持Redis Cluster
+-- 脚本中调用了TIME，之后还有写操作，需要按命令复制
+redis.replicate_commands()
+
 -- 1.参数列表
 -- 1.1.优惠券id
 local voucherId = ARGV[1]
@@ -5,28 +10,53 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.用户所在分片的stream，stream.orders:{shard}
+local streamKey = KEYS[1]
+-- 1.5.订单处理结果的存活时间(秒)
+local statusTtl = ARGV[4]
 
 -- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.1.库存key seckill:stock:{voucherId}
+local stockKey = KEYS[2]
+-- 2.2.订单key seckill:order:{voucherId}
+local orderKey = KEYS[3]
+-- 2.3.订单处理结果key order:status:{orderId}
+local statusKey = KEYS[4]
+-- 2.4.秒杀券信息key seckill:meta:{voucherId}，begin/end为毫秒时间戳
+local metaKey = KEYS[5]
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+-- 3.0.判断是否在秒杀时间内，使用redis的时间；没有秒杀券信息时不判断
+local window = redis.call('hmget', metaKey, 'begin', 'end')
+if window[1] and window[2] then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if now < tonumber(window[1]) then
+        -- 尚未开始，返回3
+        return 3
+    end
+    if now > tonumber(window[2]) then
+        -- 已经结束，返回4
+        return 4
+    end
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
+-- 3.1.判断用户是否下过单 SISMEMBER orderKey userId
 if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
+    -- 3.2.存在，说明是重复下单，返回2
     return 2
 end
--- 3.4.扣库存 incrby stockKey -1
+-- 3.3.判断库存是否充足 get stockKey
+if(tonumber(redis.call('get', stockKey)) <= 0) then
+    -- 3.4.库存不足，返回1
+    return 1
+end
+-- 3.5.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
+-- 3.6.下单（保存用户）sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.7.发送消息到队列中， XADD stream.orders:{shard} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.8.订单处理结果为PENDING，写入数据库后由后台线程更新
+redis.call('hset', statusKey, 'userId', userId, 'voucherId', voucherId, 'status', 'PENDING')
+redis.call('expire', statusKey, statusTtl)
 return 0
\ No newline at end of file
@@ -0,0 +1,58 @@
+-- 节点从秒杀库存中租用配额，或为已有租约续期
+-- KEYS[1] 库存key seckill:stock:{voucherId}，分段时为其中一段
+-- KEYS[2] 租约 hash seckill:lease:{voucherId}，字段为节点id，值为租给该节点、还未按销量扣除的配额
+-- KEYS[3] 租约到期时间 zset seckill:lease:expire:{voucherId}，成员为节点id，分数为毫秒时间戳
+-- KEYS[4] 本节点的销量 seckill:lease:sold:{voucherId}:{节点id}，下单时INCR，这里批量从租约中扣除
+-- ARGV[1] 节点id  ARGV[2] 希望租用的数量，0表示只续期  ARGV[3] 租约时长(毫秒)
+-- ARGV[4] 销量key的前缀 seckill:lease:sold:{voucherId}:，用于回收其他节点的租约
+-- 返回 {本次租到的数量, 本节点扣除销量后的配额(没有租约时为-1)}
+redis.replicate_commands()
+local stockKey = KEYS[1]
+local leaseKey = KEYS[2]
+local expireKey = KEYS[3]
+local soldKey = KEYS[4]
+local node = ARGV[1]
+local want = tonumber(ARGV[2])
+local ttl = tonumber(ARGV[3])
+local soldPrefix = ARGV[4]
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 1.回收已到期的租约(节点宕机或失联)，扣除已卖出的部分后还回库存；到期的节点在本地自我隔离，不会再卖出
+local expired = redis.call('zrangebyscore', expireKey, '-inf', '(' .. now)
+for _, expiredNode in ipairs(expired) do
+    local left = tonumber(redis.call('hget', leaseKey, expiredNode) or '0')
+            - tonumber(redis.call('get', soldPrefix .. expiredNode) or '0')
+    if left > 0 then
+        redis.call('incrby', stockKey, left)
+    end
+    redis.call('hdel', leaseKey, expiredNode)
+    redis.call('zrem', expireKey, expiredNode)
+    redis.call('del', soldPrefix .. expiredNode)
+end
+
+-- 2.把本节点上次之后的销量从租约中扣除
+local sold = tonumber(redis.call('get', soldKey) or '0')
+if sold > 0 and redis.call('hexists', leaseKey, node) == 1 then
+    redis.call('hincrby', leaseKey, node, -sold)
+    redis.call('decrby', soldKey, sold)
+end
+
+-- 3.租用：每次最多取库存的一半，库存较少时各节点都能分到
+local granted = 0
+if want > 0 then
+    local stock = tonumber(redis.call('get', stockKey) or '0')
+    if stock > 0 then
+        granted = math.min(want, math.max(1, math.floor(stock / 2)))
+        redis.call('incrby', stockKey, -granted)
+        redis.call('hincrby', leaseKey, node, granted)
+    end
+end
+
+-- 4.有租约时续期
+local own = tonumber(redis.call('hget', leaseKey, node) or '-1')
+if own >= 0 then
+    redis.call('zadd', expireKey, now + ttl, node)
+end
+return {granted, own}
@@ -0,0 +1,23 @@
+-- 节点归还本地未卖出的配额
+-- KEYS[1] 库存key  KEYS[2] 租约 hash  KEYS[3] 租约到期时间 zset  KEYS[4] 本节点的销量
+-- ARGV[1] 节点id  ARGV[2] 本地未卖出的数量
+-- 已取出还未写入销量的配额留在租约中，下次续期时扣除，节点不再续期时到期回收
+-- 返回归还的数量，租约已被回收时返回0
+local own = redis.call('hget', KEYS[2], ARGV[1])
+if not own then
+    return 0
+end
+local left = tonumber(own) - tonumber(redis.call('get', KEYS[4]) or '0')
+redis.call('del', KEYS[4])
+local returned = math.max(0, math.min(tonumber(ARGV[2]), left))
+if returned > 0 then
+    redis.call('incrby', KEYS[1], returned)
+end
+left = left - returned
+if left <= 0 then
+    redis.call('hdel', KEYS[2], ARGV[1])
+    redis.call('zrem', KEYS[3], ARGV[1])
+else
+    redis.call('hset', KEYS[2], ARGV[1], left)
+end
+return returned
@@ -0,0 +1,9 @@
+-- 取消订单时归还一段的库存：删除下单用户，删除成功才加回库存，重复调用只归还一次
+-- KEYS[1] 库存key  KEYS[2] 订单key，在同一段
+-- ARGV[1] 用户id
+-- 返回归还的数量
+if redis.call('srem', KEYS[2], ARGV[1]) == 1 then
+    redis.call('incrby', KEYS[1], 1)
+    return 1
+end
+return 0
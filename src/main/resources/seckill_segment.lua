@@ -0,0 +1,39 @@
+-- 库存分段时扣减其中一段，只访问同一段的key(hash tag相同)，可以在Redis Cluster中执行
+-- 一人一单由调用方先 SET NX seckill:buyer:{voucherId:userId} 保证，订单消息和处理结果由调用方写入
+-- 脚本中调用了TIME，之后还有写操作，需要按命令复制
+redis.replicate_commands()
+
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+
+-- 2.数据key
+-- 2.1.本段的库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+-- 2.2.本段的订单key seckill:order:{voucherId:i}
+local orderKey = KEYS[2]
+-- 2.3.秒杀时间在本段的副本 seckill:meta:{voucherId:i}
+local metaKey = KEYS[3]
+
+-- 3.脚本业务
+-- 3.1.判断是否在秒杀时间内，没有秒杀券信息时不判断
+local window = redis.call('hmget', metaKey, 'begin', 'end')
+if window[1] and window[2] then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if now < tonumber(window[1]) then
+        return 3
+    end
+    if now > tonumber(window[2]) then
+        return 4
+    end
+end
+-- 3.2.本段库存不足，返回1
+local stock = tonumber(redis.call('get', stockKey))
+if stock == nil or stock <= 0 then
+    return 1
+end
+-- 3.3.扣库存，记录下单用户(用于对账和归还库存)
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+return 0
@@ -0,0 +1,561 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.utils.MetricsWriter;
+import com.hmdp.utils.OrderJournalManager;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.OrderTimeoutQueue;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisTestServer;
+import com.hmdp.utils.SeckillQuota;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Constructor;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VoucherOrderServiceImplTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class);
+    private final SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class);
+    private final OrderStatusTracker orderStatusTracker = mock(OrderStatusTracker.class);
+    private final OrderTimeoutQueue orderTimeoutQueue = mock(OrderTimeoutQueue.class);
+
+    private VoucherOrderServiceImpl service;
+
+    private boolean started;
+
+    private RedisMessageListenerContainer container;
+    private SeckillStock seckillStock;
+    private SoldOutRegistry soldOutRegistry;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        when(seckillVoucherMapper.decreaseStock(anyLong(), anyInt())).thenReturn(1);
+
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "baseMapper", voucherOrderMapper);
+        ReflectionTestUtils.setField(service, "seckillVoucherMapper", seckillVoucherMapper);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "orderStatusTracker", orderStatusTracker);
+        ReflectionTestUtils.setField(service, "orderTimeoutQueue", orderTimeoutQueue);
+        ReflectionTestUtils.setField(service, "orderJournalManager", mock(OrderJournalManager.class));
+        ReflectionTestUtils.setField(service, "transactionTemplate",
+                new TransactionTemplate(mock(PlatformTransactionManager.class)));
+        ReflectionTestUtils.setField(service, "batchSize", 100);
+        ReflectionTestUtils.setField(service, "flushIntervalMillis", 20L);
+        ReflectionTestUtils.setField(service, "claimIdleMillis", 30000L);
+        ReflectionTestUtils.setField(service, "claimIntervalMillis", 5000L);
+        ReflectionTestUtils.setField(service, "maxDeliveries", 5L);
+        ReflectionTestUtils.setField(service, "shards", 2);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (container != null) {
+            container.destroy();
+        }
+        if (started) {
+            ReflectionTestUtils.invokeMethod(service, "destroy");
+            ExecutorService executor = (ExecutorService) ReflectionTestUtils.getField(service, "seckillOrderExecutor");
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void persistsBatchWithOneInsertAndOneStockUpdatePerVoucher() throws Exception {
+        List<VoucherOrder> batch = Arrays.asList(order(1L, 1L, 11L), order(2L, 2L, 10L), order(3L, 3L, 11L));
+
+        Set<Long> failed = handleVoucherOrders(handler(0), batch);
+
+        assertTrue(failed.isEmpty());
+        verify(voucherOrderMapper, times(1)).insertBatch(batch);
+        // 每张券一条扣减，按券id顺序
+        InOrder order = inOrder(seckillVoucherMapper);
+        order.verify(seckillVoucherMapper).decreaseStock(10L, 1);
+        order.verify(seckillVoucherMapper).decreaseStock(11L, 2);
+        verify(orderStatusTracker).markCreated(batch);
+        verify(orderTimeoutQueue).schedule(batch);
+        assertEquals(3L, counter("persistedOrders"));
+        assertEquals(1L, counter("persistedBatches"));
+    }
+
+    @Test
+    void dedupesWithinBatchAndAgainstDatabase() throws Exception {
+        VoucherOrder first = order(1L, 1L, 10L);
+        VoucherOrder sameUser = order(2L, 1L, 10L);
+        VoucherOrder redelivered = order(3L, 2L, 10L);
+        VoucherOrder otherOrder = order(4L, 3L, 10L);
+        VoucherOrder afterCancel = order(5L, 4L, 10L);
+        when(voucherOrderMapper.selectList(any())).thenReturn(Arrays.asList(
+                order(3L, 2L, 10L).setStatus(1),
+                order(40L, 3L, 10L).setStatus(1),
+                order(50L, 4L, 10L).setStatus(4)));
+
+        Set<Long> failed = handleVoucherOrders(handler(0),
+                Arrays.asList(first, sameUser, redelivered, otherOrder, afterCancel));
+
+        assertTrue(failed.isEmpty());
+        // 只写入第一单和取消后再次下的单
+        verify(voucherOrderMapper).insertBatch(Arrays.asList(first, afterCancel));
+        verify(seckillVoucherMapper).decreaseStock(10L, 2);
+        // 重复投递的订单按已创建处理，另外两单被一人一单拒绝
+        verify(orderStatusTracker).markCreated(Collections.singletonList(redelivered));
+        verify(orderStatusTracker).markFailed(Arrays.asList(sameUser, otherOrder), "不能重复下单");
+        assertEquals(3L, counter("duplicateOrders"));
+    }
+
+    @Test
+    void fallsBackToSingleWritesWhenBatchFails() throws Exception {
+        when(seckillVoucherMapper.decreaseStock(eq(11L), anyInt())).thenReturn(0);
+        VoucherOrder ok = order(1L, 1L, 10L);
+        VoucherOrder soldOut = order(2L, 2L, 11L);
+
+        Set<Long> failed = handleVoucherOrders(handler(0), Arrays.asList(ok, soldOut));
+
+        assertEquals(Collections.singleton(2L), failed);
+        // 整批一次，逐单各一次
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<VoucherOrder>> inserts = ArgumentCaptor.forClass(List.class);
+        verify(voucherOrderMapper, times(3)).insertBatch(inserts.capture());
+        assertEquals(Arrays.asList(2, 1, 1),
+                inserts.getAllValues().stream().map(List::size).collect(Collectors.toList()));
+        // 失败的订单保持PENDING，不加入超时队列
+        verify(orderStatusTracker).markCreated(Collections.singletonList(ok));
+        verify(orderTimeoutQueue).schedule(Collections.singletonList(ok));
+        assertEquals(1L, counter("persistedOrders"));
+        assertEquals(1L, counter("failedOrders"));
+    }
+
+    @Test
+    void acknowledgesAndDeletesPersistedRecords() throws InterruptedException {
+        String streamKey = streamKey(1L);
+        add(streamKey, "1", "1", "10");
+        add(streamKey, "2", "3", "10");
+
+        start();
+        await(() -> stringRedisTemplate.opsForStream().size(streamKey) == 0L);
+
+        verify(voucherOrderMapper).insertBatch(any());
+        assertEquals(0L, stringRedisTemplate.opsForStream()
+                .pending(streamKey, STREAM_ORDERS_GROUP).getTotalPendingMessages());
+        assertEquals(2L, counter("persistedOrders"));
+    }
+
+    @Test
+    void deadLettersMalformedRecords() throws InterruptedException {
+        String streamKey = streamKey(1L);
+        add(streamKey, "x", "1", "10");
+
+        start();
+        await(() -> stringRedisTemplate.opsForStream().size(streamKey) == 0L);
+
+        List<MapRecord<String, Object, Object>> dead = stringRedisTemplate.opsForStream()
+                .range(STREAM_ORDERS_DLQ_KEY, Range.unbounded());
+        assertEquals(1, dead.size());
+        assertTrue(dead.get(0).getValue().get("reason").toString().startsWith("消息格式错误"));
+        verify(voucherOrderMapper, never()).insertBatch(any());
+    }
+
+    @Test
+    void claimsRecordsLeftPendingByAnotherConsumer() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "claimIdleMillis", 100L);
+        ReflectionTestUtils.setField(service, "claimIntervalMillis", 50L);
+        String streamKey = streamKey(1L);
+        ReflectionTestUtils.invokeMethod(service, "createConsumerGroup", streamKey);
+        add(streamKey, "1", "1", "10");
+        // 另一个节点读取后宕机，没有ACK
+        stringRedisTemplate.opsForStream().read(Consumer.from(STREAM_ORDERS_GROUP, "crashed"),
+                StreamReadOptions.empty().count(10), StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+
+        start();
+        await(() -> stringRedisTemplate.opsForStream().size(streamKey) == 0L);
+
+        verify(voucherOrderMapper).insertBatch(argThat(orders -> ids(orders).equals(Collections.singletonList(1L))));
+        assertEquals(1L, counter("claimedOrders"));
+    }
+
+    @Test
+    void deadLettersRecordsAfterMaxDeliveries() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "claimIdleMillis", 100L);
+        ReflectionTestUtils.setField(service, "claimIntervalMillis", 50L);
+        ReflectionTestUtils.setField(service, "maxDeliveries", 2L);
+        when(voucherOrderMapper.insertBatch(any())).thenThrow(new RuntimeException("db down"));
+        String streamKey = streamKey(1L);
+        add(streamKey, "1", "1", "10");
+
+        start();
+        await(() -> stringRedisTemplate.opsForStream().size(STREAM_ORDERS_DLQ_KEY) == 1L);
+
+        // 第一次读取和一次认领都失败，第二次认领时转入死信队列
+        verify(voucherOrderMapper, times(4)).insertBatch(any());
+        verify(orderStatusTracker, timeout(1000)).markFailed(argThat(orders -> ids(orders).equals(Collections.singletonList(1L))),
+                eq("超过最大投递次数"));
+        assertEquals(0L, stringRedisTemplate.opsForStream().size(streamKey));
+        assertEquals(1L, counter("claimedOrders"));
+        assertEquals(1L, counter("deadLetterOrders"));
+    }
+
+    @Test
+    void routesUsersToShardsByHash() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "shards", 4);
+        int[] perShard = new int[4];
+        for (long userId = 1; userId <= 20; userId++) {
+            int shard = Math.floorMod(Long.hashCode(userId), 4);
+            assertEquals("stream.orders:" + shard, streamKey(userId));
+            add(streamKey(userId), String.valueOf(userId), String.valueOf(userId), "10");
+            perShard[shard]++;
+        }
+
+        start();
+        await(() -> counter("persistedOrders") == 20L);
+
+        // 每个分片只消费自己stream中的订单
+        MetricsWriter writer = new MetricsWriter();
+        service.writeMetrics(writer);
+        List<String> lines = Arrays.asList(writer.toString().split("\n"));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lines.contains("hmdp_order_shard_persisted_total{shard=\"" + i + "\"} " + perShard[i]),
+                    writer.toString());
+        }
+    }
+
+    @Test
+    void segmentedSeckillClaimsBuyerKeyAndWritesOrder() {
+        segmented(3, 2);
+        createVoucher(10L, 3, LocalDateTime.now().minusHours(1));
+
+        // 用户1的首选段是1
+        assertEquals(0, seckill(10L, 1L, 100L));
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:buyer:{10:1}"));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:stock:{10:1}"));
+        assertTrue(stringRedisTemplate.opsForSet().isMember("seckill:order:{10:1}", "1"));
+        assertEquals(1L, stringRedisTemplate.opsForStream().size(streamKey(1L)));
+        assertEquals(OrderStatus.PENDING, stringRedisTemplate.opsForHash().get("order:status:100", "status"));
+
+        assertEquals(2, seckill(10L, 1L, 101L));
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:buyer:{10:1}"));
+        assertEquals(1L, stringRedisTemplate.opsForStream().size(streamKey(1L)));
+    }
+
+    @Test
+    void segmentedSeckillTriesBoundedSegmentsAndSkipsSoldOutOnes() {
+        segmented(3, 2);
+        createVoucher(10L, 3, LocalDateTime.now().minusHours(1));
+        stringRedisTemplate.opsForValue().set("seckill:stock:{10:1}", "0");
+        stringRedisTemplate.opsForValue().set("seckill:stock:{10:2}", "0");
+
+        // 首选段1和下一段2都售罄，第0段还有库存但超出尝试次数
+        assertEquals(1, seckill(10L, 1L, 100L));
+        assertNull(stringRedisTemplate.opsForValue().get("seckill:buyer:{10:1}"));
+        assertFalse(soldOutRegistry.isSoldOut(10L));
+
+        // 再次下单跳过已知售罄的段
+        assertEquals(0, seckill(10L, 4L, 101L));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:buyer:{10:4}"));
+
+        // 所有段都售罄后标记整张券
+        assertEquals(1, seckill(10L, 7L, 102L));
+        assertTrue(soldOutRegistry.isSoldOut(10L));
+    }
+
+    @Test
+    void segmentedSeckillChecksTheWindowInTheSegment() {
+        segmented(3, 2);
+        createVoucher(10L, 3, LocalDateTime.now().plusHours(1));
+
+        assertEquals(3, seckill(10L, 1L, 100L));
+        assertNull(stringRedisTemplate.opsForValue().get("seckill:buyer:{10:1}"));
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:stock:{10:1}"));
+    }
+
+    @Test
+    void cancelReturnsStockOnceToThePurchasedSegment() {
+        segmented(3, 2);
+        createVoucher(10L, 3, LocalDateTime.now().minusHours(1));
+        assertEquals(0, seckill(10L, 1L, 100L));
+        // 没有一人一单标记的订单(例如配额模式)在所有段尝试归还
+        stringRedisTemplate.opsForValue().decrement("seckill:stock:{10:2}");
+        stringRedisTemplate.opsForSet().add("seckill:order:{10:2}", "5");
+
+        List<VoucherOrder> cancelled = Arrays.asList(order(100L, 1L, 10L), order(200L, 5L, 10L));
+        returnRedisStock(cancelled);
+        returnRedisStock(cancelled);
+
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:stock:{10:1}"));
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:stock:{10:2}"));
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:stock:{10:0}"));
+        assertNull(stringRedisTemplate.opsForValue().get("seckill:buyer:{10:1}"));
+        // 取消后可以再次下单
+        assertEquals(0, seckill(10L, 1L, 101L));
+    }
+
+    @Test
+    void unsegmentedSeckillRunsOneScript() {
+        segmented(1, 2);
+        createVoucher(10L, 1, LocalDateTime.now().minusHours(1));
+
+        assertEquals(0, seckill(10L, 1L, 100L));
+        assertEquals(2, seckill(10L, 1L, 101L));
+        assertEquals(1, seckill(10L, 2L, 102L));
+        assertTrue(soldOutRegistry.isSoldOut(10L));
+        assertTrue(stringRedisTemplate.keys("seckill:buyer:*").isEmpty());
+
+        returnRedisStock(Collections.singletonList(order(100L, 1L, 10L)));
+        assertEquals("1", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+        assertFalse(soldOutRegistry.isSoldOut(10L));
+    }
+
+    @Test
+    void quotaSeckillClaimsBuyerKeyAndLeavesTheLeaseToRenew() {
+        segmented(1, 2);
+        createVoucher(10L, 100, LocalDateTime.now().minusHours(1));
+        SeckillQuota quota = quota();
+
+        assertEquals(0, quotaSeckill(10L, 1L, 100L));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:buyer:{10:1}"));
+        assertTrue(stringRedisTemplate.opsForSet().isMember("seckill:order:10", "1"));
+        assertEquals(1L, stringRedisTemplate.opsForStream().size(streamKey(1L)));
+        assertEquals(OrderStatus.PENDING, stringRedisTemplate.opsForHash().get("order:status:100", "status"));
+        // 下单只记录本节点的销量，不修改共享的租约
+        assertEquals("10", stringRedisTemplate.opsForHash().get("seckill:lease:10", quota.getNodeId()));
+        assertEquals("1", stringRedisTemplate.opsForValue().get(quota.soldKey(10L)));
+
+        // 通过其他节点重复下单由标记拒绝
+        SeckillQuota other = quota();
+        assertEquals(2, quotaSeckill(10L, 1L, 101L));
+        assertEquals(1L, stringRedisTemplate.opsForStream().size(streamKey(1L)));
+        assertNull(stringRedisTemplate.opsForValue().get(other.soldKey(10L)));
+
+        // 取消后清除标记，可以再次下单(本地记录的用户由广播清除，这里换一个节点)
+        returnRedisStock(Collections.singletonList(order(100L, 1L, 10L)));
+        assertNull(stringRedisTemplate.opsForValue().get("seckill:buyer:{10:1}"));
+        SeckillQuota third = quota();
+        assertEquals(0, quotaSeckill(10L, 1L, 102L));
+
+        for (SeckillQuota node : new SeckillQuota[]{quota, other, third}) {
+            ReflectionTestUtils.invokeMethod(node, "destroy");
+        }
+    }
+
+    @Test
+    void seckillAppendsTheReservedJournalSlotOnlyWhenAccepted() {
+        segmented(1, 2);
+        createVoucher(10L, 1, LocalDateTime.now().minusHours(1));
+        OrderJournalManager journal = journal(7L);
+
+        assertTrue(seckillVoucher(10L, 1L, 100L).getSuccess());
+        verify(journal).append(7L, 100L, 1L, 10L);
+        // 重复下单被脚本拒绝，放弃预占的位置
+        assertFalse(seckillVoucher(10L, 1L, 101L).getSuccess());
+        verify(journal).cancel(7L);
+        verify(journal, times(1)).append(anyLong(), anyLong(), anyLong(), anyLong());
+    }
+
+    @Test
+    void seckillReleasesTheJournalSlotWhenTheScriptThrowsAnError() {
+        segmented(1, 2);
+        createVoucher(10L, 1, LocalDateTime.now().minusHours(1));
+        OrderJournalManager journal = journal(7L);
+        SeckillStock failing = mock(SeckillStock.class);
+        when(failing.segments(10L)).thenThrow(new StackOverflowError());
+        ReflectionTestUtils.setField(service, "seckillStock", failing);
+
+        assertThrows(StackOverflowError.class, () -> seckillVoucher(10L, 1L, 100L));
+        verify(journal).cancel(7L);
+        verify(journal, never()).append(anyLong(), anyLong(), anyLong(), anyLong());
+    }
+
+    private OrderJournalManager journal(long sequence) {
+        OrderJournalManager journal = mock(OrderJournalManager.class);
+        when(journal.reserve()).thenReturn(sequence);
+        ReflectionTestUtils.setField(service, "orderJournalManager", journal);
+        ReflectionTestUtils.setField(service, "seckillQuota", mock(SeckillQuota.class));
+        return journal;
+    }
+
+    private Result seckillVoucher(Long voucherId, Long userId, long orderId) {
+        RedisIdWorker redisIdWorker = mock(RedisIdWorker.class);
+        when(redisIdWorker.nextId("order")).thenReturn(orderId);
+        ReflectionTestUtils.setField(service, "redisIdWorker", redisIdWorker);
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            return service.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private void segmented(int segments, int attempts) {
+        container = RedisTestServer.listenerContainer();
+        seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillStock, "stockSegments", segments);
+        SeckillMeta seckillMeta = new SeckillMeta();
+        ReflectionTestUtils.setField(seckillMeta, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillMeta, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(seckillMeta, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(seckillMeta, "localSize", 100);
+        ReflectionTestUtils.setField(seckillMeta, "localTtlMillis", 60000L);
+        ReflectionTestUtils.invokeMethod(seckillMeta, "start");
+        soldOutRegistry = new SoldOutRegistry();
+        ReflectionTestUtils.setField(soldOutRegistry, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(soldOutRegistry, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(soldOutRegistry, "ttlMillis", 60000L);
+        ReflectionTestUtils.invokeMethod(soldOutRegistry, "init");
+
+        ReflectionTestUtils.setField(service, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(service, "seckillMeta", seckillMeta);
+        ReflectionTestUtils.setField(service, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(service, "segmentAttempts", attempts);
+        ReflectionTestUtils.setField(service, "seckillQuota", new SeckillQuota());
+        when(orderStatusTracker.getTtlSeconds()).thenReturn(600L);
+    }
+
+    private SeckillQuota quota() {
+        SeckillQuota quota = new SeckillQuota();
+        ReflectionTestUtils.setField(quota, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(quota, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(quota, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(quota, "enabled", true);
+        ReflectionTestUtils.setField(quota, "leaseTtlMillis", 30000L);
+        ReflectionTestUtils.setField(quota, "renewIntervalMillis", 5000L);
+        ReflectionTestUtils.setField(quota, "minLease", 10);
+        ReflectionTestUtils.setField(quota, "maxLease", 1000);
+        ReflectionTestUtils.setField(service, "seckillQuota", quota);
+        return quota;
+    }
+
+    private void createVoucher(Long voucherId, int stock, LocalDateTime begin) {
+        seckillStock.init(voucherId, stock);
+        SeckillMeta seckillMeta = (SeckillMeta) ReflectionTestUtils.getField(service, "seckillMeta");
+        seckillMeta.init(new SeckillVoucher().setVoucherId(voucherId).setStock(stock)
+                .setBeginTime(begin).setEndTime(begin.plusHours(2)));
+    }
+
+    private int seckill(Long voucherId, Long userId, long orderId) {
+        Integer r = ReflectionTestUtils.invokeMethod(service, "executeSeckill", voucherId, userId, orderId);
+        return r;
+    }
+
+    private int quotaSeckill(Long voucherId, Long userId, long orderId) {
+        Integer r = ReflectionTestUtils.invokeMethod(service, "executeQuotaSeckill", voucherId, userId, orderId);
+        return r;
+    }
+
+    private void returnRedisStock(List<VoucherOrder> orders) {
+        ReflectionTestUtils.invokeMethod(service, "returnRedisStock", orders);
+    }
+
+    private void start() {
+        ReflectionTestUtils.invokeMethod(service, "init");
+        started = true;
+    }
+
+    private String streamKey(Long userId) {
+        return ReflectionTestUtils.invokeMethod(service, "streamKey", userId);
+    }
+
+    private void add(String streamKey, String id, String userId, String voucherId) {
+        Map<String, String> value = new HashMap<>();
+        value.put("id", id);
+        value.put("userId", userId);
+        value.put("voucherId", voucherId);
+        stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(value).withStreamKey(streamKey));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private Object handler(int shard) throws Exception {
+        Class<?> type = Class.forName(VoucherOrderServiceImpl.class.getName() + "$VoucherOrderHandler");
+        Constructor<?> constructor = type.getDeclaredConstructor(VoucherOrderServiceImpl.class, int.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(service, shard);
+    }
+
+    private static Set<Long> handleVoucherOrders(Object handler, List<VoucherOrder> batch) {
+        return ReflectionTestUtils.invokeMethod(handler, "handleVoucherOrders", new ArrayList<>(batch));
+    }
+
+    private static List<Long> ids(Collection<VoucherOrder> orders) {
+        return orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+    }
+
+    private long counter(String name) {
+        return ((LongAdder) ReflectionTestUtils.getField(service, name)).sum();
+    }
+
+    private static VoucherOrder order(Long id, Long userId, Long voucherId) {
+        return new VoucherOrder().setId(id).setUserId(userId).setVoucherId(voucherId)
+                .setCreateTime(LocalDateTime.now());
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BloomFilterTest {
+
+    // 用map模拟redis，只实现布隆过滤器用到的命令
+    private final Map<String, byte[]> redis = new HashMap<>();
+
+    private final RedisConnection connection = (RedisConnection) Proxy.newProxyInstance(
+            RedisConnection.class.getClassLoader(), new Class<?>[]{RedisConnection.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "set":
+                        redis.put(key(args[0]), (byte[]) args[1]);
+                        return Boolean.TRUE;
+                    case "get":
+                        return redis.get(key(args[0]));
+                    case "rename":
+                        redis.put(key(args[1]), redis.remove(key(args[0])));
+                        return null;
+                    case "setBit":
+                        setBit(key(args[0]), (Long) args[1]);
+                        return Boolean.FALSE;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    private final StringRedisTemplate template = new StringRedisTemplate() {
+        @Override
+        public <T> T execute(RedisCallback<T> action) {
+            return action.doInRedis(connection);
+        }
+
+        @Override
+        public List<Object> executePipelined(RedisCallback<?> action) {
+            action.doInRedis(connection);
+            return Collections.emptyList();
+        }
+    };
+
+    @Test
+    void passesEverythingBeforeReady() {
+        BloomFilter filter = new BloomFilter("test", 1000, 0.01, template);
+        assertFalse(filter.isReady());
+        assertTrue(filter.mightContain(42L));
+    }
+
+    @Test
+    void containsRebuiltIdsWithinFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter("test", 10000, 0.01, template);
+        filter.rebuild(ids(0, 10000));
+        for (long id = 0; id < 10000; id++) {
+            assertTrue(filter.mightContain(id), "missing id " + id);
+        }
+        int falsePositives = 0;
+        for (long id = 10000; id < 20000; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300, "false positives " + falsePositives);
+    }
+
+    @Test
+    void reloadsBitmapWrittenByRebuildAndPut() {
+        BloomFilter writer = new BloomFilter("test", 1000, 0.01, template);
+        writer.rebuild(ids(0, 500));
+        // put 用SETBIT写入，位序必须和整体写入的位图一致
+        writer.put(100000L);
+
+        BloomFilter reader = new BloomFilter("test", 1000, 0.01, template);
+        assertTrue(reader.reloadFromRedis());
+        for (long id = 0; id < 500; id++) {
+            assertTrue(reader.mightContain(id), "missing id " + id);
+        }
+        assertTrue(reader.mightContain(100000L));
+    }
+
+    @Test
+    void rejectsBitmapWithDifferentSize() {
+        new BloomFilter("test", 1000, 0.01, template).rebuild(ids(0, 10));
+        BloomFilter resized = new BloomFilter("test", 100000, 0.01, template);
+        assertFalse(resized.reloadFromRedis());
+        assertFalse(resized.isReady());
+    }
+
+    @Test
+    void putLocalIsVisibleWithoutRedis() {
+        BloomFilter filter = new BloomFilter("test", 1000, 0.01, template);
+        filter.rebuild(Collections.emptyList());
+        assertFalse(filter.mightContain(7L));
+        filter.putLocal(7L);
+        assertTrue(filter.mightContain(7L));
+    }
+
+    private static List<Long> ids(long from, long to) {
+        List<Long> ids = new ArrayList<>();
+        for (long id = from; id < to; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static String key(Object raw) {
+        return new String((byte[]) raw, StandardCharsets.UTF_8);
+    }
+
+    // redis位图中第0位是第一个字节的最高位
+    private void setBit(String key, long offset) {
+        byte[] bytes = redis.getOrDefault(key, new byte[0]);
+        int index = (int) (offset >>> 3);
+        if (bytes.length <= index) {
+            bytes = Arrays.copyOf(bytes, index + 1);
+        }
+        bytes[index] |= (byte) (0x80 >>> (offset & 7));
+        redis.put(key, bytes);
+    }
+}
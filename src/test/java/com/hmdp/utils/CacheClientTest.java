@@ -0,0 +1,410 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheClientTest {
+
+    private static final String PREFIX = "cache:test:";
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final List<RedisMessageListenerContainer> containers = new ArrayList<>();
+
+    // 模拟数据库，记录查询次数
+    private final AtomicInteger dbQueries = new AtomicInteger();
+    private volatile String dbName = "v1";
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (RedisMessageListenerContainer container : containers) {
+            container.destroy();
+        }
+    }
+
+    @Test
+    void localCacheServesRepeatedReads() {
+        CacheClient client = newClient();
+        client.enableLocalCache(PREFIX, 100, 1, TimeUnit.MINUTES);
+        // 第一次查数据库写redis，第二次命中redis后放入一级缓存
+        assertEquals("v1", query(client, 1L).getName());
+        assertEquals("v1", query(client, 1L).getName());
+        // redis中的值被删除后，一级缓存仍然命中
+        stringRedisTemplate.delete(PREFIX + 1);
+        assertEquals("v1", query(client, 1L).getName());
+        assertEquals(1, dbQueries.get());
+    }
+
+    @Test
+    void nullValueIsCachedLocally() {
+        CacheClient client = newClient();
+        client.enableLocalCache(PREFIX, 100, 1, TimeUnit.MINUTES);
+        assertNull(client.queryWithPassThrough(PREFIX, 2L, Shop.class, this::loadMissing, 30L, TimeUnit.MINUTES));
+        // redis中写入了空值占位
+        assertEquals("", stringRedisTemplate.opsForValue().get(PREFIX + 2));
+        assertNull(client.queryWithPassThrough(PREFIX, 2L, Shop.class, this::loadMissing, 30L, TimeUnit.MINUTES));
+        stringRedisTemplate.delete(PREFIX + 2);
+        assertNull(client.queryWithPassThrough(PREFIX, 2L, Shop.class, this::loadMissing, 30L, TimeUnit.MINUTES));
+        assertEquals(1, dbQueries.get());
+    }
+
+    @Test
+    void evictInvalidatesLocalCacheOnOtherNodes() throws InterruptedException {
+        CacheClient nodeA = newClient();
+        CacheClient nodeB = newClient();
+        nodeA.enableLocalCache(PREFIX, 100, 1, TimeUnit.MINUTES);
+        nodeB.enableLocalCache(PREFIX, 100, 1, TimeUnit.MINUTES);
+        awaitSubscribers(2);
+        assertEquals("v1", query(nodeA, 1L).getName());
+        assertEquals("v1", query(nodeA, 1L).getName());
+        assertEquals("v1", query(nodeB, 1L).getName());
+        assertEquals(1L, localSize(nodeB));
+
+        dbName = "v2";
+        nodeA.evict(PREFIX + 1);
+        assertNull(stringRedisTemplate.opsForValue().get(PREFIX + 1));
+        // 本节点同步清理，其他节点收到广播后清理
+        assertEquals("v2", query(nodeA, 1L).getName());
+        await(() -> "v2".equals(query(nodeB, 1L).getName()));
+    }
+
+    @Test
+    void evictAllBroadcastsEveryKey() throws InterruptedException {
+        CacheClient nodeA = newClient();
+        CacheClient nodeB = newClient();
+        nodeB.enableLocalCache(PREFIX, 100, 1, TimeUnit.MINUTES);
+        awaitSubscribers(2);
+        for (int i = 0; i < 2; i++) {
+            query(nodeB, 1L);
+            query(nodeB, 2L);
+        }
+        assertEquals(2L, localSize(nodeB));
+
+        List<String> keys = new ArrayList<>();
+        keys.add(PREFIX + 1);
+        keys.add(PREFIX + 2);
+        nodeA.evictAll(keys);
+        assertEquals(0L, (long) stringRedisTemplate.countExistingKeys(keys));
+        await(() -> localSize(nodeB) == 0L);
+    }
+
+    @Test
+    void batchLogicExpireMixesHitsMissesAndNullMarkers() {
+        CacheClient client = newClient();
+        client.setWithLogicalExpire(PREFIX + 1, new Shop().setId(1L).setName("cached"), 30L, TimeUnit.MINUTES);
+        stringRedisTemplate.opsForValue().set(PREFIX + 2, "");
+        List<Collection<Long>> loads = new ArrayList<>();
+
+        Map<Long, Shop> result = queryBatch(client, Arrays.asList(3L, 1L, 2L, 4L, 1L), loads);
+        // 按ids顺序，去重，空值和数据库不存在的id不返回
+        assertEquals(Arrays.asList(3L, 1L), new ArrayList<>(result.keySet()));
+        assertEquals("cached", result.get(1L).getName());
+        assertEquals("v1", result.get(3L).getName());
+        // 只有未命中的id查了一次数据库
+        assertEquals(Collections.singletonList(Arrays.asList(3L, 4L)), loads);
+        assertEquals("", stringRedisTemplate.opsForValue().get(PREFIX + 4));
+
+        // 回填后全部命中redis
+        loads.clear();
+        assertEquals(Arrays.asList(3L, 1L), new ArrayList<>(queryBatch(client, Arrays.asList(3L, 1L, 2L, 4L), loads).keySet()));
+        assertTrue(loads.isEmpty());
+    }
+
+    @Test
+    void batchLogicExpireReturnsStaleValuesAndRebuildsInBackground() throws InterruptedException {
+        CacheClient client = newClient();
+        client.setWithLogicalExpire(PREFIX + 1, new Shop().setId(1L).setName("old"), -1L, TimeUnit.SECONDS);
+        client.setWithLogicalExpire(PREFIX + 2, new Shop().setId(2L).setName("old"), -1L, TimeUnit.SECONDS);
+        // 其他节点正在重建2
+        stringRedisTemplate.opsForValue().set("lock:test:2", "1");
+        List<Collection<Long>> loads = new CopyOnWriteArrayList<>();
+        dbName = "new";
+
+        Map<Long, Shop> result = queryBatch(client, Arrays.asList(1L, 2L), loads);
+        assertEquals("old", result.get(1L).getName());
+        assertEquals("old", result.get(2L).getName());
+        // 两个过期id合并成一个任务，只重建拿到锁的1
+        await(() -> !loads.isEmpty() && !stringRedisTemplate.hasKey("lock:test:1"));
+        assertEquals(Collections.singletonList(Collections.singletonList(1L)), loads);
+        assertEquals("new", queryBatch(client, Collections.singletonList(1L), loads).get(1L).getName());
+    }
+
+    @Test
+    void batchLogicExpireServesFreshValuesFromLocalCache() {
+        CacheClient client = newClient();
+        client.enableLocalCache(PREFIX, 100, 1, TimeUnit.MINUTES);
+        client.setWithLogicalExpire(PREFIX + 1, new Shop().setId(1L).setName("cached"), 30L, TimeUnit.MINUTES);
+        List<Collection<Long>> loads = new ArrayList<>();
+        queryBatch(client, Collections.singletonList(1L), loads);
+        stringRedisTemplate.delete(PREFIX + 1);
+        assertEquals("cached", queryBatch(client, Collections.singletonList(1L), loads).get(1L).getName());
+        assertTrue(loads.isEmpty());
+    }
+
+    @Test
+    void earlyRefreshProbabilityGrowsWithRebuildCost() {
+        CacheClient client = new CacheClient(null);
+        assertFalse(shouldRefreshEarly(client, 600000L, null));
+        assertTrue(shouldRefreshEarly(client, -1000L, null));
+        // 重建耗时等于剩余时间时，-ln(rand) >= 1 的概率是 1/e
+        int refreshed = 0;
+        int trials = 20000;
+        for (int i = 0; i < trials; i++) {
+            if (shouldRefreshEarly(client, 600000L, 600000L)) {
+                refreshed++;
+            }
+        }
+        double ratio = (double) refreshed / trials;
+        assertTrue(Math.abs(ratio - Math.exp(-1)) < 0.03, "ratio " + ratio);
+        // 重建很快时几乎不会提前刷新
+        for (int i = 0; i < trials; i++) {
+            assertFalse(shouldRefreshEarly(client, 600000L, 1L));
+        }
+    }
+
+    @Test
+    void earlyRefreshRebuildsBeforeExpiryAndRecordsCost() throws InterruptedException {
+        CacheClient client = newClient();
+        // 剩余时间很长、重建很快，不刷新
+        client.setWithLogicalExpire(PREFIX + 1, new Shop().setId(1L).setName("old"), 30L, TimeUnit.MINUTES, 1L);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("old", queryEarly(client, 1L).getName());
+        }
+        assertEquals(0, dbQueries.get());
+
+        // 还没过期，但重建耗时远大于剩余时间，提前在后台刷新
+        client.setWithLogicalExpire(PREFIX + 2, new Shop().setId(2L).setName("old"), 60L, TimeUnit.SECONDS, 3600000L);
+        dbName = "new";
+        assertEquals("old", queryEarly(client, 2L).getName());
+        await(() -> dbQueries.get() == 1 && !stringRedisTemplate.hasKey("lock:test:2"));
+        RedisData redisData = new CacheSerializer().deserializeLogical(
+                RedisTestServer.cacheRedisTemplate().opsForValue().get(PREFIX + 2), Shop.class);
+        assertEquals("new", ((Shop) redisData.getData()).getName());
+        assertTrue(redisData.getExpireTime().isAfter(LocalDateTime.now().plusMinutes(29)));
+        assertNotNull(redisData.getDelta());
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        CacheClient client = newClient();
+        int callers = 16;
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Shop>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                futures.add(executor.submit(() -> client.queryWithMutex(PREFIX, 1L, Shop.class, id -> {
+                    awaitQuietly(release);
+                    return load(id);
+                }, 30L, TimeUnit.MINUTES)));
+            }
+            // 除了执行加载的线程，其他调用方都在等待同一个结果
+            await(() -> events(client, "coalesced") == callers - 1);
+            release.countDown();
+            for (Future<Shop> future : futures) {
+                assertEquals("v1", future.get(5, TimeUnit.SECONDS).getName());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, dbQueries.get());
+        assertEquals(callers, events(client, "miss"));
+    }
+
+    @Test
+    void waitersSeeTheLeaderFailureAndNextCallRetries() throws Exception {
+        CacheClient client = newClient();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Shop> leader = executor.submit(() -> client.queryWithMutex(PREFIX, 1L, Shop.class, id -> {
+                awaitQuietly(release);
+                throw new IllegalStateException("db down");
+            }, 30L, TimeUnit.MINUTES));
+            await(() -> events(client, "miss") == 1);
+            Future<Shop> waiter = executor.submit(() -> query(client, 1L));
+            await(() -> events(client, "coalesced") == 1);
+            release.countDown();
+            for (Future<Shop> future : Arrays.asList(leader, waiter)) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+                assertEquals("db down", e.getCause().getMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // 失败的结果不会留在进程内，下一次请求重新加载
+        assertEquals("v1", query(client, 1L).getName());
+        assertEquals(1, dbQueries.get());
+    }
+
+    @Test
+    void leaderWaitsForLockHeldByAnotherNode() throws InterruptedException {
+        CacheClient client = newClient();
+        CacheClient otherNode = newClient();
+        stringRedisTemplate.opsForValue().set("lock:test:1", "1");
+        Thread rebuild = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            otherNode.set(PREFIX + 1, new Shop().setId(1L).setName("other"), 30L, TimeUnit.MINUTES);
+            stringRedisTemplate.delete("lock:test:1");
+        });
+        rebuild.start();
+        // 没有拿到锁时重新读取redis，拿到其他节点写入的值，不查数据库
+        Shop shop = client.queryWithMutex(PREFIX, 1L, Shop.class, this::load, 30L, TimeUnit.MINUTES);
+        rebuild.join();
+        assertEquals("other", shop.getName());
+        assertEquals(0, dbQueries.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long events(CacheClient client, String result) {
+        CacheMetrics metrics = (CacheMetrics) ReflectionTestUtils.getField(client, "cacheMetrics");
+        MetricsWriter writer = new MetricsWriter();
+        metrics.writeMetrics(writer);
+        String prefix = "hmdp_cache_requests_total{prefix=\"" + PREFIX + "\",result=\"" + result + "\"} ";
+        for (String line : writer.toString().split("\n")) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(prefix.length()));
+            }
+        }
+        return 0L;
+    }
+
+    private static boolean shouldRefreshEarly(CacheClient client, long remainingMillis, Long delta) {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.now().plus(remainingMillis, ChronoUnit.MILLIS));
+        redisData.setDelta(delta);
+        Method method = ReflectionUtils.findMethod(CacheClient.class, "shouldRefreshEarly", RedisData.class);
+        ReflectionUtils.makeAccessible(method);
+        return (boolean) ReflectionUtils.invokeMethod(method, client, redisData);
+    }
+
+    private Shop queryEarly(CacheClient client, Long id) {
+        return client.queryWithEarlyRefresh(PREFIX, id, Shop.class, this::load, 30L, TimeUnit.MINUTES);
+    }
+
+    private Map<Long, Shop> queryBatch(CacheClient client, Collection<Long> ids, List<Collection<Long>> loads) {
+        return client.queryBatchWithLogicExpire(PREFIX, ids, Shop.class, misses -> {
+            loads.add(new ArrayList<>(misses));
+            Map<Long, Shop> loaded = new HashMap<>();
+            // 数据库中只有1、2、3
+            misses.stream().filter(id -> id <= 3).forEach(id -> loaded.put(id, new Shop().setId(id).setName(dbName)));
+            return loaded;
+        }, 30L, TimeUnit.MINUTES);
+    }
+
+    private Shop query(CacheClient client, Long id) {
+        return client.queryWithPassThrough(PREFIX, id, Shop.class, this::load, 30L, TimeUnit.MINUTES);
+    }
+
+    private Shop load(Long id) {
+        dbQueries.incrementAndGet();
+        return new Shop().setId(id).setName(dbName);
+    }
+
+    private Shop loadMissing(Long id) {
+        dbQueries.incrementAndGet();
+        return null;
+    }
+
+    private static long localSize(CacheClient client) {
+        return (long) client.localCacheStats().get(PREFIX).get("size");
+    }
+
+    CacheClient newClient() {
+        RedisMessageListenerContainer container = RedisTestServer.listenerContainer();
+        containers.add(container);
+        return newClient(stringRedisTemplate, container);
+    }
+
+    /**
+     * 和应用中相同配置的CacheClient，重建调度器不重试
+     */
+    static CacheClient newClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        CacheRebuildScheduler scheduler = new CacheRebuildScheduler();
+        ReflectionTestUtils.setField(scheduler, "threads", 2);
+        ReflectionTestUtils.setField(scheduler, "queueSize", 100);
+        ReflectionTestUtils.setField(scheduler, "maxRetries", 0);
+        ReflectionTestUtils.invokeMethod(scheduler, "init");
+
+        CacheClient client = new CacheClient(stringRedisTemplate);
+        ReflectionTestUtils.setField(client, "cacheRedisTemplate", RedisTestServer.cacheRedisTemplate());
+        ReflectionTestUtils.setField(client, "cacheSerializer", new CacheSerializer());
+        ReflectionTestUtils.setField(client, "cacheMetrics", new CacheMetrics());
+        ReflectionTestUtils.setField(client, "cacheRebuildScheduler", scheduler);
+        ReflectionTestUtils.setField(client, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.invokeMethod(client, "init");
+        return client;
+    }
+
+    /**
+     * 等待失效频道的订阅生效，之前发布的消息收不到；发布一个不存在的key，返回值是收到的订阅者数
+     */
+    private void awaitSubscribers(long expected) throws InterruptedException {
+        byte[] channel = RedisConstants.CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        byte[] probe = "probe".getBytes(StandardCharsets.UTF_8);
+        await(() -> {
+            Long receivers = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.publish(channel, probe));
+            return receivers != null && receivers >= expected;
+        });
+    }
+
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met in 5s");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheCodecsTest {
+
+    private static final LocalDateTime TIME = LocalDateTime.of(2022, 1, 2, 3, 4, 5, 123456789);
+
+    @Test
+    void shopRoundTrip() throws IOException {
+        Shop shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages(repeat("https://qcloud.dpfile.com/pc/a.jpg,", 20))
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(TIME)
+                .setUpdateTime(TIME.plusDays(1));
+        assertEquals(shop, roundTrip(new CacheCodecs.ShopCodec(), shop));
+    }
+
+    @Test
+    void shopWithNullFields() throws IOException {
+        Shop shop = new Shop().setId(2L);
+        assertEquals(shop, roundTrip(new CacheCodecs.ShopCodec(), shop));
+    }
+
+    @Test
+    void shopTypeRoundTrip() throws IOException {
+        ShopType shopType = new ShopType()
+                .setId(1L)
+                .setName("美食")
+                .setIcon("/types/ms.png")
+                .setSort(1)
+                .setCreateTime(TIME)
+                .setUpdateTime(TIME);
+        assertEquals(shopType, roundTrip(new CacheCodecs.ShopTypeCodec(), shopType));
+    }
+
+    @Test
+    void blogRoundTrip() throws IOException {
+        Blog blog = new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setIcon("/imgs/icons/user2.jpg")
+                .setName("可可今天不吃肉")
+                .setTitle("无尽浪漫的夜晚")
+                .setImages("/imgs/blogs/7/14/4771fefb.jpg")
+                .setContent(repeat("生活就是一半烟火，一半诗意。", 50))
+                .setLiked(5)
+                .setComments(104)
+                .setCreateTime(TIME)
+                .setUpdateTime(TIME);
+        assertEquals(blog, roundTrip(new CacheCodecs.BlogCodec(), blog));
+    }
+
+    @Test
+    void userRoundTrip() throws IOException {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_slxaxy2au9f3tanffaxr");
+        user.setIcon("");
+        assertEquals(user, roundTrip(new CacheCodecs.UserDTOCodec(), user));
+    }
+
+    @Test
+    void largeStringsAreCompressed() throws IOException {
+        String value = repeat("abcdefgh", 100);
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        CacheCodecs.writeString(new DataOutputStream(plain), value, false);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        CacheCodecs.writeString(new DataOutputStream(compressed), value, true);
+        assertTrue(compressed.size() < plain.size() / 4, "compressed size " + compressed.size());
+        assertEquals(value, CacheCodecs.readString(in(compressed)));
+        assertEquals(value, CacheCodecs.readString(in(plain)));
+    }
+
+    @Test
+    void nullAndEmptyValues() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CacheCodecs.writeString(out, null);
+        CacheCodecs.writeString(out, "");
+        CacheCodecs.writeLong(out, null);
+        CacheCodecs.writeInt(out, null);
+        CacheCodecs.writeDouble(out, null);
+        CacheCodecs.writeTime(out, null);
+        DataInputStream in = in(bytes);
+        assertNull(CacheCodecs.readString(in));
+        assertEquals("", CacheCodecs.readString(in));
+        assertNull(CacheCodecs.readLong(in));
+        assertNull(CacheCodecs.readInt(in));
+        assertNull(CacheCodecs.readDouble(in));
+        assertNull(CacheCodecs.readTime(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void varIntBoundaries() throws IOException {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : values) {
+            CacheCodecs.writeVarInt(out, value);
+        }
+        DataInputStream in = in(bytes);
+        for (int value : values) {
+            assertEquals(value, CacheCodecs.readVarInt(in));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    private static <T> T roundTrip(CacheCodec<T> codec, T value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.write(value, out);
+        DataInputStream in = in(bytes);
+        T read = codec.read(in);
+        // 读取的长度和写入的一致
+        assertEquals(-1, in.read());
+        return read;
+    }
+
+    private static DataInputStream in(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder sb = new StringBuilder(value.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
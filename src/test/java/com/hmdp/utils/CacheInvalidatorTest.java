@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.CacheInvalidation;
+import com.hmdp.mapper.CacheInvalidationMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheInvalidatorTest {
+
+    private static final String KEY = "cache:shop:1";
+
+    private final CacheInvalidationMapper mapper = mock(CacheInvalidationMapper.class);
+    private final CacheClient cacheClient = mock(CacheClient.class);
+    private StringRedisTemplate stringRedisTemplate;
+    private CacheInvalidator invalidator;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        invalidator = new CacheInvalidator();
+        ReflectionTestUtils.setField(invalidator, "cacheInvalidationMapper", mapper);
+        ReflectionTestUtils.setField(invalidator, "cacheClient", cacheClient);
+        ReflectionTestUtils.setField(invalidator, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(invalidator, "delayMillis", 50L);
+        ReflectionTestUtils.setField(invalidator, "batchSize", 2);
+        doAnswer(invocation -> {
+            invocation.<CacheInvalidation>getArgument(0).setId(7L);
+            return 1;
+        }).when(mapper).insert(any(CacheInvalidation.class));
+    }
+
+    @AfterEach
+    void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void deletesTwiceThenRemovesTheOutboxRecord() {
+        invalidator.invalidate(KEY);
+
+        ArgumentCaptor<CacheInvalidation> captor = ArgumentCaptor.forClass(CacheInvalidation.class);
+        verify(mapper).insert(captor.capture());
+        assertEquals(KEY, captor.getValue().getCacheKey());
+        // 定时任务在双删完成之后才会处理这条记录
+        assertTrue(captor.getValue().getNextRetryTime().isAfter(LocalDateTime.now().plusSeconds(5)));
+        verify(cacheClient, timeout(2000).times(2)).evict(KEY);
+        verify(mapper, timeout(2000)).deleteById(7L);
+    }
+
+    @Test
+    void waitsForTheTransactionToCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        invalidator.invalidate(KEY);
+        // 记录和业务数据一起提交，提交前不删除缓存
+        verify(mapper).insert(any(CacheInvalidation.class));
+        verify(cacheClient, after(100).never()).evict(KEY);
+
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        synchronizations.forEach(TransactionSynchronization::afterCommit);
+        verify(cacheClient, timeout(2000).times(2)).evict(KEY);
+    }
+
+    @Test
+    void keepsTheRecordWhenTheSecondDeleteFails() {
+        doNothing().doThrow(new IllegalStateException("redis down")).when(cacheClient).evict(KEY);
+        invalidator.invalidate(KEY);
+        verify(cacheClient, timeout(2000).times(2)).evict(KEY);
+        verify(mapper, after(200).never()).deleteById(anyLong());
+    }
+
+    @Test
+    void retryDeletesDueRecordsInBatches() {
+        when(mapper.selectList(any())).thenReturn(
+                Arrays.asList(record(1L, "cache:shop:1", 0), record(2L, "cache:shop:2", 0)),
+                Arrays.asList(record(3L, "cache:shop:3", 0)));
+
+        invalidator.retryPending();
+
+        verify(cacheClient).evictAll(Arrays.asList("cache:shop:1", "cache:shop:2"));
+        verify(cacheClient).evictAll(Arrays.asList("cache:shop:3"));
+        verify(mapper).deleteBatchIds(Arrays.asList(1L, 2L));
+        verify(mapper).deleteBatchIds(Arrays.asList(3L));
+        assertFalse(stringRedisTemplate.hasKey(RedisConstants.LOCK_CACHE_INVALIDATION_KEY));
+    }
+
+    @Test
+    void failedRetryBacksOffExponentially() {
+        when(mapper.selectList(any())).thenReturn(Arrays.asList(record(1L, "cache:shop:1", 3)));
+        doThrow(new IllegalStateException("redis down")).when(cacheClient).evictAll(any());
+
+        invalidator.retryPending();
+
+        ArgumentCaptor<CacheInvalidation> captor = ArgumentCaptor.forClass(CacheInvalidation.class);
+        verify(mapper).updateById(captor.capture());
+        assertEquals(4, captor.getValue().getRetryCount());
+        // 第4次重试等待 2^4 秒
+        LocalDateTime next = captor.getValue().getNextRetryTime();
+        assertTrue(next.isAfter(LocalDateTime.now().plusSeconds(14)) && next.isBefore(LocalDateTime.now().plusSeconds(17)),
+                next.toString());
+        verify(mapper, never()).deleteBatchIds(any());
+        // 失败后本轮不再继续取下一批
+        verify(mapper, times(1)).selectList(any());
+    }
+
+    @Test
+    void skipsRetryWhileAnotherNodeHoldsTheLock() {
+        stringRedisTemplate.opsForValue().set(RedisConstants.LOCK_CACHE_INVALIDATION_KEY, "1", 1, TimeUnit.MINUTES);
+        invalidator.retryPending();
+        verify(mapper, never()).selectList(any());
+    }
+
+    private static CacheInvalidation record(Long id, String key, int retryCount) {
+        return new CacheInvalidation().setId(id).setCacheKey(key).setRetryCount(retryCount)
+                .setNextRetryTime(LocalDateTime.now().minusSeconds(1));
+    }
+}
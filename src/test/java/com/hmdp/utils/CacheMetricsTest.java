@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheMetricsTest {
+
+    @Test
+    void countsEventsPerPrefix() {
+        CacheMetrics metrics = new CacheMetrics();
+        metrics.record("cache:shop:", CacheMetrics.Event.LOCAL_HIT);
+        metrics.record("cache:shop:", CacheMetrics.Event.LOCAL_HIT);
+        metrics.record("cache:shop:", CacheMetrics.Event.MISS);
+        metrics.of("cache:user:").record(CacheMetrics.Event.REDIS_NULL_HIT);
+        metrics.of("cache:user:").recordRebuild(CacheMetrics.Rebuild.SKIPPED);
+
+        List<String> lines = lines(metrics);
+        assertTrue(lines.contains("hmdp_cache_requests_total{prefix=\"cache:shop:\",result=\"local_hit\"} 2"));
+        assertTrue(lines.contains("hmdp_cache_requests_total{prefix=\"cache:shop:\",result=\"miss\"} 1"));
+        assertTrue(lines.contains("hmdp_cache_requests_total{prefix=\"cache:user:\",result=\"redis_null_hit\"} 1"));
+        assertTrue(lines.contains("hmdp_cache_requests_total{prefix=\"cache:user:\",result=\"local_hit\"} 0"));
+        assertTrue(lines.contains("hmdp_cache_rebuild_total{prefix=\"cache:user:\",outcome=\"skipped\"} 1"));
+    }
+
+    @Test
+    void writesEachMetricAsOneContiguousBlock() {
+        CacheMetrics metrics = new CacheMetrics();
+        metrics.of("cache:shop:").recordLoad(System.nanoTime());
+        metrics.of("cache:user:").recordRebuild(CacheMetrics.Rebuild.SUCCESS, System.nanoTime());
+
+        // 同一个指标只声明一次，样本紧跟在声明之后
+        List<String> lines = lines(metrics);
+        List<String> names = new ArrayList<>();
+        String current = null;
+        for (String line : lines) {
+            if (line.startsWith("# TYPE ")) {
+                current = line.split(" ")[2];
+                assertFalse(names.contains(current), "declared twice: " + current);
+                names.add(current);
+                continue;
+            }
+            if (!line.startsWith("#")) {
+                assertTrue(line.startsWith(current), line + " outside " + current);
+            }
+        }
+        assertEquals(Arrays.asList("hmdp_cache_requests_total", "hmdp_cache_rebuild_total",
+                "hmdp_cache_load_seconds", "hmdp_cache_rebuild_seconds"), names);
+        assertTrue(lines.contains("# TYPE hmdp_cache_load_seconds histogram"));
+        assertTrue(lines.contains("hmdp_cache_load_seconds_bucket{prefix=\"cache:shop:\",le=\"+Inf\"} 1"));
+        assertTrue(lines.contains("hmdp_cache_load_seconds_count{prefix=\"cache:shop:\"} 1"));
+        assertTrue(lines.contains("hmdp_cache_rebuild_seconds_count{prefix=\"cache:shop:\"} 0"));
+        assertTrue(lines.contains("hmdp_cache_rebuild_seconds_count{prefix=\"cache:user:\"} 1"));
+    }
+
+    @Test
+    void escapesLabelValues() {
+        MetricsWriter writer = new MetricsWriter();
+        writer.gauge("test_gauge", "help", 1.5D, "prefix", "a\"b\\c\nd");
+        assertTrue(writer.toString().contains("test_gauge{prefix=\"a\\\"b\\\\c\\nd\"} 1.5\n"), writer.toString());
+    }
+
+    private static List<String> lines(CacheMetrics metrics) {
+        MetricsWriter writer = new MetricsWriter();
+        metrics.writeMetrics(writer);
+        return Arrays.asList(writer.toString().split("\n"));
+    }
+}
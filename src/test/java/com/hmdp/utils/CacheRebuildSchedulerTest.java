@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheRebuildSchedulerTest {
+
+    private CacheRebuildScheduler scheduler;
+
+    @AfterEach
+    void stop() {
+        ReflectionTestUtils.invokeMethod(scheduler, "destroy");
+    }
+
+    @Test
+    void deduplicatesKeysUntilTheTaskFinishes() throws InterruptedException {
+        scheduler = newScheduler(2, 10, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(scheduler.submit("a", () -> {
+            awaitQuietly(release);
+            done.countDown();
+        }));
+        assertFalse(scheduler.submit("a", () -> {
+        }));
+        // 不同的key不受影响
+        CountDownLatch other = new CountDownLatch(1);
+        assertTrue(scheduler.submit("b", other::countDown));
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        CacheClientTest.await(() -> scheduler.submit("a", () -> {
+        }));
+    }
+
+    @Test
+    void rejectsWhenTheQueueIsFull() throws InterruptedException {
+        scheduler = newScheduler(1, 1, 0);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(scheduler.submit("running", () -> {
+            running.countDown();
+            awaitQuietly(release);
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.submit("queued", () -> {
+        }));
+        assertEquals(1, scheduler.getQueueSize());
+        assertFalse(scheduler.submit("rejected", () -> {
+        }));
+        release.countDown();
+        // 被拒绝的key没有留在pending中，之后可以再提交
+        CacheClientTest.await(() -> scheduler.submit("rejected", () -> {
+        }));
+    }
+
+    @Test
+    void retriesFailuresWithBackoff() throws InterruptedException {
+        scheduler = newScheduler(1, 10, 3);
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(scheduler.submit("a", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("db down");
+            }
+            done.countDown();
+        }));
+        // 等待重试期间同一个key不会重复提交
+        assertFalse(scheduler.submit("a", () -> {
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void releasesTheKeyAfterTheLastRetry() throws InterruptedException {
+        scheduler = newScheduler(1, 10, 2);
+        AtomicInteger attempts = new AtomicInteger();
+        assertTrue(scheduler.submit("a", () -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("db down");
+        }));
+        CacheClientTest.await(() -> attempts.get() == 3);
+        CacheClientTest.await(() -> scheduler.submit("a", () -> {
+        }));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void releasesTheKeyWhenTheTaskThrowsAnError() throws InterruptedException {
+        scheduler = newScheduler(1, 10, 3);
+        AtomicInteger attempts = new AtomicInteger();
+        assertTrue(scheduler.submit("a", () -> {
+            attempts.incrementAndGet();
+            throw new AssertionError("boom");
+        }));
+        CacheClientTest.await(() -> scheduler.submit("a", () -> {
+        }));
+        assertEquals(1, attempts.get());
+    }
+
+    private static CacheRebuildScheduler newScheduler(int threads, int queueSize, int maxRetries) {
+        CacheRebuildScheduler scheduler = new CacheRebuildScheduler();
+        ReflectionTestUtils.setField(scheduler, "threads", threads);
+        ReflectionTestUtils.setField(scheduler, "queueSize", queueSize);
+        ReflectionTestUtils.setField(scheduler, "maxRetries", maxRetries);
+        ReflectionTestUtils.setField(scheduler, "retryBackoffMillis", 10L);
+        ReflectionTestUtils.invokeMethod(scheduler, "init");
+        return scheduler;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.ShopTypeMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheWarmerTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+
+    private final ShopMapper shopMapper = mock(ShopMapper.class);
+    private final ShopTypeMapper shopTypeMapper = mock(ShopTypeMapper.class);
+    private final SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class);
+
+    private CacheWarmer warmer;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        container = RedisTestServer.listenerContainer();
+
+        SeckillStock seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", stringRedisTemplate);
+        SeckillMeta seckillMeta = new SeckillMeta();
+        ReflectionTestUtils.setField(seckillMeta, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillMeta, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(seckillMeta, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(seckillMeta, "localSize", 100);
+        ReflectionTestUtils.setField(seckillMeta, "localTtlMillis", 60000L);
+        ReflectionTestUtils.invokeMethod(seckillMeta, "start");
+
+        warmer = new CacheWarmer();
+        ReflectionTestUtils.setField(warmer, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(warmer, "cacheClient", CacheClientTest.newClient(stringRedisTemplate, container));
+        ReflectionTestUtils.setField(warmer, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(warmer, "shopTypeMapper", shopTypeMapper);
+        ReflectionTestUtils.setField(warmer, "seckillVoucherMapper", seckillVoucherMapper);
+        ReflectionTestUtils.setField(warmer, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(warmer, "seckillMeta", seckillMeta);
+        ReflectionTestUtils.setField(warmer, "batchSize", 2);
+        ReflectionTestUtils.setField(warmer, "threads", 2);
+        ReflectionTestUtils.setField(warmer, "queueSize", 1);
+        ReflectionTestUtils.setField(warmer, "shopStrategy", CacheStrategy.LOGIC_EXPIRE);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        container.destroy();
+    }
+
+    @Test
+    void warmsEveryBatchAndKeepsLiveStock() throws InterruptedException {
+        // 5个店铺按每批2条分3次扫描
+        when(shopMapper.selectList(any())).thenReturn(
+                Arrays.asList(shop(1L), shop(2L)), Arrays.asList(shop(3L), shop(4L)), Collections.singletonList(shop(5L)));
+        when(shopTypeMapper.selectList(any())).thenReturn(
+                Arrays.asList(new ShopType().setId(1L).setName("美食"), new ShopType().setId(2L).setName("KTV")));
+        when(seckillVoucherMapper.selectList(any())).thenReturn(
+                Arrays.asList(voucher(10L, 100), voucher(11L, 50)), Collections.emptyList());
+        // 10已经在秒杀，库存是实时值；11分成2段
+        stringRedisTemplate.opsForValue().set("seckill:stock:10", "7");
+        stringRedisTemplate.opsForValue().set("seckill:segments:11", "2");
+
+        assertTrue(warmer.start());
+        CacheClientTest.await(() -> !warmer.isRunning());
+
+        verify(shopMapper, times(3)).selectList(any());
+        CacheSerializer serializer = new CacheSerializer();
+        for (long id = 1; id <= 5; id++) {
+            byte[] bytes = RedisTestServer.cacheRedisTemplate().opsForValue().get("cache:shop:" + id);
+            RedisData redisData = serializer.deserializeLogical(bytes, Shop.class);
+            assertEquals("shop" + id, ((Shop) redisData.getData()).getName());
+        }
+        List<ShopType> types = serializer.deserializeList(
+                RedisTestServer.cacheRedisTemplate().opsForValue().get("cache:shop_type"), ShopType.class);
+        assertEquals(2, types.size());
+
+        assertEquals("7", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+        assertEquals("25", stringRedisTemplate.opsForValue().get("seckill:stock:{11:0}"));
+        assertEquals("25", stringRedisTemplate.opsForValue().get("seckill:stock:{11:1}"));
+        assertEquals(2L, stringRedisTemplate.opsForHash().size("seckill:meta:10"));
+        // 分段的券每段一份秒杀时间
+        assertEquals(2L, stringRedisTemplate.opsForHash().size("seckill:meta:{11:1}"));
+        assertFalse(stringRedisTemplate.hasKey(RedisConstants.LOCK_WARMUP_KEY));
+
+        Map<String, Object> progress = warmer.progress();
+        assertEquals(5L, progress(progress, CacheWarmer.SHOP).get("scanned"));
+        assertEquals(5L, progress(progress, CacheWarmer.SHOP).get("written"));
+        assertEquals(0L, progress(progress, CacheWarmer.SHOP).get("failedBatches"));
+        assertEquals(2L, progress(progress, CacheWarmer.SHOP_TYPE).get("written"));
+        assertEquals(2L, progress(progress, CacheWarmer.SECKILL_STOCK).get("scanned"));
+    }
+
+    @Test
+    void onlyOneNodeWarmsAtATime() {
+        stringRedisTemplate.opsForValue().set(RedisConstants.LOCK_WARMUP_KEY, "1", 1, TimeUnit.MINUTES);
+        assertFalse(warmer.start());
+        assertFalse(warmer.isRunning());
+        verify(shopMapper, times(0)).selectList(any());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> progress(Map<String, Object> progress, String name) {
+        return (Map<String, Object>) progress.get(name);
+    }
+
+    private static Shop shop(Long id) {
+        return new Shop().setId(id).setName("shop" + id);
+    }
+
+    private static SeckillVoucher voucher(Long id, int stock) {
+        return new SeckillVoucher().setVoucherId(id).setStock(stock)
+                .setBeginTime(LocalDateTime.now().minusHours(1)).setEndTime(LocalDateTime.now().plusHours(1));
+    }
+}
@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void recordsIntoTheFirstBucketWhoseBoundIsNotExceeded() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 上限是闭区间：正好1ms算在le=0.001
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1500));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        histogram.record(TimeUnit.SECONDS.toNanos(20));
+
+        assertEquals(0.001D, histogram.bucketBoundSeconds(0));
+        assertEquals(1L, histogram.cumulativeCount(0));
+        assertEquals(2L, histogram.cumulativeCount(1));
+        // le=0.005
+        assertEquals(2L, histogram.cumulativeCount(2));
+        // le=0.01
+        assertEquals(3L, histogram.cumulativeCount(3));
+        // 超过最大上限的只计入+Inf
+        assertEquals(3L, histogram.cumulativeCount(histogram.bucketCount() - 1));
+        assertEquals(4L, histogram.cumulativeCount(histogram.bucketCount()));
+        assertEquals(4L, histogram.getCount());
+        assertEquals(20.0125D, histogram.getSumSeconds(), 1e-9);
+    }
+
+    @Test
+    void bucketBoundsAreIncreasing() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i < histogram.bucketCount(); i++) {
+            assertTrue(histogram.bucketBoundSeconds(i) > histogram.bucketBoundSeconds(i - 1));
+        }
+        assertEquals(10D, histogram.bucketBoundSeconds(histogram.bucketCount() - 1));
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalCacheTest {
+
+    @Test
+    void sizeStaysWithinMaximum() {
+        LocalCache cache = new LocalCache("test", 32, 60000L);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, i);
+        }
+        assertTrue(cache.size() <= 32, "size " + cache.size());
+        assertEquals(1000 - cache.size(), cache.getEvictionCount());
+    }
+
+    @Test
+    void recentlyReadEntrySurvivesEviction() {
+        // 每段容量为2，同一段中淘汰最久未访问的，每次写入前都读过的key一直保留
+        LocalCache cache = new LocalCache("test", 32, 60000L);
+        cache.put("hot", 0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, cache.get("hot"));
+            cache.put("key" + i, i);
+        }
+        assertEquals(0, cache.get("hot"));
+    }
+
+    @Test
+    void expiredEntriesAreRemoved() throws InterruptedException {
+        LocalCache cache = new LocalCache("test", 100, 20L);
+        cache.put("a", 1);
+        assertEquals(1, cache.get("a"));
+        Thread.sleep(40);
+        assertNull(cache.get("a"));
+        assertEquals(0L, cache.size());
+        assertEquals(1L, cache.getExpirationCount());
+    }
+
+    @Test
+    void invalidateCountsOnlyPresentKeys() {
+        LocalCache cache = new LocalCache("test", 100, 60000L);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.invalidate("a");
+        cache.invalidate("missing");
+        assertNull(cache.get("a"));
+        assertEquals(1L, cache.getInvalidationCount());
+        cache.invalidateAll();
+        assertEquals(0L, cache.size());
+        assertEquals(2L, cache.getInvalidationCount());
+    }
+
+    @Test
+    void statsReportHitRatio() {
+        LocalCache cache = new LocalCache("test", 100, 60000L);
+        cache.put("a", 1);
+        cache.get("a");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        Map<String, Object> stats = cache.stats();
+        assertEquals(3L, stats.get("hitCount"));
+        assertEquals(1L, stats.get("missCount"));
+        assertEquals(0.75D, stats.get("hitRatio"));
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OrderJournalManagerTest {
+
+    @TempDir
+    File dir;
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+
+    private final VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class);
+
+    private final List<OrderJournalManager> managers = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        container = RedisTestServer.listenerContainer();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        managers.forEach(manager -> ReflectionTestUtils.invokeMethod(manager, "destroy"));
+        container.destroy();
+    }
+
+    @Test
+    void syncAppendWaitsForTheGroupFsync() {
+        OrderJournalManager manager = open();
+        for (long id = 1; id <= 3; id++) {
+            long sequence = manager.reserve();
+            assertTrue(sequence > 0);
+            manager.append(sequence, id, 100L + id, 10L);
+        }
+        // 等待刷盘后返回，返回时缓冲区中已经没有这些记录
+        String metrics = metrics(manager);
+        assertTrue(metrics.contains("hmdp_order_journal_buffered 0"), metrics);
+        assertTrue(metrics.contains("hmdp_order_journal_sync_timeouts_total 0"), metrics);
+    }
+
+    @Test
+    void recoveredOrdersAreReplayedOnlyWhenAsked() {
+        OrderJournalManager previous = open();
+        for (long id = 1; id <= 3; id++) {
+            previous.append(previous.reserve(), id, 100L + id, 10L);
+        }
+        ReflectionTestUtils.invokeMethod(previous, "destroy");
+        managers.remove(previous);
+
+        // 1已经结束，2已经在数据库中，3两边都找不到
+        stringRedisTemplate.opsForHash().put(RedisConstants.ORDER_STATUS_KEY + 1, "status", "CREATED");
+        VoucherOrder persisted = new VoucherOrder();
+        persisted.setId(2L);
+        when(voucherOrderMapper.selectList(any())).thenReturn(Collections.singletonList(persisted));
+
+        OrderJournalManager manager = open();
+        List<List<Long>> replayed = new ArrayList<>();
+        manager.start(orders -> replayed.add(ids(orders)));
+        // 注册时不重放，上次运行留下的订单重放前也不做定期检查
+        manager.replayStale();
+        assertTrue(replayed.isEmpty());
+
+        manager.replayRecovered();
+        assertEquals(Collections.singletonList(Collections.singletonList(3L)), replayed);
+        assertTrue(metrics(manager).contains("hmdp_order_journal_pending 1"), metrics(manager));
+
+        // 之后未确认的订单由定期检查处理
+        manager.replayStale();
+        assertEquals(Arrays.asList(Collections.singletonList(3L), Collections.singletonList(3L)), replayed);
+    }
+
+    private OrderJournalManager open() {
+        OrderJournalManager manager = new OrderJournalManager();
+        ReflectionTestUtils.setField(manager, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(manager, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(manager, "voucherOrderMapper", voucherOrderMapper);
+        ReflectionTestUtils.setField(manager, "enabled", true);
+        ReflectionTestUtils.setField(manager, "dir", dir.getPath());
+        ReflectionTestUtils.setField(manager, "segmentSizeMb", 1);
+        ReflectionTestUtils.setField(manager, "flushIntervalMillis", 5L);
+        ReflectionTestUtils.setField(manager, "bufferSize", 1024);
+        ReflectionTestUtils.setField(manager, "sync", true);
+        ReflectionTestUtils.setField(manager, "syncTimeoutMillis", 1000L);
+        ReflectionTestUtils.setField(manager, "replayAfterMillis", 0L);
+        ReflectionTestUtils.invokeMethod(manager, "init");
+        managers.add(manager);
+        return manager;
+    }
+
+    private static List<Long> ids(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>();
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        return ids;
+    }
+
+    private static String metrics(OrderJournalManager manager) {
+        MetricsWriter writer = new MetricsWriter();
+        manager.writeMetrics(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderJournalTest {
+
+    private static final long CREATE_MILLIS = 1700000000000L;
+
+    @TempDir
+    File dir;
+
+    private final List<OrderJournal> journals = new ArrayList<>();
+
+    @AfterEach
+    void closeJournals() {
+        journals.forEach(OrderJournal::close);
+    }
+
+    @Test
+    void recoversOrdersOfRemainingSegmentsAfterRestart() throws Exception {
+        // 每段两条记录，确认只记录在内存中，段删除后其中的订单不再恢复
+        OrderJournal journal = open(2 * OrderJournal.RECORD_SIZE);
+        assertEquals(0, journal.open().size());
+        append(journal, 1L, 2L, 3L);
+        journal.ack(Arrays.asList(1L, 2L));
+        journal.close();
+
+        OrderJournal reopened = open(2 * OrderJournal.RECORD_SIZE);
+        List<VoucherOrder> recovered = reopened.open();
+        assertEquals(Arrays.asList(3L), ids(recovered));
+        VoucherOrder order = recovered.get(0);
+        assertEquals(1003L, (long) order.getUserId());
+        assertEquals(2003L, (long) order.getVoucherId());
+        assertEquals(LocalDateTime.ofInstant(Instant.ofEpochMilli(CREATE_MILLIS), ZoneId.systemDefault()),
+                order.getCreateTime());
+        assertEquals(1, reopened.pendingSize());
+    }
+
+    @Test
+    void truncatesAtFirstCorruptRecord() throws Exception {
+        OrderJournal journal = open(1 << 20);
+        journal.open();
+        append(journal, 1L, 2L, 3L);
+        journal.close();
+
+        // 破坏第二条记录的orderId，校验失败后的记录都丢弃
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            raf.seek(OrderJournal.RECORD_SIZE + 4);
+            raf.writeByte(0x7F);
+        }
+        assertEquals(Arrays.asList(1L), ids(open(1 << 20).open()));
+    }
+
+    @Test
+    void deletesFullSegmentOnceAllOrdersAcked() throws Exception {
+        // 每段两条记录
+        OrderJournal journal = open(2 * OrderJournal.RECORD_SIZE);
+        journal.open();
+        append(journal, 1L, 2L, 3L, 4L, 5L);
+        assertEquals(3, segmentFiles().length);
+
+        journal.ack(1L);
+        assertEquals(3, segmentFiles().length);
+        journal.ack(2L);
+        assertEquals(2, segmentFiles().length);
+        assertEquals(1, journal.getDeletedSegments());
+
+        journal.ack(Arrays.asList(3L, 4L));
+        assertEquals(1, segmentFiles().length);
+        // 正在写入的段不删除
+        journal.ack(5L);
+        assertEquals(1, segmentFiles().length);
+        assertEquals(0, journal.pendingSize());
+    }
+
+    @Test
+    void recoveredSegmentIsDeletedAfterAck() throws Exception {
+        OrderJournal journal = open(1 << 20);
+        journal.open();
+        append(journal, 1L);
+        journal.close();
+
+        OrderJournal reopened = open(1 << 20);
+        reopened.open();
+        assertEquals(2, segmentFiles().length);
+        reopened.ack(1L);
+        assertEquals(1, segmentFiles().length);
+    }
+
+    @Test
+    void ackBeforeWriteIsNotLost() throws Exception {
+        OrderJournal journal = open(1 << 20);
+        journal.open();
+        long sequence = journal.reserve();
+        // 记录还在缓冲区中就收到确认
+        journal.ack(1L);
+        journal.append(sequence, 1L, 1001L, 2001L, CREATE_MILLIS);
+        assertTrue(journal.awaitForced(sequence, 5000));
+        assertEquals(0, journal.pendingSize());
+        assertEquals(1, journal.getAcked());
+    }
+
+    private OrderJournal open(int segmentSize) {
+        OrderJournal journal = new OrderJournal(dir, segmentSize, 10, 1024);
+        journals.add(journal);
+        return journal;
+    }
+
+    private static void append(OrderJournal journal, long... orderIds) throws InterruptedException {
+        long sequence = 0;
+        for (long orderId : orderIds) {
+            sequence = journal.reserve();
+            journal.append(sequence, orderId, 1000L + orderId, 2000L + orderId, CREATE_MILLIS);
+        }
+        assertTrue(journal.awaitForced(sequence, 5000));
+    }
+
+    private File[] segmentFiles() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".journal"));
+        if (files == null) {
+            throw new IOException("无法读取目录: " + dir);
+        }
+        return files;
+    }
+
+    private static List<Long> ids(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>();
+        orders.forEach(order -> ids.add(order.getId()));
+        ids.sort(Long::compare);
+        return ids;
+    }
+}
@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderRingBufferTest {
+
+    @Test
+    void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(8, new OrderRingBuffer(5).getCapacity());
+        assertEquals(8, new OrderRingBuffer(8).getCapacity());
+        assertEquals(2, new OrderRingBuffer(1).getCapacity());
+    }
+
+    @Test
+    void drainsPublishedSlotsInOrder() {
+        OrderRingBuffer ring = new OrderRingBuffer(8);
+        long first = ring.tryClaim();
+        long second = ring.tryClaim();
+        assertEquals(1L, first);
+        assertEquals(2L, second);
+        ring.publish(first, 100L, 1L, 10L, 1000L);
+        ring.publish(second, 200L, 2L, 20L, 2000L);
+
+        List<long[]> read = new ArrayList<>();
+        assertEquals(2, ring.drain((sequence, orderId, userId, voucherId, createMillis) ->
+                read.add(new long[]{sequence, orderId, userId, voucherId, createMillis}), 10));
+        assertEquals(2, read.size());
+        assertEquals(100L, read.get(0)[1]);
+        assertEquals(2L, read.get(1)[0]);
+        assertEquals(200L, read.get(1)[1]);
+        assertEquals(2L, read.get(1)[2]);
+        assertEquals(20L, read.get(1)[3]);
+        assertEquals(2000L, read.get(1)[4]);
+        assertEquals(2L, ring.getConsumed());
+        assertEquals(0L, ring.size());
+    }
+
+    @Test
+    void stopsAtUnpublishedSlot() {
+        OrderRingBuffer ring = new OrderRingBuffer(8);
+        long first = ring.tryClaim();
+        long second = ring.tryClaim();
+        // 后占用的先发布，消费者必须等待前一个槽位
+        ring.publish(second, 200L, 2L, 20L, 2000L);
+        List<Long> read = new ArrayList<>();
+        assertEquals(0, ring.drain((sequence, orderId, userId, voucherId, createMillis) -> read.add(orderId), 10));
+
+        ring.publish(first, 100L, 1L, 10L, 1000L);
+        assertEquals(2, ring.drain((sequence, orderId, userId, voucherId, createMillis) -> read.add(orderId), 10));
+        assertEquals(100L, (long) read.get(0));
+        assertEquals(200L, (long) read.get(1));
+    }
+
+    @Test
+    void rejectsClaimWhenFull() {
+        OrderRingBuffer ring = new OrderRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.tryClaim() > 0);
+        }
+        assertEquals(-1L, ring.tryClaim());
+        assertEquals(4L, ring.size());
+    }
+
+    @Test
+    void drainingFreesSlotsAcrossWrapAround() {
+        OrderRingBuffer ring = new OrderRingBuffer(4);
+        List<Long> read = new ArrayList<>();
+        for (long orderId = 1; orderId <= 10; orderId++) {
+            long sequence = ring.tryClaim();
+            assertEquals(orderId, sequence);
+            ring.publish(sequence, orderId, 0L, 0L, 0L);
+            if (orderId % 4 == 0) {
+                assertEquals(-1L, ring.tryClaim());
+                ring.drain((s, id, userId, voucherId, createMillis) -> read.add(id), 10);
+            }
+        }
+        ring.drain((s, id, userId, voucherId, createMillis) -> read.add(id), 10);
+        assertEquals(10, read.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1L, (long) read.get(i));
+        }
+    }
+
+    @Test
+    void cancelledSlotsAreSkippedButConsumed() {
+        OrderRingBuffer ring = new OrderRingBuffer(4);
+        long first = ring.tryClaim();
+        long second = ring.tryClaim();
+        long third = ring.tryClaim();
+        ring.publish(first, 100L, 1L, 10L, 1000L);
+        ring.cancel(second);
+        ring.publish(third, 300L, 3L, 30L, 3000L);
+
+        List<Long> read = new ArrayList<>();
+        assertEquals(3, ring.drain((sequence, orderId, userId, voucherId, createMillis) -> read.add(orderId), 10));
+        assertEquals(2, read.size());
+        assertEquals(100L, (long) read.get(0));
+        assertEquals(300L, (long) read.get(1));
+        assertEquals(3L, ring.getConsumed());
+    }
+
+    @Test
+    void drainRespectsMax() {
+        OrderRingBuffer ring = new OrderRingBuffer(8);
+        for (long orderId = 1; orderId <= 5; orderId++) {
+            ring.publish(ring.tryClaim(), orderId, 0L, 0L, 0L);
+        }
+        AtomicInteger count = new AtomicInteger();
+        assertEquals(3, ring.drain((s, id, userId, voucherId, createMillis) -> count.incrementAndGet(), 3));
+        assertEquals(2, ring.drain((s, id, userId, voucherId, createMillis) -> count.incrementAndGet(), 3));
+        assertEquals(5, count.get());
+    }
+
+    @Test
+    void concurrentProducersLoseNothing() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 50000;
+        OrderRingBuffer ring = new OrderRingBuffer(1024);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            long base = (long) p * perProducer;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (long i = 1; i <= perProducer; i++) {
+                    long sequence;
+                    while ((sequence = ring.tryClaim()) < 0) {
+                        Thread.yield();
+                    }
+                    ring.publish(sequence, base + i, 0L, 0L, 0L);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        boolean[] seen = new boolean[producers * perProducer + 1];
+        AtomicInteger duplicates = new AtomicInteger();
+        int total = 0;
+        start.countDown();
+        while (total < producers * perProducer) {
+            total += ring.drain((s, orderId, userId, voucherId, createMillis) -> {
+                if (seen[(int) orderId]) {
+                    duplicates.incrementAndGet();
+                }
+                seen[(int) orderId] = true;
+            }, 256);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, duplicates.get());
+        for (int i = 1; i < seen.length; i++) {
+            assertTrue(seen[i], "missing order " + i);
+        }
+        assertEquals(0L, ring.size());
+    }
+}
@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStatus;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderStatusTrackerTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+
+    private OrderStatusTracker tracker;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        container = RedisTestServer.listenerContainer();
+        tracker = new OrderStatusTracker();
+        ReflectionTestUtils.setField(tracker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(tracker, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(tracker, "ttlSeconds", 600L);
+        ReflectionTestUtils.setField(tracker, "maxWaitMillis", 5000L);
+        ReflectionTestUtils.setField(tracker, "localSize", 100);
+        ReflectionTestUtils.invokeMethod(tracker, "init");
+        awaitSubscriber();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        ReflectionTestUtils.invokeMethod(tracker, "destroy");
+        container.destroy();
+    }
+
+    @Test
+    void finishedStatusCompletesImmediately() {
+        OrderStatus current = status(1L, OrderStatus.CREATED);
+        CompletableFuture<Result> result = tracker.await(current, 5000L);
+        assertTrue(result.isDone());
+        assertEquals(OrderStatus.CREATED, ((OrderStatus) result.join().getData()).getStatus());
+
+        // 不等待时直接返回当前结果
+        assertTrue(tracker.await(status(2L, OrderStatus.PENDING), 0L).isDone());
+        assertTrue(metrics().contains("hmdp_order_status_long_polls_total 0"), metrics());
+    }
+
+    @Test
+    void pendingStatusCompletesWhenTheOrderIsCreated() throws Exception {
+        CompletableFuture<Result> result = tracker.await(status(1L, OrderStatus.PENDING), 5000L);
+        assertFalse(result.isDone());
+        assertTrue(metrics().contains("hmdp_order_status_waiters 1"), metrics());
+
+        tracker.markCreated(Collections.singletonList(order(1L)));
+
+        OrderStatus latest = (OrderStatus) result.get(5, TimeUnit.SECONDS).getData();
+        assertEquals(OrderStatus.CREATED, latest.getStatus());
+        assertEquals(Long.valueOf(100L), latest.getUserId());
+        CacheClientTest.await(() -> waiters().isEmpty());
+        assertTrue(metrics().contains("hmdp_order_status_long_poll_timeouts_total 0"), metrics());
+    }
+
+    @Test
+    void pendingStatusIsReturnedAfterTheWait() throws Exception {
+        CompletableFuture<Result> result = tracker.await(status(1L, OrderStatus.PENDING), 50L);
+        OrderStatus latest = (OrderStatus) result.get(5, TimeUnit.SECONDS).getData();
+        assertEquals(OrderStatus.PENDING, latest.getStatus());
+        // 完成后的清理和计数在超时线程上进行
+        CacheClientTest.await(() -> waiters().isEmpty() && metrics().contains("hmdp_order_status_long_poll_timeouts_total 1"));
+    }
+
+    @Test
+    void cancelledWaitIsRemoved() {
+        CompletableFuture<Result> result = tracker.await(status(1L, OrderStatus.PENDING), 5000L);
+        // 客户端断开时调用方取消
+        result.cancel(false);
+        assertTrue(waiters().isEmpty());
+        assertTrue(metrics().contains("hmdp_order_status_long_poll_timeouts_total 0"), metrics());
+    }
+
+    private Map<?, ?> waiters() {
+        return (Map<?, ?>) ReflectionTestUtils.getField(tracker, "waiters");
+    }
+
+    private void awaitSubscriber() throws InterruptedException {
+        byte[] channel = RedisConstants.ORDER_STATUS_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        byte[] probe = "probe".getBytes(StandardCharsets.UTF_8);
+        CacheClientTest.await(() -> {
+            Long receivers = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.publish(channel, probe));
+            return receivers != null && receivers >= 1L;
+        });
+    }
+
+    private String metrics() {
+        MetricsWriter writer = new MetricsWriter();
+        tracker.writeMetrics(writer);
+        return writer.toString();
+    }
+
+    private static OrderStatus status(Long orderId, String status) {
+        OrderStatus orderStatus = new OrderStatus();
+        orderStatus.setOrderId(orderId);
+        orderStatus.setUserId(100L);
+        orderStatus.setVoucherId(10L);
+        orderStatus.setStatus(status);
+        return orderStatus;
+    }
+
+    private static VoucherOrder order(Long orderId) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(100L);
+        order.setVoucherId(10L);
+        return order;
+    }
+}
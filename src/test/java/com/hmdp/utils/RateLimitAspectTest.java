@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RateLimitAspectTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RateLimitAspect aspect;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        aspect = new RateLimitAspect();
+        ReflectionTestUtils.setField(aspect, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(aspect, "trustedProxies", Collections.emptySet());
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void tokenBucketRefillsOverTime() throws Throwable {
+        // 容量2，每200毫秒补充1个
+        assertTrue(call("bucket").getSuccess());
+        assertTrue(call("bucket").getSuccess());
+        assertFalse(call("bucket").getSuccess());
+        // 等待期间本节点直接拒绝
+        assertFalse(call("bucket").getSuccess());
+        assertTrue(metrics().contains("result=\"rejected_local\"} 1"), metrics());
+
+        Thread.sleep(250);
+        assertTrue(call("bucket").getSuccess());
+    }
+
+    @Test
+    void slidingWindowReopensWhenTheOldestRequestLeaves() throws Throwable {
+        // 200毫秒内最多2次
+        assertTrue(call("window").getSuccess());
+        long first = System.currentTimeMillis();
+        assertTrue(call("window").getSuccess());
+        assertFalse(call("window").getSuccess());
+
+        // 最早的请求移出窗口时刚好可以通过
+        Long until = blockedUntil().get("limit:{window}:user:1");
+        assertNotNull(until);
+        assertTrue(until - first <= 200L, "blocked until +" + (until - first));
+        Thread.sleep(Math.max(0L, until - System.currentTimeMillis()) + 20L);
+        assertTrue(call("window").getSuccess());
+    }
+
+    @Test
+    void rejectionByOneLimitConsumesNoOtherLimit() throws Throwable {
+        assertTrue(call("combined").getSuccess());
+        String tokens = (String) stringRedisTemplate.opsForHash().get("limit:{combined}:user:1", "tokens");
+        assertEquals(Long.valueOf(1L), stringRedisTemplate.opsForZSet().size("limit:{combined}:global"));
+
+        // 全局窗口拒绝，令牌桶不扣减
+        Result result = call("combined");
+        assertFalse(result.getSuccess());
+        assertEquals("全局繁忙", result.getErrorMsg());
+        assertEquals(tokens, stringRedisTemplate.opsForHash().get("limit:{combined}:user:1", "tokens"));
+        assertEquals(Long.valueOf(1L), stringRedisTemplate.opsForZSet().size("limit:{combined}:global"));
+        assertTrue(metrics().contains("limiter=\"combined:global\",result=\"rejected_redis\"} 1"), metrics());
+        assertTrue(metrics().contains("limiter=\"combined:user\",result=\"rejected_redis\"} 0"), metrics());
+    }
+
+    @RateLimit(name = "bucket", permits = 1, period = 200, unit = TimeUnit.MILLISECONDS, burst = 2)
+    public Result bucket() {
+        return Result.ok();
+    }
+
+    @RateLimit(name = "window", algorithm = RateLimit.Algorithm.SLIDING_WINDOW, permits = 2, period = 200,
+            unit = TimeUnit.MILLISECONDS)
+    public Result window() {
+        return Result.ok();
+    }
+
+    @RateLimit(name = "combined", permits = 100)
+    @RateLimit(name = "combined", dimension = RateLimit.Dimension.GLOBAL, algorithm = RateLimit.Algorithm.SLIDING_WINDOW,
+            permits = 1, period = 1, unit = TimeUnit.MINUTES, message = "全局繁忙")
+    public Result combined() {
+        return Result.ok();
+    }
+
+    private Result call(String methodName) throws Throwable {
+        MethodSignature signature = mock(MethodSignature.class);
+        when(signature.getMethod()).thenReturn(getClass().getMethod(methodName));
+        ProceedingJoinPoint joinPoint = mock(ProceedingJoinPoint.class);
+        when(joinPoint.getSignature()).thenReturn(signature);
+        when(joinPoint.proceed()).thenReturn(Result.ok());
+        return (Result) aspect.around(joinPoint);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> blockedUntil() {
+        return (Map<String, Long>) ReflectionTestUtils.getField(aspect, "blockedUntil");
+    }
+
+    private String metrics() {
+        MetricsWriter writer = new MetricsWriter();
+        aspect.writeMetrics(writer);
+        return writer.toString();
+    }
+}
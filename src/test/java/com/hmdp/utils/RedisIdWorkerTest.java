@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisIdWorkerTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RedisIdWorker worker;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        worker = new RedisIdWorker();
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(worker, "leaseSize", 10);
+        ReflectionTestUtils.setField(worker, "prefetchRatio", 0.2D);
+        ReflectionTestUtils.setField(worker, "maxBackwardSeconds", 5L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(worker, "destroy");
+    }
+
+    @Test
+    void idsIncreaseAcrossLeaseBoundaries() {
+        long last = 0L;
+        for (int i = 0; i < 1000; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > last, "id " + id + " after " + last);
+            last = id;
+        }
+        // 每段10个，大部分段是预取的
+        String metrics = metrics();
+        assertTrue(leases(metrics, "prefetched") + leases(metrics, "sync") >= 100L, metrics);
+        assertTrue(leases(metrics, "prefetched") > 0L, metrics);
+    }
+
+    @Test
+    void nodesSharingTheKeyNeverRepeatIds() throws Exception {
+        RedisIdWorker other = new RedisIdWorker();
+        ReflectionTestUtils.setField(other, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(other, "leaseSize", 7);
+        ReflectionTestUtils.setField(other, "prefetchRatio", 0.5D);
+        ReflectionTestUtils.setField(other, "maxBackwardSeconds", 5L);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                RedisIdWorker node = t % 2 == 0 ? worker : other;
+                futures.add(executor.submit(() -> {
+                    List<Long> ids = new ArrayList<>();
+                    for (int i = 0; i < 2000; i++) {
+                        ids.add(node.nextId("order"));
+                    }
+                    return ids;
+                }));
+            }
+            Set<Long> ids = new HashSet<>();
+            for (Future<List<Long>> future : futures) {
+                ids.addAll(future.get());
+            }
+            assertEquals(8000, ids.size());
+        } finally {
+            executor.shutdownNow();
+            ReflectionTestUtils.invokeMethod(other, "destroy");
+        }
+    }
+
+    @Test
+    void clockBackwardKeepsTheLastTimestamp() {
+        long first = worker.nextId("order");
+        // 模拟时钟回拨3秒：上一次的时间戳比当前时间晚3秒
+        AtomicLong lastSecond = lastSecond("order");
+        long last = lastSecond.addAndGet(3L);
+
+        long id = worker.nextId("order");
+        assertTrue(id > first);
+        assertEquals(last - 1672531200L, id >>> 32);
+        assertTrue(metrics().contains("hmdp_id_clock_backward_total 1"), metrics());
+    }
+
+    @Test
+    void clockBackwardBeyondToleranceIsRejected() {
+        worker.nextId("order");
+        lastSecond("order").addAndGet(10L);
+        assertThrows(RuntimeException.class, () -> worker.nextId("order"));
+    }
+
+    private AtomicLong lastSecond(String keyPrefix) {
+        Map<?, ?> sequences = (Map<?, ?>) ReflectionTestUtils.getField(worker, "sequences");
+        return (AtomicLong) ReflectionTestUtils.getField(sequences.get(keyPrefix), "lastSecond");
+    }
+
+    private String metrics() {
+        MetricsWriter writer = new MetricsWriter();
+        worker.writeMetrics(writer);
+        return writer.toString();
+    }
+
+    private static long leases(String metrics, String mode) {
+        String prefix = "hmdp_id_leases_total{mode=\"" + mode + "\"} ";
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(prefix)) {
+                return (long) Double.parseDouble(line.substring(prefix.length()));
+            }
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RedisConfig;
+import org.junit.jupiter.api.Assumptions;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * 测试用的本地redis进程，每个JVM只启动一个，所有测试共用，JVM退出时销毁
+ * 需要5.0以上的redis-server(秒杀链路用到stream)，通过 -Dtest.redis.binary 指定，默认从PATH中查找；
+ * 启动失败时跳过依赖redis的测试
+ */
+public final class RedisTestServer {
+
+    private static final long STARTUP_TIMEOUT_MILLIS = 10000L;
+
+    private static LettuceConnectionFactory connectionFactory;
+
+    // 启动失败的原因，只尝试一次
+    private static String unavailable;
+
+    private RedisTestServer() {
+    }
+
+    /**
+     * 清空数据后返回连接工厂，redis不可用时跳过当前测试
+     */
+    public static LettuceConnectionFactory start() {
+        LettuceConnectionFactory factory = connectionFactory();
+        new StringRedisTemplate(factory).execute((RedisCallback<Object>) connection -> {
+            connection.flushAll();
+            return null;
+        });
+        return factory;
+    }
+
+    /**
+     * 返回连接工厂，不清空数据
+     */
+    public static synchronized LettuceConnectionFactory connectionFactory() {
+        if (connectionFactory == null && unavailable == null) {
+            try {
+                connectionFactory = launch(System.getProperty("test.redis.binary", "redis-server"));
+            } catch (Exception e) {
+                unavailable = e.toString();
+            }
+        }
+        Assumptions.assumeTrue(connectionFactory != null, () -> "redis-server不可用: " + unavailable);
+        return connectionFactory;
+    }
+
+    public static StringRedisTemplate stringRedisTemplate() {
+        return new StringRedisTemplate(start());
+    }
+
+    /**
+     * 和应用中的 cacheRedisTemplate 配置相同
+     */
+    public static RedisTemplate<String, byte[]> cacheRedisTemplate() {
+        RedisTemplate<String, byte[]> template = new RedisConfig().cacheRedisTemplate(connectionFactory());
+        template.afterPropertiesSet();
+        return template;
+    }
+
+    /**
+     * 已启动的发布订阅容器，用完后调用destroy
+     */
+    public static RedisMessageListenerContainer listenerContainer() {
+        RedisMessageListenerContainer container = new RedisConfig().redisMessageListenerContainer(connectionFactory());
+        container.afterPropertiesSet();
+        container.start();
+        return container;
+    }
+
+    private static LettuceConnectionFactory launch(String binary) throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        File log = File.createTempFile("redis-test-", ".log");
+        log.deleteOnExit();
+        Process process = new ProcessBuilder(binary,
+                "--port", String.valueOf(port),
+                "--save", "",
+                "--appendonly", "no")
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        Runtime.getRuntime().addShutdownHook(new Thread(process::destroyForcibly));
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("redis-server启动失败，查看日志: " + log.getAbsolutePath());
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                LettuceConnectionFactory factory = new LettuceConnectionFactory(
+                        new RedisStandaloneConfiguration("127.0.0.1", port));
+                factory.afterPropertiesSet();
+                return factory;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        process.destroyForcibly();
+        throw new IllegalStateException("redis-server启动超时, port=" + port);
+    }
+}
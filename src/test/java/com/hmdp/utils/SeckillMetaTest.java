@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SeckillMetaTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+
+    private final SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class);
+
+    private SeckillMeta meta;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        container = RedisTestServer.listenerContainer();
+        meta = meta();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        container.destroy();
+    }
+
+    @Test
+    void rejectsRequestsOutsideTheWindowLocally() {
+        meta.init(voucher(10L, LocalDateTime.now().plusHours(1)));
+        meta.init(voucher(11L, LocalDateTime.now().minusHours(3)));
+        meta.init(voucher(12L, LocalDateTime.now().minusHours(1)));
+
+        assertEquals("秒杀尚未开始", meta.check(10L));
+        assertEquals("秒杀已经结束", meta.check(11L));
+        assertNull(meta.check(12L));
+        String metrics = metrics(meta);
+        assertTrue(metrics.contains("reason=\"not_started\"} 1"), metrics);
+        assertTrue(metrics.contains("reason=\"ended\"} 1"), metrics);
+        assertTrue(metrics.contains("hmdp_seckill_window_cached 3"), metrics);
+    }
+
+    @Test
+    void requestsWithinTheClockToleranceAreLeftToTheScript() {
+        // 还有0.5秒开始，在1秒的误差内，交给脚本用redis时间判断
+        meta.init(voucher(10L, LocalDateTime.now().plusNanos(500_000_000L)));
+        meta.init(voucher(11L, LocalDateTime.now().plusSeconds(3)));
+        assertNull(meta.check(10L));
+        assertEquals("秒杀尚未开始", meta.check(11L));
+    }
+
+    @Test
+    void missingVoucherIsCachedToo() {
+        assertEquals("优惠券不存在", meta.check(99L));
+        assertEquals("优惠券不存在", meta.check(99L));
+        verify(seckillVoucherMapper, times(1)).selectById(99L);
+        assertTrue(metrics(meta).contains("reason=\"missing\"} 2"), metrics(meta));
+    }
+
+    @Test
+    void windowMissingInRedisIsLoadedFromTheDatabaseIntoEveryCopy() {
+        stringRedisTemplate.opsForValue().set("seckill:segments:10", "2");
+        when(seckillVoucherMapper.selectById(10L)).thenReturn(voucher(10L, LocalDateTime.now().minusHours(1)));
+
+        assertNull(meta.check(10L));
+        for (String key : new String[]{"seckill:meta:10", "seckill:meta:{10:0}", "seckill:meta:{10:1}"}) {
+            assertEquals(2L, stringRedisTemplate.opsForHash().size(key), key);
+        }
+    }
+
+    @Test
+    void newVoucherInvalidatesOtherNodes() throws InterruptedException {
+        SeckillMeta other = meta();
+        awaitSubscriber();
+        // 另一个节点已经缓存了"不存在"
+        assertEquals("优惠券不存在", other.check(10L));
+
+        meta.init(voucher(10L, LocalDateTime.now().minusHours(1)));
+        CacheClientTest.await(() -> other.check(10L) == null);
+    }
+
+    private SeckillMeta meta() {
+        SeckillStock seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", stringRedisTemplate);
+        SeckillMeta seckillMeta = new SeckillMeta();
+        ReflectionTestUtils.setField(seckillMeta, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillMeta, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(seckillMeta, "seckillVoucherMapper", seckillVoucherMapper);
+        ReflectionTestUtils.setField(seckillMeta, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(seckillMeta, "clockToleranceMillis", 1000L);
+        ReflectionTestUtils.setField(seckillMeta, "localSize", 100);
+        ReflectionTestUtils.setField(seckillMeta, "localTtlMillis", 60000L);
+        ReflectionTestUtils.invokeMethod(seckillMeta, "start");
+        return seckillMeta;
+    }
+
+    private void awaitSubscriber() throws InterruptedException {
+        byte[] channel = RedisConstants.SECKILL_META_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        // 失效一个不存在的券作为探测
+        byte[] probe = "0".getBytes(StandardCharsets.UTF_8);
+        CacheClientTest.await(() -> {
+            Long receivers = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.publish(channel, probe));
+            return receivers != null && receivers >= 1L;
+        });
+    }
+
+    private static SeckillVoucher voucher(Long voucherId, LocalDateTime begin) {
+        return new SeckillVoucher().setVoucherId(voucherId).setStock(10)
+                .setBeginTime(begin).setEndTime(begin.plusHours(2));
+    }
+
+    private static String metrics(SeckillMeta seckillMeta) {
+        MetricsWriter writer = new MetricsWriter();
+        seckillMeta.writeMetrics(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SeckillQuotaTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+    private SeckillStock seckillStock;
+
+    private final List<SeckillQuota> quotas = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        container = RedisTestServer.listenerContainer();
+        seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", stringRedisTemplate);
+        seckillStock.init(10L, 100);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        quotas.forEach(quota -> ReflectionTestUtils.invokeMethod(quota, "destroy"));
+        container.destroy();
+    }
+
+    @Test
+    void salesAreFoldedIntoTheLeaseOnlyOnRenew() {
+        SeckillQuota quota = quota();
+        // 每批最少10个，最多取库存的一半
+        assertTrue(quota.acquire(10L));
+        assertEquals("90", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+        assertEquals("10", lease(quota));
+
+        for (long userId = 1; userId <= 3; userId++) {
+            sell(quota, userId);
+        }
+        // 下单不修改租约
+        assertEquals("10", lease(quota));
+        assertEquals("3", stringRedisTemplate.opsForValue().get(quota.soldKey(10L)));
+
+        quota.renewLeases();
+        assertEquals("7", lease(quota));
+        assertEquals("0", stringRedisTemplate.opsForValue().get(quota.soldKey(10L)));
+        assertEquals("90", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+    }
+
+    @Test
+    void releaseReturnsOnlyTheUnsoldQuota() {
+        SeckillQuota quota = quota();
+        assertTrue(quota.acquire(10L));
+        sell(quota, 1L);
+        // 第二个配额已取出，还未写入销量
+        assertTrue(quota.acquire(10L));
+
+        ReflectionTestUtils.invokeMethod(quota, "destroy");
+        quotas.remove(quota);
+        assertEquals("98", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+        // 正在下单的配额留在租约中，销量已扣除
+        assertEquals("1", lease(quota));
+        assertNull(stringRedisTemplate.opsForValue().get(quota.soldKey(10L)));
+
+        // 归还后退回的配额不再进入本地
+        quota.refund(10L);
+        assertTrue(metrics(quota).contains("hmdp_seckill_quota_remaining 0"), metrics(quota));
+        assertTrue(metrics(quota).contains("hmdp_seckill_quota_released_total 8"), metrics(quota));
+    }
+
+    @Test
+    void expiredLeaseIsReclaimedWithoutItsSales() {
+        SeckillQuota crashed = quota();
+        assertTrue(crashed.acquire(10L));
+        for (long userId = 1; userId <= 4; userId++) {
+            sell(crashed, userId);
+        }
+        stringRedisTemplate.opsForZSet().add("seckill:lease:expire:10", crashed.getNodeId(), 0D);
+
+        SeckillQuota other = quota();
+        assertTrue(other.acquire(10L));
+        // 回收了6个未卖出的配额，再租出10个
+        assertEquals("86", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+        assertNull(lease(crashed));
+        assertFalse(stringRedisTemplate.hasKey(crashed.soldKey(10L)));
+
+        // 原节点续期时发现租约已被回收，放弃本地配额
+        crashed.renewLeases();
+        assertTrue(metrics(crashed).contains("hmdp_seckill_quota_fenced_total 1"), metrics(crashed));
+        assertTrue(metrics(crashed).contains("hmdp_seckill_quota_remaining 0"), metrics(crashed));
+    }
+
+    private SeckillQuota quota() {
+        SeckillQuota quota = new SeckillQuota();
+        ReflectionTestUtils.setField(quota, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(quota, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(quota, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(quota, "enabled", true);
+        ReflectionTestUtils.setField(quota, "leaseTtlMillis", 30000L);
+        ReflectionTestUtils.setField(quota, "renewIntervalMillis", 5000L);
+        ReflectionTestUtils.setField(quota, "targetLeaseMillis", 1000L);
+        ReflectionTestUtils.setField(quota, "minLease", 10);
+        ReflectionTestUtils.setField(quota, "maxLease", 1000);
+        ReflectionTestUtils.setField(quota, "prefetchRatio", 0.2D);
+        ReflectionTestUtils.setField(quota, "emptyRetryMillis", 1000L);
+        quotas.add(quota);
+        return quota;
+    }
+
+    /**
+     * 和配额模式下单一样：取出配额后写入本节点的销量
+     */
+    private void sell(SeckillQuota quota, Long userId) {
+        stringRedisTemplate.opsForValue().increment(quota.soldKey(10L));
+        quota.purchased(10L, userId, true);
+    }
+
+    private String lease(SeckillQuota quota) {
+        return (String) stringRedisTemplate.opsForHash().get("seckill:lease:10", quota.getNodeId());
+    }
+
+    private static String metrics(SeckillQuota quota) {
+        MetricsWriter writer = new MetricsWriter();
+        quota.writeMetrics(writer);
+        return writer.toString();
+    }
+}
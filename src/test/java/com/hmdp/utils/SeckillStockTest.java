@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SeckillStockTest {
+
+    private final SeckillStock seckillStock = new SeckillStock();
+
+    @Test
+    void singleSegmentUsesLegacyKey() {
+        Map<String, String> values = seckillStock.split(10L, 100, 1);
+        assertEquals(Collections.singletonMap(RedisConstants.SECKILL_STOCK_KEY + 10, "100"), values);
+    }
+
+    @Test
+    void remainderGoesToFirstSegments() {
+        Map<String, String> values = seckillStock.split(10L, 10, 4);
+        assertEquals(Arrays.asList(
+                RedisConstants.SECKILL_STOCK_KEY + "{10:0}",
+                RedisConstants.SECKILL_STOCK_KEY + "{10:1}",
+                RedisConstants.SECKILL_STOCK_KEY + "{10:2}",
+                RedisConstants.SECKILL_STOCK_KEY + "{10:3}"), new ArrayList<>(values.keySet()));
+        assertEquals(Arrays.asList("3", "3", "2", "2"), new ArrayList<>(values.values()));
+    }
+
+    @Test
+    void sharesAddUpToStock() {
+        for (int stock : new int[]{0, 1, 7, 100, 1001}) {
+            for (int count = 1; count <= 16; count++) {
+                List<Integer> shares = new ArrayList<>();
+                seckillStock.split(1L, stock, count).values().forEach(v -> shares.add(Integer.valueOf(v)));
+                assertEquals(count, shares.size());
+                assertEquals(stock, shares.stream().mapToInt(Integer::intValue).sum(), "stock=" + stock + ", count=" + count);
+                int max = Collections.max(shares);
+                int min = Collections.min(shares);
+                assertTrue(max - min <= 1, "uneven shares " + shares);
+            }
+        }
+    }
+
+    @Test
+    void fewerItemsThanSegments() {
+        Map<String, String> values = seckillStock.split(10L, 2, 4);
+        assertEquals(Arrays.asList("1", "1", "0", "0"), new ArrayList<>(values.values()));
+    }
+
+    @Test
+    void orderKeyMatchesStockKeySegment() {
+        assertEquals(RedisConstants.SECKILL_ORDER_KEY + 10, seckillStock.orderKey(10L, 0, 1));
+        assertEquals(RedisConstants.SECKILL_ORDER_KEY + "{10:2}", seckillStock.orderKey(10L, 2, 4));
+        assertEquals(RedisConstants.SECKILL_STOCK_KEY + "{10:2}", seckillStock.stockKey(10L, 2, 4));
+    }
+}
@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SoldOutRegistryTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+
+    // 同一个订阅连接上的两个节点
+    private SoldOutRegistry nodeA;
+    private SoldOutRegistry nodeB;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        container = RedisTestServer.listenerContainer();
+        nodeA = registry(60000L);
+        nodeB = registry(60000L);
+        awaitSubscriber();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        container.destroy();
+    }
+
+    @Test
+    void soldOutIsBroadcastToOtherNodes() throws InterruptedException {
+        assertFalse(nodeB.isSoldOut(1L));
+        nodeA.markSoldOut(1L);
+        assertTrue(nodeA.isSoldOut(1L));
+        CacheClientTest.await(() -> nodeB.isSoldOut(1L));
+        assertFalse(nodeB.isSoldOut(2L));
+        assertTrue(metrics(nodeA).contains("hmdp_seckill_sold_out_rejected_total 1"), metrics(nodeA));
+    }
+
+    @Test
+    void resetClearsEveryNode() throws InterruptedException {
+        nodeA.markSoldOut(1L);
+        CacheClientTest.await(() -> nodeB.isSoldOut(1L));
+        // 补充库存的节点立即清除，其他节点收到广播后清除
+        nodeB.reset(1L);
+        assertFalse(nodeB.isSoldOut(1L));
+        CacheClientTest.await(() -> !nodeA.isSoldOut(1L));
+    }
+
+    @Test
+    void markExpiresAfterTtl() throws InterruptedException {
+        SoldOutRegistry registry = registry(30L);
+        registry.markSoldOut(1L);
+        assertTrue(registry.isSoldOut(1L));
+        Thread.sleep(60);
+        assertFalse(registry.isSoldOut(1L));
+        assertTrue(metrics(registry).contains("hmdp_seckill_sold_out_vouchers 0"), metrics(registry));
+    }
+
+    @Test
+    void ignoresMalformedMessages() {
+        nodeB.onMessage(message("soldOut:abc"), null);
+        nodeB.onMessage(message("soldOut"), null);
+        nodeB.onMessage(message("unknown:1"), null);
+        assertFalse(nodeB.isSoldOut(1L));
+    }
+
+    private SoldOutRegistry registry(long ttlMillis) {
+        SoldOutRegistry registry = new SoldOutRegistry();
+        ReflectionTestUtils.setField(registry, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(registry, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(registry, "ttlMillis", ttlMillis);
+        ReflectionTestUtils.invokeMethod(registry, "init");
+        return registry;
+    }
+
+    private void awaitSubscriber() throws InterruptedException {
+        byte[] channel = RedisConstants.SECKILL_SOLD_OUT_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        byte[] probe = "probe".getBytes(StandardCharsets.UTF_8);
+        CacheClientTest.await(() -> {
+            Long receivers = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.publish(channel, probe));
+            return receivers != null && receivers >= 1L;
+        });
+    }
+
+    private static Message message(String body) {
+        return new DefaultMessage(RedisConstants.SECKILL_SOLD_OUT_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String metrics(SoldOutRegistry registry) {
+        MetricsWriter writer = new MetricsWriter();
+        registry.writeMetrics(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,223 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StockReconcilerTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RedisMessageListenerContainer container;
+
+    private final SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class);
+    private final VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class);
+    private final SoldOutRegistry soldOutRegistry = mock(SoldOutRegistry.class);
+
+    private SeckillStock seckillStock;
+    private StockReconciler reconciler;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = RedisTestServer.stringRedisTemplate();
+        container = RedisTestServer.listenerContainer();
+
+        seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", stringRedisTemplate);
+        SeckillMeta seckillMeta = new SeckillMeta();
+        ReflectionTestUtils.setField(seckillMeta, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillMeta, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(seckillMeta, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(seckillMeta, "localSize", 100);
+        ReflectionTestUtils.setField(seckillMeta, "localTtlMillis", 60000L);
+        ReflectionTestUtils.invokeMethod(seckillMeta, "start");
+
+        reconciler = new StockReconciler();
+        ReflectionTestUtils.setField(reconciler, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(reconciler, "seckillVoucherMapper", seckillVoucherMapper);
+        ReflectionTestUtils.setField(reconciler, "voucherOrderMapper", voucherOrderMapper);
+        ReflectionTestUtils.setField(reconciler, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(reconciler, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(reconciler, "seckillMeta", seckillMeta);
+        ReflectionTestUtils.setField(reconciler, "seckillQuota", new SeckillQuota());
+        ReflectionTestUtils.setField(reconciler, "authority", StockReconciler.Authority.DB);
+        ReflectionTestUtils.setField(reconciler, "batchSize", 200);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        container.destroy();
+    }
+
+    @Test
+    void redisIsCorrectedOnlyAfterTheDriftIsConfirmed() {
+        // 数据库剩余5、订单3，redis已卖完、已下单3人：redis少了5个
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(voucher(10L, 5)));
+        when(voucherOrderMapper.countByVoucherIds(anyList())).thenReturn(Collections.singletonList(count(10L, 3L)));
+        stringRedisTemplate.opsForValue().set("seckill:stock:10", "0");
+        stringRedisTemplate.opsForSet().add("seckill:order:10", "1", "2", "3");
+
+        Map<String, Object> first = reconciler.reconcile();
+        assertEquals("unconfirmed", detail(first).get("action"));
+        assertEquals(-5L, detail(first).get("drift"));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+
+        Map<String, Object> second = reconciler.reconcile();
+        assertEquals("redis_corrected", detail(second).get("action"));
+        assertEquals("5", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+        // 卖完后补回了库存，清除售罄标记
+        verify(soldOutRegistry).reset(10L);
+
+        // 修正后不再有偏差
+        assertTrue(details(reconciler.reconcile()).isEmpty());
+        assertFalse(stringRedisTemplate.hasKey(RedisConstants.LOCK_STOCK_RECONCILE_KEY));
+    }
+
+    @Test
+    void changingDriftIsNotCorrected() {
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(voucher(10L, 5)));
+        when(voucherOrderMapper.countByVoucherIds(anyList())).thenReturn(Collections.singletonList(count(10L, 0L)));
+        stringRedisTemplate.opsForValue().set("seckill:stock:10", "3");
+        assertEquals(-2L, detail(reconciler.reconcile()).get("drift"));
+
+        // 两次读取之间又有订单，偏差不同，仍然只记录
+        stringRedisTemplate.opsForValue().set("seckill:stock:10", "2");
+        Map<String, Object> report = reconciler.reconcile();
+        assertEquals(-3L, detail(report).get("drift"));
+        assertEquals("unconfirmed", detail(report).get("action"));
+        assertEquals("2", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+    }
+
+    @Test
+    void redisAuthorityCorrectsTheDatabase() {
+        ReflectionTestUtils.setField(reconciler, "authority", StockReconciler.Authority.REDIS);
+        // redis剩余3、已下单2人，数据库剩余10、订单2：数据库多了7个
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(voucher(10L, 10)));
+        when(voucherOrderMapper.countByVoucherIds(anyList())).thenReturn(Collections.singletonList(count(10L, 2L)));
+        stringRedisTemplate.opsForValue().set("seckill:stock:10", "3");
+        stringRedisTemplate.opsForSet().add("seckill:order:10", "1", "2");
+
+        reconciler.reconcile();
+        verify(seckillVoucherMapper, never()).updateStockBatch(anyList());
+        assertEquals("db_corrected", detail(reconciler.reconcile()).get("action"));
+        verify(seckillVoucherMapper).updateStockBatch(argThat(vouchers -> vouchers.size() == 1
+                && vouchers.get(0).getVoucherId() == 10L && vouchers.get(0).getStock() == 3));
+        assertEquals("3", stringRedisTemplate.opsForValue().get("seckill:stock:10"));
+    }
+
+    @Test
+    void surplusIsTakenFromSegmentsThatHaveStock() {
+        stringRedisTemplate.opsForValue().set("seckill:segments:10", "2");
+        stringRedisTemplate.opsForValue().set("seckill:stock:{10:0}", "0");
+        stringRedisTemplate.opsForValue().set("seckill:stock:{10:1}", "5");
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(voucher(10L, 2)));
+        when(voucherOrderMapper.countByVoucherIds(anyList())).thenReturn(Collections.emptyList());
+
+        reconciler.reconcile();
+        assertEquals("redis_corrected", detail(reconciler.reconcile()).get("action"));
+        assertEquals("0", stringRedisTemplate.opsForValue().get("seckill:stock:{10:0}"));
+        assertEquals("2", stringRedisTemplate.opsForValue().get("seckill:stock:{10:1}"));
+    }
+
+    @Test
+    void leasedQuotaCountsOnlyWhatIsNotSoldYet() {
+        // 节点租用3个、已卖出1个还未从租约中扣除：redis剩余5+2、已下单1人，和数据库一致
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(voucher(10L, 7)));
+        when(voucherOrderMapper.countByVoucherIds(anyList())).thenReturn(Collections.singletonList(count(10L, 1L)));
+        stringRedisTemplate.opsForValue().set("seckill:stock:10", "5");
+        stringRedisTemplate.opsForHash().put("seckill:lease:10", "node", "3");
+        stringRedisTemplate.opsForValue().set("seckill:lease:sold:10:node", "1");
+        stringRedisTemplate.opsForSet().add("seckill:order:10", "1");
+
+        assertTrue(details(reconciler.reconcile()).isEmpty());
+    }
+
+    @Test
+    void missingStockIsReportedForRebuild() {
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(voucher(10L, 5)));
+        when(voucherOrderMapper.countByVoucherIds(anyList())).thenReturn(Collections.emptyList());
+        assertEquals("missing", detail(reconciler.reconcile()).get("action"));
+        assertEquals("missing", detail(reconciler.reconcile()).get("action"));
+        assertFalse(stringRedisTemplate.hasKey("seckill:stock:10"));
+    }
+
+    @Test
+    void rebuildRestoresStockMetaAndBuyers() {
+        stringRedisTemplate.opsForValue().set("seckill:segments:10", "2");
+        stringRedisTemplate.opsForHash().put("seckill:lease:10", "node", "3");
+        stringRedisTemplate.opsForValue().set("seckill:lease:sold:10:node", "1");
+        when(seckillVoucherMapper.selectList(any())).thenReturn(Collections.singletonList(voucher(10L, 4)));
+        when(voucherOrderMapper.selectList(any())).thenReturn(Arrays.asList(order(1L, 7L), order(2L, 8L)));
+
+        assertEquals(1L, reconciler.rebuildRedis());
+
+        assertEquals("2", stringRedisTemplate.opsForValue().get("seckill:stock:{10:0}"));
+        assertEquals("2", stringRedisTemplate.opsForValue().get("seckill:stock:{10:1}"));
+        // 每段一份秒杀时间
+        assertEquals(2L, stringRedisTemplate.opsForHash().size("seckill:meta:{10:0}"));
+        assertEquals(2L, stringRedisTemplate.opsForHash().size("seckill:meta:{10:1}"));
+        // 已下单用户写回首选段，并恢复一人一单标记
+        for (long userId : new long[]{7L, 8L}) {
+            int home = seckillStock.homeSegment(10L, userId);
+            assertTrue(stringRedisTemplate.opsForSet().isMember("seckill:order:{10:" + home + "}", String.valueOf(userId)));
+            assertEquals(String.valueOf(home), stringRedisTemplate.opsForValue().get("seckill:buyer:{10:" + userId + "}"));
+        }
+        assertFalse(stringRedisTemplate.hasKey("seckill:lease:10"));
+        assertFalse(stringRedisTemplate.hasKey("seckill:lease:sold:10:node"));
+        verify(soldOutRegistry).reset(10L);
+    }
+
+    private static SeckillVoucher voucher(Long voucherId, int stock) {
+        return new SeckillVoucher().setVoucherId(voucherId).setStock(stock)
+                .setBeginTime(LocalDateTime.now().minusHours(1)).setEndTime(LocalDateTime.now().plusHours(1));
+    }
+
+    private static VoucherOrder order(Long id, Long userId) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(userId);
+        return order;
+    }
+
+    private static Map<String, Object> count(Long voucherId, Long total) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("voucher_id", voucherId);
+        row.put("total", total);
+        return row;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> details(Map<String, Object> report) {
+        return (List<Map<String, Object>>) report.get("details");
+    }
+
+    private static Map<String, Object> detail(Map<String, Object> report) {
+        List<Map<String, Object>> details = details(report);
+        assertEquals(1, details.size(), details.toString());
+        return details.get(0);
+    }
+}
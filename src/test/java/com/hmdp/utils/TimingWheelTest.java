@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    private static final long TICK_MILLIS = 50L;
+    private static final int WHEEL_SIZE = 8;
+    // 转一圈的时间，放错格子的任务会晚这么久
+    private static final long ROUND_MILLIS = TICK_MILLIS * WHEEL_SIZE;
+
+    // id -> 触发时间
+    private final Map<Long, Long> firedAt = new ConcurrentHashMap<>();
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+    private volatile CountDownLatch latch;
+
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, WHEEL_SIZE, 100, ids -> {
+        long now = System.currentTimeMillis();
+        batchSizes.add(ids.size());
+        for (Long id : ids) {
+            firedAt.put(id, now);
+            latch.countDown();
+        }
+    });
+
+    @AfterEach
+    void stopWheel() {
+        wheel.stop();
+    }
+
+    @Test
+    void firesDeadlinesBeyondOneRoundOnTime() throws InterruptedException {
+        latch = new CountDownLatch(3);
+        wheel.start("test-wheel");
+        long now = System.currentTimeMillis();
+        // 同一格子的不同圈：未到期的留在格子里等下一圈
+        long[] deadlines = {now + 100, now + 100 + ROUND_MILLIS, now + 100 + 2 * ROUND_MILLIS + 10};
+        for (int i = 0; i < deadlines.length; i++) {
+            wheel.schedule(i, deadlines[i]);
+        }
+        assertEquals(3L, wheel.size());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < deadlines.length; i++) {
+            long lateness = firedAt.get((long) i) - deadlines[i];
+            assertTrue(lateness >= 0, "fired early: " + lateness);
+            assertTrue(lateness < ROUND_MILLIS / 2, "fired late: " + lateness);
+        }
+        assertEquals(0L, wheel.size());
+    }
+
+    @Test
+    void lateScheduleFiresOnNextTickInsteadOfNextRound() throws InterruptedException {
+        int count = 20;
+        latch = new CountDownLatch(count);
+        wheel.start("test-wheel");
+        long[] scheduledAt = new long[count];
+        for (int i = 0; i < count; i++) {
+            // 到期时间已过或正在处理的格子，不能等到下一圈
+            scheduledAt[i] = System.currentTimeMillis();
+            wheel.schedule(i, scheduledAt[i] - (i % 2 == 0 ? 0 : 1000));
+            Thread.sleep(i * 7 % TICK_MILLIS);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            long delay = firedAt.get((long) i) - scheduledAt[i];
+            assertTrue(delay < ROUND_MILLIS / 2, "id " + i + " waited " + delay);
+        }
+    }
+
+    @Test
+    void splitsExpiredIdsIntoBatches() throws InterruptedException {
+        latch = new CountDownLatch(1000);
+        long deadline = System.currentTimeMillis() + 100;
+        for (long id = 0; id < 1000; id++) {
+            wheel.schedule(id, deadline);
+        }
+        wheel.start("test-wheel");
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1000, firedAt.size());
+        assertEquals(1000, batchSizes.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 100), "batches " + batchSizes);
+    }
+}